@@ -0,0 +1,277 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A record of who changed what. Changes are noted on the thread making them by putting an entry on a queue,
+ * and a background task writes them out in batches to audit/audit.log, which is compressed and replaced once
+ * it grows too large. The latest entries for each user and group are also kept in memory for the history
+ * command, starting with whatever is in the current log.
+ */
+final class AuditLog {
+
+    // how many entries the history command can show for each user or group
+    private static final int HISTORY_SIZE = 32;
+
+    /**
+     * One change to one value.
+     */
+    static final class Entry {
+        final long time;
+        final String actor;
+        final String target;
+        final String key;
+        final String before;
+        final String after;
+
+        Entry(long time, String actor, String target, String key, String before, String after) {
+            this.time = time;
+            this.actor = actor;
+            this.target = target;
+            this.key = key;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final PermissionsPlugin plugin;
+    private final File folder;
+    private final File file;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+    private final ConcurrentHashMap<String, Deque<Entry>> history = new ConcurrentHashMap<String, Deque<Entry>>();
+    private final ThreadLocal<String> actor = new ThreadLocal<String>();
+
+    private volatile boolean enabled = true;
+    private volatile long maxSize = 1024 * 1024;
+    private volatile int keep = 10;
+
+    public AuditLog(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+        this.folder = new File(plugin.getDataFolder(), "audit");
+        this.file = new File(folder, "audit.log");
+    }
+
+    public void configure(boolean enabled, int maxSizeKb, int keep) {
+        this.enabled = enabled;
+        this.maxSize = Math.max(16, maxSizeKb) * 1024L;
+        this.keep = Math.max(0, keep);
+    }
+
+    // -- Recording
+
+    /**
+     * Say who is making changes on this thread, until {@link #end} is called.
+     */
+    public void begin(String name) {
+        actor.set(name);
+    }
+
+    public void end() {
+        actor.remove();
+    }
+
+    /**
+     * Get who is making changes on this thread, or null if nobody in particular.
+     */
+    public String getActor() {
+        return actor.get();
+    }
+
+    /**
+     * Note a change to a value, made on behalf of whoever is named on this thread. Cheap enough to call from
+     * the main thread.
+     *
+     * @param source Where the change came from, such as "expiry", recorded if nobody is named.
+     * @param section The configuration section holding the value, such as "groups/admin/permissions".
+     */
+    public void record(String source, String section, String key, Object before, Object after) {
+        if (!enabled) return;
+        String name = actor.get();
+        if (name == null) {
+            name = source;
+        }
+
+        // split "users/<uuid>/permissions" + "node" into the owner and the rest
+        String[] pieces = section.split("/", 3);
+        String target, rest;
+        if (pieces.length < 2) {
+            target = section + "/" + key;
+            rest = "";
+        } else {
+            target = pieces[0] + "/" + pieces[1];
+            rest = (pieces.length == 3) ? pieces[2] + "/" + key : key;
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), name, target, rest, describe(before), describe(after));
+        pending.add(entry);
+        remember(entry);
+    }
+
+    private static String describe(Object value) {
+        return (value == null) ? "-" : String.valueOf(value);
+    }
+
+    private void remember(Entry entry) {
+        String target = entry.target.toLowerCase();
+        Deque<Entry> entries = history.get(target);
+        if (entries == null) {
+            entries = new ArrayDeque<Entry>();
+            Deque<Entry> raced = history.putIfAbsent(target, entries);
+            if (raced != null) entries = raced;
+        }
+        synchronized (entries) {
+            entries.addFirst(entry);
+            if (entries.size() > HISTORY_SIZE) {
+                entries.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Get the latest changes to a user or group, newest first.
+     *
+     * @param target The owner, such as "users/<uuid>" or "groups/admin".
+     */
+    public List<Entry> getHistory(String target) {
+        Deque<Entry> entries = history.get(target.toLowerCase());
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        synchronized (entries) {
+            return new ArrayList<Entry>(entries);
+        }
+    }
+
+    // -- Storage
+
+    /**
+     * Fill the history from the current log.
+     */
+    public void load() throws IOException {
+        history.clear();
+        if (!file.isFile()) return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 6) continue;
+                try {
+                    long time = parseTime(fields[0]);
+                    remember(new Entry(time, unescape(fields[1]), unescape(fields[2]), unescape(fields[3]), unescape(fields[4]), unescape(fields[5])));
+                } catch (ParseException ex) {
+                    // skip the line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write out whatever has been recorded since last time, rotating the log if it has grown too large.
+     * Safe to call from any thread.
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty()) return;
+        folder.mkdirs();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        try {
+            Entry entry;
+            while ((entry = pending.poll()) != null) {
+                writer.write(formatTime(entry.time) + "\t" + escape(entry.actor) + "\t" + escape(entry.target) + "\t"
+                        + escape(entry.key) + "\t" + escape(entry.before) + "\t" + escape(entry.after) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (file.length() > maxSize) {
+            rotate();
+        }
+    }
+
+    private void rotate() throws IOException {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File archive = new File(folder, "audit-" + stamp + ".log.gz");
+        for (int i = 1; archive.exists(); ++i) {
+            archive = new File(folder, "audit-" + stamp + "-" + i + ".log.gz");
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(archive));
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!file.delete()) {
+            throw new IOException("Could not start a new " + file);
+        }
+
+        // names sort by date, so the oldest are first
+        File[] archives = folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("audit-") && name.endsWith(".log.gz");
+            }
+        });
+        if (archives != null && archives.length > keep) {
+            Arrays.sort(archives);
+            for (int i = 0; i < archives.length - keep; ++i) {
+                archives[i].delete();
+            }
+        }
+        plugin.getLogger().info("Audit log compressed to " + archive.getName());
+    }
+
+    // -- Formatting
+
+    private static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssX");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static long parseTime(String text) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssX");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(text).getTime();
+    }
+
+    // fields are tab-separated, and values may hold anything
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) return text;
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+}
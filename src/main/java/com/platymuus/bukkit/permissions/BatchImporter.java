@@ -0,0 +1,209 @@
+package com.platymuus.bukkit.permissions;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads a file of changes into a PermissionsBatch, one line or document at a time.
+ * Reading does not touch the configuration, so it is done off the main thread.
+ */
+final class BatchImporter {
+
+    private BatchImporter() {
+    }
+
+    public static PermissionsBatch read(PermissionsPlugin plugin, File file) throws IOException {
+        PermissionsBatch batch = new PermissionsBatch(plugin);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+                readYaml(batch, reader);
+            } else {
+                readCsv(batch, reader);
+            }
+        } finally {
+            reader.close();
+        }
+        batch.setSource(null);
+        return batch;
+    }
+
+    // -- CSV
+
+    /*
+    player,<uuid>,setgroup,<group|group|...>
+    player,<uuid>,addgroup,<group>
+    player,<uuid>,removegroup,<group>
+    player,<uuid>,setperm,<[world:]node>[,true|false]
+    player,<uuid>,unsetperm,<[world:]node>
+    group,<group>,setperm,<[world:]node>[,true|false]
+    group,<group>,unsetperm,<[world:]node>
+     */
+    private static void readCsv(PermissionsBatch batch, BufferedReader reader) throws IOException {
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+            ++lineNo;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            batch.setSource("line " + lineNo);
+
+            String[] parts = line.split("\\s*,\\s*");
+            if (parts.length < 4 || parts.length > 5) {
+                batch.invalid("expected 4 or 5 fields but found " + parts.length);
+                continue;
+            }
+
+            String type = parts[0].toLowerCase(), target = parts[1], action = parts[2].toLowerCase(), arg = parts[3];
+            if (type.equals("player")) {
+                UUID player = parseUUID(target);
+                if (player == null) {
+                    batch.invalid("not a UUID: " + target);
+                } else if (action.equals("setgroup") && parts.length == 4) {
+                    batch.setGroups(player, Arrays.asList(arg.split("\\s*\\|\\s*")));
+                } else if (action.equals("addgroup") && parts.length == 4) {
+                    batch.addGroup(player, arg);
+                } else if (action.equals("removegroup") && parts.length == 4) {
+                    batch.removeGroup(player, arg);
+                } else if (action.equals("setperm")) {
+                    batch.setPermission(player, arg, parts.length != 5 || Boolean.parseBoolean(parts[4]));
+                } else if (action.equals("unsetperm") && parts.length == 4) {
+                    batch.setPermission(player, arg, null);
+                } else {
+                    batch.invalid("unknown player action " + action);
+                }
+            } else if (type.equals("group")) {
+                if (action.equals("setperm")) {
+                    batch.setGroupPermission(target, arg, parts.length != 5 || Boolean.parseBoolean(parts[4]));
+                } else if (action.equals("unsetperm") && parts.length == 4) {
+                    batch.setGroupPermission(target, arg, null);
+                } else {
+                    batch.invalid("unknown group action " + action);
+                }
+            } else {
+                batch.invalid("expected player or group but found " + parts[0]);
+            }
+        }
+    }
+
+    // -- YAML
+
+    /*
+    Laid out like config.yml, and may be split into several documents with "---":
+    users:
+      <uuid>:
+        groups: [...]
+        permissions: { node: true }
+        worlds: { world: { node: true } }
+    groups:
+      <group>:
+        permissions: { node: true }
+        worlds: { world: { node: true } }
+     */
+    private static void readYaml(PermissionsBatch batch, Reader reader) {
+        int docNo = 0;
+        for (Object doc : new Yaml(new SafeConstructor()).loadAll(reader)) {
+            ++docNo;
+            String where = "document " + docNo;
+            batch.setSource(where);
+            if (doc == null) continue;
+            if (!(doc instanceof Map)) {
+                batch.invalid("expected a mapping at the top level");
+                continue;
+            }
+
+            for (Map.Entry<?, ?> top : ((Map<?, ?>) doc).entrySet()) {
+                String type = String.valueOf(top.getKey());
+                if (!(top.getValue() instanceof Map)) {
+                    batch.invalid(type + " is not a mapping");
+                    continue;
+                }
+
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) top.getValue()).entrySet()) {
+                    String target = String.valueOf(entry.getKey());
+                    batch.setSource(where + ", " + type + "/" + target);
+                    if (!(entry.getValue() instanceof Map)) {
+                        batch.invalid("not a mapping");
+                        continue;
+                    }
+                    Map<?, ?> body = (Map<?, ?>) entry.getValue();
+
+                    if (type.equalsIgnoreCase("users")) {
+                        UUID player = parseUUID(target);
+                        if (player == null) {
+                            batch.invalid("not a UUID");
+                            continue;
+                        }
+                        readYamlUser(batch, player, body);
+                    } else if (type.equalsIgnoreCase("groups")) {
+                        readYamlPerms(batch, null, target, body);
+                    } else {
+                        batch.invalid("expected users or groups");
+                        break;
+                    }
+                }
+                batch.setSource(where);
+            }
+        }
+    }
+
+    private static void readYamlUser(PermissionsBatch batch, UUID player, Map<?, ?> body) {
+        Object groups = body.get("groups");
+        if (groups instanceof List) {
+            List<String> names = new ArrayList<String>();
+            for (Object group : (List<?>) groups) {
+                names.add(String.valueOf(group));
+            }
+            batch.setGroups(player, names);
+        } else if (groups != null) {
+            batch.invalid("groups is not a list");
+        }
+        readYamlPerms(batch, player, null, body);
+    }
+
+    private static void readYamlPerms(PermissionsBatch batch, UUID player, String group, Map<?, ?> body) {
+        readYamlNodes(batch, player, group, "", body.get("permissions"));
+
+        Object worlds = body.get("worlds");
+        if (worlds instanceof Map) {
+            for (Map.Entry<?, ?> world : ((Map<?, ?>) worlds).entrySet()) {
+                readYamlNodes(batch, player, group, world.getKey() + ":", world.getValue());
+            }
+        } else if (worlds != null) {
+            batch.invalid("worlds is not a mapping");
+        }
+    }
+
+    private static void readYamlNodes(PermissionsBatch batch, UUID player, String group, String prefix, Object nodes) {
+        if (nodes == null) return;
+        if (!(nodes instanceof Map)) {
+            batch.invalid("permissions for " + (prefix.length() > 0 ? prefix : "all worlds") + " are not a mapping");
+            return;
+        }
+
+        for (Map.Entry<?, ?> node : ((Map<?, ?>) nodes).entrySet()) {
+            String name = prefix + node.getKey();
+            if (!(node.getValue() instanceof Boolean)) {
+                batch.invalid(name + " is non-boolean");
+            } else if (player != null) {
+                batch.setPermission(player, name, (Boolean) node.getValue());
+            } else {
+                batch.setGroupPermission(group, name, (Boolean) node.getValue());
+            }
+        }
+    }
+
+    private static UUID parseUUID(String arg) {
+        if (arg.length() == 32) {
+            // expand UUIDs which do not have dashes in them
+            arg = arg.substring(0, 8) + "-" + arg.substring(8, 12) + "-" + arg.substring(12, 16) +
+                    "-" + arg.substring(16, 20) + "-" + arg.substring(20, 32);
+        }
+        return PermissionsSnapshot.parseUUID(arg.toLowerCase());
+    }
+
+}
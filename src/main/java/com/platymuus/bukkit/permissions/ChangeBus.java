@@ -0,0 +1,134 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Publishes local changes to other servers and applies the changes they publish.
+ */
+final class ChangeBus {
+
+    private static final String RELOAD = "R";
+
+    private final PermissionsPlugin plugin;
+    private final String serverId;
+    private final boolean persist;
+
+    private ChangeTransport transport;
+
+    public ChangeBus(PermissionsPlugin plugin, String serverId, boolean persist) {
+        this.plugin = plugin;
+        this.serverId = serverId;
+        this.persist = persist;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public synchronized void start(ChangeTransport transport) throws IOException {
+        stop();
+        transport.start(new ChangeTransport.Receiver() {
+            public void receive(String message) {
+                ChangeBus.this.receive(message);
+            }
+        });
+        this.transport = transport;
+    }
+
+    public synchronized void stop() {
+        if (transport != null) {
+            transport.stop();
+            transport = null;
+        }
+    }
+
+    // -- Publishing
+
+    public void publishSet(String section, String key, Object value) {
+        String record;
+        try {
+            record = MutationJournal.formatSet(section, key, value);
+        } catch (IllegalArgumentException ex) {
+            plugin.getLogger().warning("Not sending a change to " + section + "/" + key + " to other servers: " + ex.getMessage());
+            return;
+        }
+        publish(record);
+    }
+
+    public void publishMove(String from, String to) {
+        publish(MutationJournal.formatMove(from, to));
+    }
+
+    public void publishReload() {
+        publish(RELOAD);
+    }
+
+    private synchronized void publish(String record) {
+        if (transport != null) {
+            transport.publish(serverId + "\t" + record);
+        }
+    }
+
+    // -- Receiving
+
+    private void receive(String message) {
+        int tab = message.indexOf('\t');
+        if (tab < 0 || message.substring(0, tab).equals(serverId)) {
+            return;
+        }
+
+        final String record = message.substring(tab + 1);
+        plugin.getPlatformScheduler().runGlobal(new Runnable() {
+            public void run() {
+                try {
+                    apply(record);
+                } catch (Exception ex) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to apply a change from another server: " + record, ex);
+                }
+            }
+        });
+    }
+
+    private void apply(String record) {
+        if (record.equals(RELOAD)) {
+            plugin.getTrace().log(Trace.IO, "Reloading at the request of another server");
+            plugin.reloadConfig();
+            plugin.refreshPermissions();
+            return;
+        }
+
+        boolean parsed = MutationJournal.parse(record, new MutationJournal.Target() {
+            public void replaySet(String section, String key, Object value) {
+                plugin.applyRemoteSet(section, key, value, persist);
+                refresh(section + "/" + key);
+            }
+
+            public void replayMove(String from, String to) {
+                plugin.applyRemoteMove(from, to, persist);
+                refresh(from);
+                refresh(to);
+            }
+        });
+        if (!parsed) {
+            plugin.getLogger().warning("Ignoring a malformed change from another server: " + record);
+        }
+    }
+
+    private void refresh(String path) {
+        String[] pieces = path.split("/");
+        if (pieces.length > 1 && pieces[0].equalsIgnoreCase("users")) {
+            try {
+                plugin.refreshForPlayer(UUID.fromString(pieces[1]));
+            } catch (IllegalArgumentException ex) {
+                // unconverted name-only entry, nobody online can be using it
+            }
+        } else if (pieces.length > 1 && pieces[0].equalsIgnoreCase("groups")) {
+            plugin.refreshForGroup(pieces[1]);
+        } else {
+            plugin.refreshPermissions();
+        }
+    }
+
+}
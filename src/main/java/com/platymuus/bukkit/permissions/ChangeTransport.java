@@ -0,0 +1,41 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.IOException;
+
+/**
+ * A way of passing change notifications between servers which share permissions.
+ */
+public interface ChangeTransport {
+
+    /**
+     * Receives messages published by other servers.
+     */
+    interface Receiver {
+        /**
+         * Handle a message. May be called from any thread.
+         *
+         * @param message The message exactly as it was published.
+         */
+        void receive(String message);
+    }
+
+    /**
+     * Start delivering messages to the receiver.
+     *
+     * @param receiver The receiver to deliver to.
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Send a message to every other server. Should not block on the network.
+     *
+     * @param message A single line of text.
+     */
+    void publish(String message);
+
+    /**
+     * Stop delivering messages and release any resources.
+     */
+    void stop();
+
+}
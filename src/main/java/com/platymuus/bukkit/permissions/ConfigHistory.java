@@ -0,0 +1,172 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.*;
+
+/**
+ * The last so many versions of the configuration, each with the snapshot it produced and the writes which
+ * would undo it, so that changes can be rolled back without a reload. Snapshots share all but the entries
+ * that changed, so keeping them costs little. History starts over whenever the configuration is reloaded.
+ * Only used from the global thread.
+ */
+final class ConfigHistory {
+
+    /**
+     * One recorded change to the configuration, which may have set several values.
+     */
+    static final class Version {
+        final long version;
+        // the version the change was made on top of
+        final long previous;
+        final long time;
+        final String actor;
+        final PermissionsSnapshot snapshot;
+        final int size;
+        // writes which put things back as they were, in the order to make them
+        final List<PermissionsBatch.Change> undo;
+
+        Version(long previous, PermissionsSnapshot snapshot, long time, String actor, int size, List<PermissionsBatch.Change> undo) {
+            this.version = snapshot.getVersion();
+            this.previous = previous;
+            this.time = time;
+            this.actor = actor;
+            this.snapshot = snapshot;
+            this.size = size;
+            this.undo = undo;
+        }
+    }
+
+    private final ArrayDeque<Version> versions = new ArrayDeque<Version>();
+    private int limit = 100;
+    // the snapshot history starts from, and when
+    private PermissionsSnapshot base = PermissionsSnapshot.EMPTY;
+    private long baseTime = 0;
+
+    public void configure(int limit) {
+        this.limit = Math.max(0, limit);
+        trim();
+    }
+
+    /**
+     * Forget every version, starting again from the given snapshot.
+     */
+    public void reset(PermissionsSnapshot snapshot) {
+        versions.clear();
+        base = snapshot;
+        baseTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Remember a change which has just been made.
+     *
+     * @param previous The version of the snapshot before the change.
+     * @param snapshot The snapshot after the change.
+     * @param actor Who made the change, or null if nobody in particular.
+     * @param changes The values set, with what they were before.
+     */
+    public void push(long previous, PermissionsSnapshot snapshot, String actor, List<PermissionsBatch.Change> changes) {
+        if (limit == 0 || changes.isEmpty()) return;
+
+        List<PermissionsBatch.Change> undo = new ArrayList<PermissionsBatch.Change>();
+        for (int i = changes.size() - 1; i >= 0; --i) {
+            addUndo(undo, changes.get(i));
+        }
+        versions.addFirst(new Version(previous, snapshot, System.currentTimeMillis(), actor, changes.size(), undo));
+        trim();
+    }
+
+    private void trim() {
+        while (versions.size() > limit) {
+            Version oldest = versions.removeLast();
+            base = oldest.snapshot;
+            baseTime = oldest.time;
+        }
+    }
+
+    private static void addUndo(List<PermissionsBatch.Change> undo, PermissionsBatch.Change change) {
+        if (change.created != null && change.created.indexOf('/') > 0) {
+            // the change made the section it wrote to, so take the whole thing away again (but leave
+            // top-level sections such as "users" in place)
+            int slash = change.created.lastIndexOf('/');
+            undo.add(new PermissionsBatch.Change(change.created.substring(0, slash), change.created.substring(slash + 1), null, null, null));
+        } else if (change.old instanceof ConfigurationSection) {
+            // sections are live, so copy out each value under one as it was
+            undo.add(new PermissionsBatch.Change(change.section, change.key, null, null, null));
+            String path = change.section + "/" + change.key;
+            for (Map.Entry<String, Object> entry : ((ConfigurationSection) change.old).getValues(true).entrySet()) {
+                if (entry.getValue() instanceof ConfigurationSection) continue;
+                String full = path + "/" + entry.getKey();
+                int slash = full.lastIndexOf('/');
+                undo.add(new PermissionsBatch.Change(full.substring(0, slash), full.substring(slash + 1), copy(entry.getValue()), null, null));
+            }
+        } else {
+            undo.add(new PermissionsBatch.Change(change.section, change.key, copy(change.old), null, null));
+        }
+    }
+
+    private static Object copy(Object value) {
+        return (value instanceof List) ? new ArrayList<Object>((List<?>) value) : value;
+    }
+
+    // -- Looking back
+
+    /**
+     * Get the versions kept, newest first.
+     */
+    public List<Version> getVersions() {
+        return new ArrayList<Version>(versions);
+    }
+
+    public long getBaseVersion() {
+        return base.getVersion();
+    }
+
+    /**
+     * Find the version which was current at the given time.
+     *
+     * @return The version, or -1 if that is further back than history goes.
+     */
+    public long versionAt(long time) {
+        for (Version version : versions) {
+            if (version.time <= time) {
+                return version.version;
+            }
+        }
+        return (baseTime <= time) ? base.getVersion() : -1;
+    }
+
+    /**
+     * Get the writes which undo every change made after the given version, newest first.
+     *
+     * @return The writes, or null if the version is further back than history goes.
+     */
+    public List<PermissionsBatch.Change> undoSince(long version) {
+        if (version < base.getVersion()) return null;
+        List<PermissionsBatch.Change> result = new ArrayList<PermissionsBatch.Change>();
+        for (Version newer : versions) {
+            if (newer.version <= version) break;
+            result.addAll(newer.undo);
+        }
+        return result;
+    }
+
+    /**
+     * Get the snapshot of the given version, as long as nothing but the changes recorded here has happened
+     * since, so that undoing them leaves exactly that snapshot.
+     *
+     * @return The snapshot, or null if other changes came in between.
+     */
+    public PermissionsSnapshot exactSnapshot(long version, long current) {
+        long expected = current;
+        for (Version newer : versions) {
+            if (expected == version) {
+                return (newer.version == version) ? newer.snapshot : null;
+            }
+            if (newer.version != expected) return null;
+            expected = newer.previous;
+        }
+        return (expected == version && base.getVersion() == version) ? base : null;
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.Map;
+
+/**
+ * Nodes which only apply while a condition on the player's context holds, as read from a "contexts" section.
+ */
+final class ContextRule {
+
+    private final String label;
+    private final Map<String, String> condition;
+    private final Map<String, Boolean> permissions;
+
+    ContextRule(String label, Map<String, String> condition, Map<String, Boolean> permissions) {
+        this.label = label;
+        this.condition = condition;
+        this.permissions = permissions;
+    }
+
+    /**
+     * The condition as written in the configuration.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public Map<String, String> getCondition() {
+        return condition;
+    }
+
+    public Map<String, Boolean> getPermissions() {
+        return permissions;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A ChangeTransport which drops each message as a small file in a directory shared by every server.
+ */
+final class DirectoryChangeTransport implements ChangeTransport {
+
+    // messages are left for this long so that slow pollers still see them
+    private static final long RETENTION = 60 * 1000;
+
+    private final Logger logger;
+    private final File folder;
+    private final long interval;
+    private final String prefix;
+
+    private final Set<String> seen = new HashSet<String>();
+    private int sequence = 0;
+
+    private volatile boolean running = false;
+    private Thread pollThread;
+
+    public DirectoryChangeTransport(Logger logger, File folder, long interval, String serverId) {
+        this.logger = logger;
+        this.folder = folder;
+        this.interval = interval;
+        this.prefix = serverId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    public void start(final Receiver receiver) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Failed to create " + folder);
+        }
+
+        // anything already there is old news
+        File[] existing = folder.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                seen.add(file.getName());
+            }
+        }
+
+        running = true;
+        pollThread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        poll(receiver);
+                        Thread.sleep(interval);
+                    } catch (InterruptedException ex) {
+                        break;
+                    } catch (Exception ex) {
+                        logger.log(Level.WARNING, "Failed to poll " + folder + " for changes", ex);
+                    }
+                }
+            }
+        }, "PermissionsBukkit sync poller");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    public synchronized void publish(String message) {
+        // zero-padded time first so that a sorted listing is in publish order
+        String name = String.format("%015d-%s-%06d", System.currentTimeMillis(), prefix, sequence++ % 1000000);
+        File temp = new File(folder, name + ".tmp");
+        File dest = new File(folder, name + ".msg");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                writer.write(message);
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(dest)) {
+                throw new IOException("Failed to rename " + temp + " to " + dest);
+            }
+            seen.add(dest.getName());
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to publish a change notification", ex);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (pollThread != null) {
+            pollThread.interrupt();
+        }
+    }
+
+    private void poll(Receiver receiver) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+
+        long cutoff = System.currentTimeMillis() - RETENTION;
+        Set<String> present = new HashSet<String>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(".msg")) continue;
+            present.add(name);
+
+            if (file.lastModified() < cutoff) {
+                // whoever gets here first cleans up, it doesn't matter who
+                if (!file.delete()) {
+                    logger.fine("Could not delete old change notification " + file);
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                if (!seen.add(name)) continue;
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                if (line != null) {
+                    receiver.receive(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // forget names which have been cleaned up so the set doesn't grow forever
+        synchronized (this) {
+            seen.retainAll(present);
+        }
+    }
+
+}
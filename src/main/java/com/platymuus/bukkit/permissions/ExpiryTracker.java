@@ -0,0 +1,147 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of timed group memberships and permissions, and removes them once they expire. An entry's
+ * expiry time sits under "expiry" in the same user or group section, laid out the same way as the entry:
+ * "expiry/groups/vip", "expiry/permissions/some.node" or "expiry/worlds/world/some.node".
+ */
+final class ExpiryTracker {
+
+    private static final Pattern DURATION = Pattern.compile("(\\d{1,9})([smhdw])");
+
+    private final PermissionsPlugin plugin;
+    private final ExpiryWheel<String> wheel = new ExpiryWheel<String>(now());
+
+    // the time each scheduled entry was scheduled for, keyed by its path, so rescanning doesn't duplicate it
+    private final Map<String, Long> scheduled = new HashMap<String, Long>();
+
+    public ExpiryTracker(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    public static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    public int size() {
+        return scheduled.size();
+    }
+
+    public void clear() {
+        wheel.clear(now());
+        scheduled.clear();
+    }
+
+    /**
+     * Schedule every expiry in a user or group section.
+     */
+    public void scan(ConfigurationSection owner) {
+        ConfigurationSection expiry = owner.getConfigurationSection("expiry");
+        if (expiry == null) return;
+
+        String prefix = owner.getCurrentPath() + "/expiry/";
+        for (Map.Entry<String, Object> entry : expiry.getValues(true).entrySet()) {
+            if (entry.getValue() instanceof ConfigurationSection) continue;
+            Long time = parseTime(entry.getValue());
+            if (time == null) {
+                plugin.getLogger().warning("In " + owner.getCurrentPath() + ": expiry " + entry.getKey() + " is not a time");
+                continue;
+            }
+
+            String path = prefix + entry.getKey();
+            Long previous = scheduled.put(path, time);
+            if (previous == null || previous.longValue() != time) {
+                wheel.add(path, time);
+            }
+        }
+    }
+
+    /**
+     * Remove every entry which has expired, as one batch. Must be called from the main thread.
+     */
+    public void tick() {
+        List<String> due = wheel.advance(now());
+        if (due.isEmpty()) return;
+
+        PermissionsBatch batch = plugin.newBatch();
+        batch.setSource("expiry");
+        for (String path : due) {
+            // the entry may have been given a different time since it was scheduled
+            Long time = scheduled.get(path);
+            if (time == null || time > now()) continue;
+            scheduled.remove(path);
+
+            String[] pieces = path.split("/", 4);
+            if (pieces.length == 4) {
+                batch.expire(pieces[0] + "/" + pieces[1], pieces[3]);
+            }
+        }
+
+        if (batch.size() == 0) return;
+        plugin.getTrace().log(Trace.REFRESH, "Expiring %d entries", batch.size());
+        try {
+            batch.commit();
+        } catch (IllegalArgumentException ex) {
+            plugin.getLogger().warning("Failed to remove expired entries: " + ex.getMessage());
+        }
+    }
+
+    // -- Entries
+
+    /**
+     * Check whether an entry of a user or group section, such as "groups/vip", has expired.
+     */
+    public static boolean isExpired(ConfigurationSection owner, String entry, long now) {
+        Long time = parseTime(owner.get("expiry/" + entry));
+        return time != null && time <= now;
+    }
+
+    /**
+     * Parse an expiry time: either seconds since the epoch, or an ISO-8601 instant such as 2030-01-01T00:00:00Z.
+     */
+    public static Long parseTime(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            try {
+                return Instant.parse((String) value).getEpochSecond();
+            } catch (DateTimeParseException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a duration such as "30d" or "1h30m", in seconds.
+     *
+     * @return The number of seconds, or -1 if the duration is not valid.
+     */
+    public static long parseDuration(String value) {
+        Matcher matcher = DURATION.matcher(value.toLowerCase());
+        long total = 0;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            long amount = Long.parseLong(matcher.group(1));
+            // each unit falls through to the smaller ones
+            switch (matcher.group(2).charAt(0)) {
+                case 'w': amount *= 7;
+                case 'd': amount *= 24;
+                case 'h': amount *= 60;
+                case 'm': amount *= 60;
+            }
+            total += amount;
+            end = matcher.end();
+        }
+        return (end == value.length() && end > 0 && total > 0) ? total : -1;
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel with one-second resolution. Each level has 64 slots, and each slot of a level
+ * spans a whole turn of the level below it. Items are cascaded down a level as their slot comes round, so
+ * advancing the clock costs time in proportion to the items which fall due, not to how many are waiting.
+ */
+final class ExpiryWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final List<List<Item<T>>> slots = new ArrayList<List<Item<T>>>();
+    // items too far away for the top level, looked at again each time the top level turns
+    private List<Item<T>> overflow = new ArrayList<Item<T>>();
+    private final List<T> due = new ArrayList<T>();
+    private long current;
+    private int size;
+
+    public ExpiryWheel(long now) {
+        current = now;
+        for (int i = 0; i < SLOTS * LEVELS; ++i) {
+            slots.add(null);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear(long now) {
+        for (int i = 0; i < slots.size(); ++i) {
+            slots.set(i, null);
+        }
+        overflow = new ArrayList<Item<T>>();
+        due.clear();
+        current = now;
+        size = 0;
+    }
+
+    /**
+     * Schedule an item for the given time, in seconds. Items which are already due come out of the next advance.
+     */
+    public void add(T value, long time) {
+        size++;
+        insert(new Item<T>(value, time));
+    }
+
+    /**
+     * Move the clock forward to the given time, in seconds.
+     *
+     * @return Every item which fell due, in order of time.
+     */
+    public List<T> advance(long now) {
+        List<T> result = new ArrayList<T>(due);
+        due.clear();
+
+        while (current < now) {
+            current++;
+
+            // when a level comes back round to zero, bring the next level's slot down
+            for (int level = 1; level < LEVELS && (current & ((1L << (BITS * level)) - 1)) == 0; ++level) {
+                cascade(level, (int) ((current >>> (BITS * level)) & MASK));
+                if (level == LEVELS - 1) {
+                    List<Item<T>> far = overflow;
+                    overflow = new ArrayList<Item<T>>();
+                    for (Item<T> item : far) {
+                        insert(item);
+                    }
+                }
+            }
+
+            int index = (int) (current & MASK);
+            List<Item<T>> slot = slots.get(index);
+            if (slot != null) {
+                slots.set(index, null);
+                for (Item<T> item : slot) {
+                    result.add(item.value);
+                }
+            }
+            result.addAll(due);
+            due.clear();
+        }
+
+        size -= result.size();
+        return result;
+    }
+
+    private void cascade(int level, int slot) {
+        int index = level * SLOTS + slot;
+        List<Item<T>> items = slots.get(index);
+        if (items != null) {
+            slots.set(index, null);
+            for (Item<T> item : items) {
+                insert(item);
+            }
+        }
+    }
+
+    private void insert(Item<T> item) {
+        long delta = item.time - current;
+        if (delta <= 0) {
+            due.add(item.value);
+            return;
+        }
+        for (int level = 0; level < LEVELS; ++level) {
+            if (delta < (1L << (BITS * (level + 1)))) {
+                int index = level * SLOTS + (int) ((item.time >>> (BITS * level)) & MASK);
+                List<Item<T>> slot = slots.get(index);
+                if (slot == null) {
+                    slot = new ArrayList<Item<T>>();
+                    slots.set(index, slot);
+                }
+                slot.add(item);
+                return;
+            }
+        }
+        overflow.add(item);
+    }
+
+    private static final class Item<T> {
+        final T value;
+        final long time;
+
+        Item(T value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+}
@@ -1,11 +1,11 @@
 package com.platymuus.bukkit.permissions;
 
 import org.bukkit.Bukkit;
-import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -30,44 +30,30 @@ public final class Group {
      */
     @Deprecated
     public List<String> getPlayers() {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
         ArrayList<String> result = new ArrayList<String>();
-        if (plugin.getNode("users") != null) {
-            for (String user : plugin.getNode("users").getKeys(false)) {
-                ConfigurationSection node = plugin.getNode("users/" + user);
-                for (String group : node.getStringList("groups")) {
-                    if (name.equalsIgnoreCase(group) && !result.contains(user)) {
-                        // attempt to determine the username
-                        if (node.getString("name") != null) {
-                            // converted node
-                            result.add(node.getString("name"));
-                        } else {
-                            // unconverted node, or UUID node missing "name" element
-                            result.add(user);
-                        }
-                        break;
-                    }
-                }
+        for (UUID uuid : snapshot.getUsers().keySet()) {
+            if (isMember(snapshot.getUserGroupNames(uuid))) {
+                // attempt to determine the username
+                String user = snapshot.getUserName(uuid);
+                result.add(user != null ? user : uuid.toString());
+            }
+        }
+        for (Map.Entry<String, PermissionInfo> entry : snapshot.getLegacyUsers().entrySet()) {
+            // unconverted node
+            if (isMember(entry.getValue().getGroupNames()) && !result.contains(entry.getKey())) {
+                result.add(entry.getKey());
             }
         }
         return result;
     }
 
     public List<UUID> getPlayerUUIDs() {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
         ArrayList<UUID> result = new ArrayList<UUID>();
-        if (plugin.getNode("users") != null) {
-            for (String user : plugin.getNode("users").getKeys(false)) {
-                UUID uuid;
-                try {
-                    uuid = UUID.fromString(user);
-                } catch (IllegalArgumentException ex) {
-                    continue;
-                }
-                for (String group : plugin.getNode("users/" + user).getStringList("groups")) {
-                    if (name.equalsIgnoreCase(group) && !result.contains(uuid)) {
-                        result.add(uuid);
-                        break;
-                    }
-                }
+        for (UUID uuid : snapshot.getUsers().keySet()) {
+            if (isMember(snapshot.getUserGroupNames(uuid))) {
+                result.add(uuid);
             }
         }
         return result;
@@ -85,11 +71,23 @@ public final class Group {
     }
 
     public PermissionInfo getInfo() {
-        ConfigurationSection node = plugin.getNode("groups/" + name);
-        if (node == null) {
-            return null;
+        return plugin.getSnapshot().getGroup(name);
+    }
+
+    private boolean isMember(List<String> groups) {
+        return includes(groups, name);
+    }
+
+    /**
+     * Check whether a list of group names includes a group, which like every group lookup ignores case.
+     */
+    static boolean includes(List<String> groups, String group) {
+        for (String candidate : groups) {
+            if (group.equalsIgnoreCase(candidate)) {
+                return true;
+            }
         }
-        return new PermissionInfo(plugin, node, "inheritance");
+        return false;
     }
 
     @Override
@@ -0,0 +1,93 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * The canonical Group object for each group, so the API hands out the same objects instead of new ones on
+ * every call. A new set is only made when the groups change, and it keeps the object for every group which
+ * is still there. Immutable, so safe to use from any thread.
+ */
+final class GroupViews {
+
+    /**
+     * Groups looked up by name, remembered along with the views they were found in.
+     */
+    static final class Resolved {
+        final GroupViews views;
+        final List<Group> groups;
+
+        Resolved(GroupViews views, List<Group> groups) {
+            this.views = views;
+            this.groups = groups;
+        }
+    }
+
+    public static final GroupViews EMPTY = new GroupViews(0, Collections.<String, Group>emptyMap(), Collections.<Group>emptyList());
+
+    private final long groupsVersion;
+    private final Map<String, Group> byName;
+    private final List<Group> all;
+
+    private GroupViews(long groupsVersion, Map<String, Group> byName, List<Group> all) {
+        this.groupsVersion = groupsVersion;
+        this.byName = byName;
+        this.all = all;
+    }
+
+    /**
+     * Make the views for a snapshot's groups, reusing those from an earlier set where possible.
+     */
+    public static GroupViews of(PermissionsPlugin plugin, PermissionsSnapshot snapshot, GroupViews previous) {
+        Map<String, Group> byName = new HashMap<String, Group>();
+        List<Group> all = new ArrayList<Group>();
+        for (PermissionInfo info : snapshot.getGroups()) {
+            Group group = previous.get(info.getName());
+            if (group == null || !group.getName().equals(info.getName())) {
+                group = new Group(plugin, info.getName());
+            }
+            byName.put(info.getName().toLowerCase(), group);
+            all.add(group);
+        }
+        return new GroupViews(snapshot.getGroupsVersion(), byName, Collections.unmodifiableList(all));
+    }
+
+    public long getGroupsVersion() {
+        return groupsVersion;
+    }
+
+    /**
+     * Get a group, ignoring case.
+     *
+     * @return The group, or null if there is none by that name.
+     */
+    public Group get(String name) {
+        return byName.get(name.toLowerCase());
+    }
+
+    /**
+     * Get every group, in configuration order.
+     *
+     * @return The unmodifiable list of groups.
+     */
+    public List<Group> getAll() {
+        return all;
+    }
+
+    /**
+     * Get the groups with the given names, leaving out any which don't exist.
+     *
+     * @return The unmodifiable list of groups.
+     */
+    public List<Group> resolve(List<String> names) {
+        if (names.isEmpty()) return Collections.emptyList();
+        List<Group> result = new ArrayList<Group>(names.size());
+        for (String name : names) {
+            Group group = byName.get(name.toLowerCase());
+            if (group != null) {
+                result.add(group);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+}
@@ -0,0 +1,239 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.*;
+import org.bukkit.plugin.PluginManager;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Stands in for a player's PermissibleBase, answering for the plugin's nodes straight from the resolver's
+ * flattened map, children and all, which players with the same groups and context share. Nothing the plugin
+ * sets goes through Bukkit's own recalculation. Other plugins' attachments and default permissions are still
+ * handled by the base class, and attachments win over the plugin's nodes, as they would being added later.
+ */
+final class InjectedPermissible extends PermissibleBase {
+
+    private static Field baseField;
+    private static Field attachmentsField;
+    private static Field attachmentPermissibleField;
+    private static Field mapField;
+
+    private final Player player;
+    private final PermissionsPlugin plugin;
+    private final PermissibleBase original;
+    private final PluginManager manager;
+    // the base class's own map, for telling attachments from defaults
+    private final Map<String, PermissionAttachmentInfo> base;
+
+    private volatile Map<String, Boolean> effective = Collections.emptyMap();
+    private volatile NodeUsage recorder;
+
+    @SuppressWarnings("unchecked")
+    private InjectedPermissible(Player player, PermissionsPlugin plugin, PermissibleBase original) throws ReflectiveOperationException {
+        super(player);
+        this.player = player;
+        this.plugin = plugin;
+        this.original = original;
+        this.manager = plugin.getServer().getPluginManager();
+        this.base = (Map<String, PermissionAttachmentInfo>) mapField.get(this);
+    }
+
+    // -- Injection
+
+    /**
+     * Find the field of a player's class which holds its PermissibleBase, or null if there is none.
+     */
+    static Field findBaseField(Player player) {
+        Field field = baseField;
+        if (field != null && field.getDeclaringClass().isInstance(player)) {
+            return field;
+        }
+        for (Class<?> clazz = player.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            for (Field candidate : clazz.getDeclaredFields()) {
+                if (PermissibleBase.class.isAssignableFrom(candidate.getType())) {
+                    candidate.setAccessible(true);
+                    baseField = candidate;
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the map a PermissibleBase keeps the values it has worked out in.
+     */
+    static Field getMapField() throws ReflectiveOperationException {
+        if (mapField == null) {
+            Field field = PermissibleBase.class.getDeclaredField("permissions");
+            field.setAccessible(true);
+            mapField = field;
+        }
+        return mapField;
+    }
+
+    /**
+     * Put a new permissible into a player, taking over any attachments they already have.
+     *
+     * @return The permissible, or null if the player was already injected.
+     * @throws ReflectiveOperationException If the server isn't laid out as expected, and nothing was changed.
+     */
+    static InjectedPermissible inject(Player player, PermissionsPlugin plugin) throws ReflectiveOperationException {
+        Field field = findBaseField(player);
+        if (field == null) {
+            throw new NoSuchFieldException("no PermissibleBase in " + player.getClass().getName());
+        }
+        getMapField();
+        if (attachmentsField == null) {
+            attachmentsField = PermissibleBase.class.getDeclaredField("attachments");
+            attachmentsField.setAccessible(true);
+            attachmentPermissibleField = PermissionAttachment.class.getDeclaredField("permissible");
+            attachmentPermissibleField.setAccessible(true);
+        }
+
+        PermissibleBase current = (PermissibleBase) field.get(player);
+        if (current instanceof InjectedPermissible) {
+            return null;
+        }
+        InjectedPermissible result = new InjectedPermissible(player, plugin, current);
+        moveAttachments(current, result);
+        field.set(player, result);
+        // subscriptions are held by the player, so the old base has to give up its own before the new one takes them
+        current.clearPermissions();
+        result.recalculatePermissions();
+        return result;
+    }
+
+    /**
+     * Give the player back the permissible they had before, with whatever attachments they now have.
+     */
+    public void uninject() {
+        try {
+            Field field = findBaseField(player);
+            if (field == null || field.get(player) != this) return;
+            moveAttachments(this, original);
+            field.set(player, original);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        clearPermissions();
+        for (String name : effective.keySet()) {
+            manager.unsubscribeFromPermission(name, player);
+        }
+        original.recalculatePermissions();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void moveAttachments(PermissibleBase from, PermissibleBase to) throws ReflectiveOperationException {
+        List<PermissionAttachment> source = (List<PermissionAttachment>) attachmentsField.get(from);
+        List<PermissionAttachment> dest = (List<PermissionAttachment>) attachmentsField.get(to);
+        for (PermissionAttachment attachment : source) {
+            attachmentPermissibleField.set(attachment, to);
+            dest.add(attachment);
+        }
+        source.clear();
+    }
+
+    // -- Values
+
+    /**
+     * Swap in the plugin's nodes for this player, already expanded and keyed in lowercase.
+     */
+    public void setEffective(Map<String, Boolean> values) {
+        Map<String, Boolean> old = effective;
+        if (old == values) return;
+        effective = values;
+
+        // subscriptions are what broadcasts to a permission are sent by
+        for (String name : old.keySet()) {
+            if (!values.containsKey(name)) {
+                manager.unsubscribeFromPermission(name, player);
+            }
+        }
+        for (String name : values.keySet()) {
+            if (!old.containsKey(name)) {
+                manager.subscribeToPermission(name, player);
+            }
+        }
+    }
+
+    public Map<String, Boolean> getEffective() {
+        return effective;
+    }
+
+    /**
+     * Report every node this player is asked about to the given usage tracker.
+     */
+    public void setRecorder(NodeUsage recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void recalculatePermissions() {
+        super.recalculatePermissions();
+
+        // this is called from the base class's constructor, before anything here is set up
+        if (effective == null) return;
+
+        // the registered permissions may have changed, and with them the children the plugin's nodes expand to
+        plugin.reexpand(player);
+
+        // the base class drops subscriptions for names it sets, which may include some of the plugin's
+        for (String name : effective.keySet()) {
+            manager.subscribeToPermission(name, player);
+        }
+    }
+
+    // the plugin's value for a node, unless another plugin's attachment sets it
+    private Boolean lookup(String name) {
+        NodeUsage usage = recorder;
+        if (usage != null) {
+            usage.record(name);
+        }
+        PermissionAttachmentInfo info = base.get(name);
+        if (info != null && info.getAttachment() != null) {
+            return info.getValue();
+        }
+        return effective.get(name);
+    }
+
+    @Override
+    public boolean isPermissionSet(String name) {
+        return lookup(name.toLowerCase()) != null || super.isPermissionSet(name);
+    }
+
+    @Override
+    public boolean isPermissionSet(Permission perm) {
+        return isPermissionSet(perm.getName());
+    }
+
+    @Override
+    public boolean hasPermission(String name) {
+        Boolean value = lookup(name.toLowerCase());
+        return (value != null) ? value : super.hasPermission(name);
+    }
+
+    @Override
+    public boolean hasPermission(Permission perm) {
+        Boolean value = lookup(perm.getName().toLowerCase());
+        return (value != null) ? value : super.hasPermission(perm);
+    }
+
+    @Override
+    public Set<PermissionAttachmentInfo> getEffectivePermissions() {
+        Map<String, PermissionAttachmentInfo> result = new HashMap<String, PermissionAttachmentInfo>();
+        for (PermissionAttachmentInfo info : super.getEffectivePermissions()) {
+            result.put(info.getPermission(), info);
+        }
+        for (Map.Entry<String, Boolean> entry : effective.entrySet()) {
+            PermissionAttachmentInfo info = result.get(entry.getKey());
+            if (info == null || info.getAttachment() == null) {
+                result.put(entry.getKey(), new PermissionAttachmentInfo(this, entry.getKey(), null, entry.getValue()));
+            }
+        }
+        return new HashSet<PermissionAttachmentInfo>(result.values());
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * When each configured user was last online, in seconds, keyed the same way as the users section.
+ * Kept in its own file rather than the configuration so that joins and quits never cause a save.
+ */
+final class LastSeen {
+
+    private final File file;
+    private final Map<String, Long> times = new ConcurrentHashMap<String, Long>();
+    private volatile boolean dirty = false;
+
+    public LastSeen(File folder) {
+        file = new File(folder, "last-seen.txt");
+    }
+
+    public Long get(String key) {
+        return times.get(key);
+    }
+
+    public void seen(String key, long time) {
+        times.put(key, time);
+        dirty = true;
+    }
+
+    /**
+     * Get when a user was last seen, counting users never seen before as seen now.
+     */
+    public long getOrStart(String key, long now) {
+        Long time = times.get(key);
+        if (time == null) {
+            seen(key, now);
+            return now;
+        }
+        return time;
+    }
+
+    public void forget(String key) {
+        if (times.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    // -- Storage
+
+    public void load() throws IOException {
+        times.clear();
+        if (!file.isFile()) return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) continue;
+                try {
+                    times.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                } catch (NumberFormatException ex) {
+                    // skip damaged lines
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Write the times out if any have changed. Safe to call from any thread.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        dirty = false;
+
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            for (Map.Entry<String, Long> entry : times.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                dirty = true;
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * Scratch space the resolver merges a player's layers into. Each node gets one slot in an open-addressed
+ * table, and every value written is appended to a log which remembers the slot's previous write. A node's
+ * place in the result is that of its last write, so later layers still move a node to the end, as removing
+ * and putting it again would, but nothing is rehashed or relinked along the way. The arrays are kept from
+ * one resolution to the next, so a merger must only be used by one thread.
+ */
+final class LayerMerger {
+
+    // the table, by slot
+    private String[] keys = new String[64];
+    private int[] last = new int[64];
+    private int[] used = new int[32];
+    private int distinct = 0;
+
+    // the log, by write
+    private int[] writeSlot = new int[64];
+    private int[] writeLayer = new int[64];
+    private boolean[] writeValue = new boolean[64];
+    private int[] writePrevious = new int[64];
+    private int writes = 0;
+
+    // four pieces naming each layer, only put together if someone asks where the nodes came from
+    private final List<String> layers = new ArrayList<String>();
+
+    // for the resolver to track inheritance with, cleared along with everything else
+    private final Set<String> visited = new HashSet<String>();
+
+    /**
+     * Forget the last merge, keeping the space it used.
+     */
+    public void reset() {
+        for (int i = 0; i < distinct; ++i) {
+            keys[used[i]] = null;
+        }
+        distinct = 0;
+        writes = 0;
+        layers.clear();
+        visited.clear();
+    }
+
+    public Set<String> getVisited() {
+        return visited;
+    }
+
+    /**
+     * Write a layer's nodes over everything merged so far. A layer is named like "group admin, world nether".
+     *
+     * @param owner What the layer belongs to, "user" or "group".
+     * @param name The owner's name, or null to leave it out.
+     * @param detail What part of the owner the layer is, such as "world", or null for its plain nodes.
+     * @param detailName The name of that part.
+     */
+    public void apply(Map<String, Boolean> src, String owner, String name, String detail, String detailName) {
+        if (src.isEmpty()) return;
+        int layer = layers.size() / 4;
+        layers.add(owner);
+        layers.add(name);
+        layers.add(detail);
+        layers.add(detailName);
+        for (Map.Entry<String, Boolean> entry : src.entrySet()) {
+            write(entry.getKey(), layer, entry.getValue());
+        }
+    }
+
+    private void write(String node, int layer, boolean value) {
+        if (writes == writeSlot.length) {
+            int size = writes * 2;
+            writeSlot = Arrays.copyOf(writeSlot, size);
+            writeLayer = Arrays.copyOf(writeLayer, size);
+            writeValue = Arrays.copyOf(writeValue, size);
+            writePrevious = Arrays.copyOf(writePrevious, size);
+        }
+
+        int slot = find(node);
+        if (keys[slot] == null) {
+            keys[slot] = node;
+            last[slot] = -1;
+            if (distinct == used.length) {
+                used = Arrays.copyOf(used, distinct * 2);
+            }
+            used[distinct++] = slot;
+        }
+
+        writeSlot[writes] = slot;
+        writeLayer[writes] = layer;
+        writeValue[writes] = value;
+        writePrevious[writes] = last[slot];
+        last[slot] = writes++;
+
+        // keep the table at most half full
+        if (distinct * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private int find(String node) {
+        int mask = keys.length - 1;
+        int h = node.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != null && !keys[slot].equals(node)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldLast = last;
+        keys = new String[oldKeys.length * 2];
+        last = new int[keys.length];
+
+        // slots move, so the log's record of them has to follow
+        int[] moved = new int[oldKeys.length];
+        for (int i = 0; i < distinct; ++i) {
+            int from = used[i];
+            int to = find(oldKeys[from]);
+            keys[to] = oldKeys[from];
+            last[to] = oldLast[from];
+            moved[from] = to;
+            used[i] = to;
+        }
+        for (int i = 0; i < writes; ++i) {
+            writeSlot[i] = moved[writeSlot[i]];
+        }
+    }
+
+    // -- Results
+
+    /**
+     * Get the merged nodes, in order of when each was last written.
+     */
+    public NodeMap toMap() {
+        String[] resultKeys = new String[distinct];
+        boolean[] resultValues = new boolean[distinct];
+        int n = 0;
+        for (int i = 0; i < writes; ++i) {
+            int slot = writeSlot[i];
+            if (last[slot] == i) {
+                resultKeys[n] = keys[slot];
+                resultValues[n++] = writeValue[i];
+            }
+        }
+        return new NodeMap(resultKeys, resultValues);
+    }
+
+    /**
+     * Get where each of the nodes from {@link #toMap} came from, copied out so the merger can be reused.
+     */
+    public Provenance toProvenance(NodeMap nodes) {
+        int[] lastWrite = new int[distinct];
+        int n = 0;
+        for (int i = 0; i < writes; ++i) {
+            if (last[writeSlot[i]] == i) {
+                lastWrite[n++] = i;
+            }
+        }
+        List<String> names = new ArrayList<String>(layers.size() / 4);
+        for (int i = 0; i < layers.size(); i += 4) {
+            StringBuilder layer = new StringBuilder(layers.get(i));
+            if (layers.get(i + 1) != null) {
+                layer.append(' ').append(layers.get(i + 1));
+            }
+            if (layers.get(i + 2) != null) {
+                layer.append(", ").append(layers.get(i + 2)).append(' ').append(layers.get(i + 3));
+            }
+            names.add(layer.toString());
+        }
+        return new Provenance(names, Arrays.copyOf(writeLayer, writes),
+                Arrays.copyOf(writeValue, writes), Arrays.copyOf(writePrevious, writes), nodes, lastWrite);
+    }
+
+}
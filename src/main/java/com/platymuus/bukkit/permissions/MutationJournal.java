@@ -0,0 +1,426 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An append-only log of configuration changes, replayed on top of the saved configuration at startup.
+ */
+final class MutationJournal {
+
+    /**
+     * Receives records read back from the journal.
+     */
+    interface Target {
+        void replaySet(String section, String key, Object value);
+
+        void replayMove(String from, String to);
+    }
+
+    private final File file;
+    private final File rotated;
+
+    private FileOutputStream stream;
+    private Writer writer;
+    private long size;
+    private boolean unsynced = false;
+
+    private final Set<String> touchedUsers = new HashSet<String>();
+    private boolean touchedBase = false;
+
+    public MutationJournal(File folder) {
+        file = new File(folder, "journal.log");
+        rotated = new File(folder, "journal.old.log");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0 && !rotated.exists();
+    }
+
+    // -- Writing
+
+    public synchronized void open() throws IOException {
+        if (writer != null) return;
+        stream = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+        size = file.length();
+    }
+
+    /**
+     * @throws IOException If the record could not be written, or the value is of a type the journal can't hold.
+     */
+    public synchronized void appendSet(String section, String key, Object value) throws IOException {
+        String line;
+        try {
+            line = formatSet(section, key, value);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+        write(line);
+        touch(section + "/" + key);
+    }
+
+    public synchronized void appendMove(String from, String to) throws IOException {
+        write(formatMove(from, to));
+        touch(from);
+        touch(to);
+    }
+
+    /**
+     * Flush buffered records and force them to disk. Safe to call from any thread.
+     */
+    public synchronized void sync() throws IOException {
+        if (writer == null || !unsynced) return;
+        writer.flush();
+        stream.getFD().sync();
+        unsynced = false;
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer == null) return;
+        sync();
+        writer.close();
+        writer = null;
+        stream = null;
+    }
+
+    /**
+     * Close the journal and remove its files, once everything in them is safely saved elsewhere.
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        finishCompaction();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete " + file);
+        }
+        size = 0;
+    }
+
+    // -- Compaction
+
+    /**
+     * Start a compaction by moving the current journal aside. Records appended afterwards go to a fresh file.
+     * If an earlier compaction failed and left its file behind, the current journal is added to the end of
+     * that one instead, so the next compaction covers both. Must not be called while a compaction is running.
+     */
+    public synchronized void rotate() throws IOException {
+        close();
+        try {
+            if (!rotated.exists()) {
+                if (!file.renameTo(rotated)) {
+                    throw new IOException("Failed to rename " + file + " to " + rotated);
+                }
+            } else if (file.exists()) {
+                appendTo(rotated, file);
+                if (!file.delete()) {
+                    throw new IOException("Failed to delete " + file + " after adding it to " + rotated);
+                }
+            }
+        } finally {
+            open();
+        }
+    }
+
+    private static void appendTo(File dest, File source) throws IOException {
+        // a record torn by a crash mustn't swallow the first one added after it
+        boolean newline = false;
+        if (dest.length() > 0) {
+            RandomAccessFile last = new RandomAccessFile(dest, "r");
+            try {
+                last.seek(dest.length() - 1);
+                newline = last.read() != '\n';
+            } finally {
+                last.close();
+            }
+        }
+
+        FileOutputStream out = new FileOutputStream(dest, true);
+        try {
+            if (newline) {
+                out.write('\n');
+            }
+            InputStream in = new FileInputStream(source);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Finish a compaction once everything in the rotated journal has been written to the configuration.
+     */
+    public synchronized void finishCompaction() throws IOException {
+        if (rotated.exists() && !rotated.delete()) {
+            throw new IOException("Failed to delete " + rotated);
+        }
+    }
+
+    public synchronized Set<String> takeTouchedUsers() {
+        Set<String> result = new HashSet<String>(touchedUsers);
+        touchedUsers.clear();
+        return result;
+    }
+
+    public synchronized boolean takeTouchedBase() {
+        boolean result = touchedBase;
+        touchedBase = false;
+        return result;
+    }
+
+    /**
+     * Put back what a failed compaction took, so the next one writes it out.
+     */
+    public synchronized void restoreTouched(Set<String> users, boolean base) {
+        touchedUsers.addAll(users);
+        touchedBase |= base;
+    }
+
+    // -- Replay
+
+    /**
+     * Apply every record, first from an interrupted compaction and then from the current journal.
+     *
+     * @return The number of records applied.
+     */
+    public synchronized int replay(Target target) throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        return replay(rotated, target) + replay(file, target);
+    }
+
+    private int replay(File from, final Target target) throws IOException {
+        if (!from.isFile()) return 0;
+
+        // remember what the records touch so the next compaction writes it out
+        Target touching = new Target() {
+            public void replaySet(String section, String key, Object value) {
+                target.replaySet(section, key, value);
+                touch(section + "/" + key);
+            }
+
+            public void replayMove(String source, String dest) {
+                target.replayMove(source, dest);
+                touch(source);
+                touch(dest);
+            }
+        };
+
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(from), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // anything unreadable is a torn final write from a crash, skip it
+                if (parse(line, touching)) {
+                    ++count;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    // -- Encoding
+
+    /**
+     * Format a record setting a single value, as stored in the journal.
+     *
+     * @throws IllegalArgumentException If the value is not null, a boolean, a number, a string or a list of strings.
+     */
+    public static String formatSet(String section, String key, Object value) {
+        StringBuilder line = new StringBuilder("S\t");
+        escape(line, section);
+        line.append('\t');
+        escape(line, key);
+        line.append('\t');
+        encode(line, value);
+        return line.toString();
+    }
+
+    /**
+     * Format a record moving a section, as stored in the journal.
+     */
+    public static String formatMove(String from, String to) {
+        StringBuilder line = new StringBuilder("M\t");
+        escape(line, from);
+        line.append('\t');
+        escape(line, to);
+        return line.toString();
+    }
+
+    /**
+     * Parse a single record and apply it to the target.
+     *
+     * @return False if the record was malformed and nothing was applied.
+     */
+    public static boolean parse(String line, Target target) {
+        String[] fields = line.split("\t", -1);
+        try {
+            if (fields[0].equals("S") && fields.length >= 4) {
+                Object value = decode(fields, 3);
+                target.replaySet(unescape(fields[1]), unescape(fields[2]), value);
+                return true;
+            } else if (fields[0].equals("M") && fields.length == 3) {
+                target.replayMove(unescape(fields[1]), unescape(fields[2]));
+                return true;
+            }
+        } catch (NumberFormatException ex) {
+            // malformed number
+        } catch (IOException ex) {
+            // malformed value
+        }
+        return false;
+    }
+
+    private void write(CharSequence line) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        writer.append(line).append('\n');
+        size += utf8Length(line) + 1;
+        unsynced = true;
+    }
+
+    // the number of bytes the writer turns the text into, without encoding it twice
+    private static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void touch(String path) {
+        String[] pieces = path.split("/");
+        if (pieces.length > 1 && pieces[0].equalsIgnoreCase("users")) {
+            touchedUsers.add(pieces[1]);
+        } else {
+            touchedBase = true;
+        }
+    }
+
+    private static void encode(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append('-');
+        } else if (value instanceof Boolean) {
+            out.append((Boolean) value ? 't' : 'f');
+        } else if (value instanceof Integer || value instanceof Long) {
+            out.append('i').append(value);
+        } else if (value instanceof Number) {
+            out.append('d').append(((Number) value).doubleValue());
+        } else if (value instanceof List) {
+            // items are read back as strings, so anything else would come back changed
+            out.append('l');
+            for (Object item : (List<?>) value) {
+                if (!(item instanceof String)) {
+                    throw new IllegalArgumentException("Can't journal a list holding " + (item == null ? "null" : item.getClass().getName()));
+                }
+                out.append('\t');
+                escape(out, (String) item);
+            }
+        } else if (value instanceof String) {
+            out.append('s');
+            escape(out, (String) value);
+        } else {
+            throw new IllegalArgumentException("Can't journal a value of type " + value.getClass().getName());
+        }
+    }
+
+    private static Object decode(String[] fields, int start) throws IOException {
+        String field = fields[start];
+        if (field.length() == 0) {
+            throw new IOException("Empty value in journal record");
+        }
+        switch (field.charAt(0)) {
+            case '-':
+                return null;
+            case 't':
+                return true;
+            case 'f':
+                return false;
+            case 'i':
+                long value = Long.parseLong(field.substring(1));
+                return (value == (int) value) ? (Object) (int) value : (Object) value;
+            case 'd':
+                return Double.parseDouble(field.substring(1));
+            case 'l':
+                List<String> list = new ArrayList<String>(fields.length - start - 1);
+                for (int i = start + 1; i < fields.length; ++i) {
+                    list.add(unescape(fields[i]));
+                }
+                return list;
+            case 's':
+                return unescape(field.substring(1));
+            default:
+                throw new IOException("Unknown value type in journal record: " + field);
+        }
+    }
+
+    private static void escape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) return text;
+
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.platymuus.bukkit.permissions;
+
+/**
+ * A user or group which sets a permission node, and where within it the node is set.
+ * Instances are immutable and may be used from any thread.
+ */
+public final class NodeHolder {
+
+    private final String owner;
+    private final String name;
+    private final String world;
+    private final String context;
+    private final String node;
+    private final boolean value;
+
+    NodeHolder(String owner, String name, String world, String context, String node, boolean value) {
+        this.owner = owner;
+        this.name = name;
+        this.world = world;
+        this.context = context;
+        this.node = node;
+        this.value = value;
+    }
+
+    /**
+     * Gets the configuration path of the user or group, such as "groups/admin" or "users/&lt;uuid&gt;".
+     *
+     * @return The path.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean isGroup() {
+        return owner.startsWith("groups/");
+    }
+
+    /**
+     * Gets the name of the group, or the last known name of the player.
+     *
+     * @return The name, or the player's key in the configuration if their name is not known.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the world the node is set for.
+     *
+     * @return The world, or null if the node is not world-specific.
+     */
+    public String getWorld() {
+        return world;
+    }
+
+    /**
+     * Gets the context condition the node is set under, such as "gamemode=creative".
+     *
+     * @return The condition, or null if the node is not context-qualified.
+     */
+    public String getContext() {
+        return context;
+    }
+
+    /**
+     * Gets the node as written in the configuration.
+     *
+     * @return The node.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    public boolean getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NodeHolder)) return false;
+        NodeHolder other = (NodeHolder) o;
+        return owner.equals(other.owner) && node.equals(other.node) && value == other.value
+                && (world == null ? other.world == null : world.equals(other.world))
+                && (context == null ? other.context == null : context.equals(other.context));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = owner.hashCode() * 31 + node.hashCode();
+        result = result * 31 + (world != null ? world.hashCode() : 0);
+        result = result * 31 + (context != null ? context.hashCode() : 0);
+        return result * 2 + (value ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "NodeHolder{owner=" + owner + ", node=" + node + "=" + value
+                + (world != null ? ", world=" + world : "") + (context != null ? ", context=" + context : "") + "}";
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index from each permission node to the users and groups which set it, kept up to date as entries
+ * change, so finding who sets a node or any node under a prefix never walks the configuration. Nodes are
+ * kept in order, in lowercase, so a prefix is a range of the index. Changed only from the global thread,
+ * but safe to search from any thread.
+ */
+final class NodeIndex {
+
+    private static final Comparator<NodeHolder> BY_OWNER = new Comparator<NodeHolder>() {
+        public int compare(NodeHolder a, NodeHolder b) {
+            return a.getOwner().compareToIgnoreCase(b.getOwner());
+        }
+    };
+
+    private final ConcurrentSkipListMap<String, Set<NodeHolder>> nodes = new ConcurrentSkipListMap<String, Set<NodeHolder>>();
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    /**
+     * Account for a user entry being replaced. Either side may be null.
+     */
+    public void updateUser(String key, PermissionInfo old, PermissionInfo info) {
+        update("users/" + key, key, old, info);
+    }
+
+    /**
+     * Account for a group entry being replaced. Either side may be null.
+     */
+    public void updateGroup(String name, PermissionInfo old, PermissionInfo info) {
+        update("groups/" + name, name, old, info);
+    }
+
+    private void update(String owner, String key, PermissionInfo old, PermissionInfo info) {
+        if (old == info) return;
+        if (old != null) {
+            String name = (old.getName() != null) ? old.getName() : key;
+            for (NodeHolder holder : holders(owner, name, old)) {
+                Set<NodeHolder> set = nodes.get(holder.getNode().toLowerCase());
+                if (set != null) {
+                    set.remove(holder);
+                    if (set.isEmpty()) {
+                        nodes.remove(holder.getNode().toLowerCase(), set);
+                    }
+                }
+            }
+        }
+        if (info != null) {
+            String name = (info.getName() != null) ? info.getName() : key;
+            for (NodeHolder holder : holders(owner, name, info)) {
+                String node = holder.getNode().toLowerCase();
+                Set<NodeHolder> set = nodes.get(node);
+                if (set == null) {
+                    set = Collections.newSetFromMap(new ConcurrentHashMap<NodeHolder, Boolean>());
+                    nodes.put(node, set);
+                }
+                set.add(holder);
+            }
+        }
+    }
+
+    private static List<NodeHolder> holders(String owner, String name, PermissionInfo info) {
+        List<NodeHolder> result = new ArrayList<NodeHolder>();
+        for (Map.Entry<String, Boolean> entry : info.getPermissions().entrySet()) {
+            result.add(new NodeHolder(owner, name, null, null, entry.getKey(), entry.getValue()));
+        }
+        for (String world : info.getWorlds()) {
+            for (Map.Entry<String, Boolean> entry : info.getWorldPermissions(world).entrySet()) {
+                result.add(new NodeHolder(owner, name, world, null, entry.getKey(), entry.getValue()));
+            }
+        }
+        for (ContextRule rule : info.getContextRules()) {
+            for (Map.Entry<String, Boolean> entry : rule.getPermissions().entrySet()) {
+                result.add(new NodeHolder(owner, name, null, rule.getLabel(), entry.getKey(), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    // -- Searching
+
+    /**
+     * Find everyone who sets a node, ignoring case.
+     *
+     * @param prefix Whether to also find every node starting with the given text.
+     * @return The holders, sorted by node and then by owner.
+     */
+    public List<NodeHolder> find(String node, boolean prefix) {
+        String lower = node.toLowerCase();
+        Collection<Set<NodeHolder>> found;
+        if (prefix) {
+            found = nodes.subMap(lower, true, lower + Character.MAX_VALUE, false).values();
+        } else {
+            Set<NodeHolder> set = nodes.get(lower);
+            found = (set != null) ? Collections.singletonList(set) : Collections.<Set<NodeHolder>>emptyList();
+        }
+
+        List<NodeHolder> result = new ArrayList<NodeHolder>();
+        for (Set<NodeHolder> set : found) {
+            List<NodeHolder> holders = new ArrayList<NodeHolder>(set);
+            Collections.sort(holders, BY_OWNER);
+            result.addAll(holders);
+        }
+        return result;
+    }
+
+}
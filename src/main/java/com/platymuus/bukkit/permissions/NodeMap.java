@@ -0,0 +1,110 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * An immutable map of nodes to values in a fixed order, held in two parallel arrays with an open-addressed
+ * index over them. Several times smaller than the equivalent LinkedHashMap, and built with three allocations
+ * however many nodes it has.
+ */
+final class NodeMap extends AbstractMap<String, Boolean> {
+
+    private final String[] keys;
+    private final boolean[] values;
+    // position + 1 of the key in each slot, or 0 for an empty slot
+    private final int[] index;
+
+    /**
+     * Wrap the given arrays, which must not be changed afterwards and must not contain the same key twice.
+     */
+    NodeMap(String[] keys, boolean[] values) {
+        this.keys = keys;
+        this.values = values;
+
+        int capacity = 2;
+        while (capacity < keys.length * 2) {
+            capacity <<= 1;
+        }
+        index = new int[capacity];
+        for (int i = 0; i < keys.length; ++i) {
+            int slot = slotOf(keys[i]);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            index[slot] = i + 1;
+        }
+    }
+
+    private int slotOf(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (index.length - 1);
+    }
+
+    /**
+     * Get the position of a key, or -1 if it is not in the map.
+     */
+    public int indexOf(Object key) {
+        if (key == null) return -1;
+        for (int slot = slotOf(key); index[slot] != 0; slot = (slot + 1) & (index.length - 1)) {
+            int i = index[slot] - 1;
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String keyAt(int i) {
+        return keys[i];
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Boolean get(Object key) {
+        int i = indexOf(key);
+        return (i < 0) ? null : Boolean.valueOf(values[i]);
+    }
+
+    @Override
+    public Set<Entry<String, Boolean>> entrySet() {
+        return new AbstractSet<Entry<String, Boolean>>() {
+            @Override
+            public int size() {
+                return keys.length;
+            }
+
+            @Override
+            public Iterator<Entry<String, Boolean>> iterator() {
+                return new Iterator<Entry<String, Boolean>>() {
+                    private int next = 0;
+
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    public Entry<String, Boolean> next() {
+                        if (next >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new SimpleImmutableEntry<String, Boolean>(keys[i], values[i]);
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+}
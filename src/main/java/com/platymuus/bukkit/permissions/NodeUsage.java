@@ -0,0 +1,328 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissibleBase;
+import org.bukkit.permissions.Permission;
+import org.bukkit.permissions.PermissionAttachmentInfo;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds out which configured nodes are ever used. A sample of players have the map their permissions are
+ * looked up in swapped for one which notes every node asked about; nodes which are asked about, or which
+ * some plugin registers, are in use. Once sampling has run for long enough, the rest can be left out of
+ * attachments entirely, while staying in the configuration - but only while every online player is being
+ * sampled, since a node left out for a player nobody is watching would never be noticed and put back.
+ */
+final class NodeUsage {
+
+    // sampling must have gone on this long, in seconds, before anything is left out of attachments
+    private static final long STRIP_AFTER = 86400;
+    // nodes nobody configures can be asked about too, so don't remember an unlimited number
+    private static final int MAX_NODES = 100000;
+
+    private final PermissionsPlugin plugin;
+    private final File file;
+    private final Map<String, Boolean> queried = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger sampled = new AtomicInteger();
+    // online players whose checks aren't being noted
+    private final Set<UUID> unsampled = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    // set once there were too many nodes to remember them all, after which none are left out
+    private volatile boolean full = false;
+    private volatile long since = 0;
+    private volatile boolean dirty = false;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    private volatile int percent = 0;
+    private volatile boolean strip = false;
+
+    public NodeUsage(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "node-usage.txt");
+    }
+
+    public void configure(int percent, boolean strip) {
+        this.percent = Math.max(0, Math.min(100, percent));
+        this.strip = strip;
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    // -- Sampling
+
+    /**
+     * Maybe start noting which nodes a newly registered player is asked about.
+     */
+    public void sample(Player player) {
+        if (watch(player)) {
+            unsampled.remove(player.getUniqueId());
+        } else {
+            unsampled.add(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Forget about a player who is leaving.
+     */
+    public void forget(Player player) {
+        unsampled.remove(player.getUniqueId());
+    }
+
+    // returns whether the player's checks are being noted
+    private boolean watch(Player player) {
+        if (percent == 0 || ThreadLocalRandom.current().nextInt(100) >= percent) return false;
+        try {
+            Field field = InjectedPermissible.findBaseField(player);
+            if (field == null) return false;
+            PermissibleBase base = (PermissibleBase) field.get(player);
+            if (base instanceof InjectedPermissible) {
+                // an injected permissible sees every check already
+                ((InjectedPermissible) base).setRecorder(this);
+            } else {
+                Field mapField = InjectedPermissible.getMapField();
+                @SuppressWarnings("unchecked")
+                Map<String, PermissionAttachmentInfo> map = (Map<String, PermissionAttachmentInfo>) mapField.get(base);
+                if (map instanceof RecordingMap) return true;
+                mapField.set(base, new RecordingMap(map));
+            }
+        } catch (Exception ex) {
+            plugin.getLogger().warning("Could not sample node usage, turning sampling off: " + ex);
+            percent = 0;
+            return false;
+        }
+
+        if (since == 0) {
+            since = ExpiryTracker.now();
+            dirty = true;
+        }
+        sampled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Note that a player was asked about a node, given in lowercase.
+     */
+    void record(String node) {
+        if (queried.containsKey(node)) return;
+        if (queried.size() >= MAX_NODES) {
+            if (!full) {
+                // a node which may have been left out can't be noted, so stop leaving any out
+                boolean wasStripping = isStripping();
+                full = true;
+                plugin.getLogger().warning("More than " + MAX_NODES + " different nodes have been checked; no longer leaving unused nodes out of attachments");
+                if (wasStripping) refreshAll();
+            }
+            return;
+        }
+        queried.put(node, Boolean.TRUE);
+        dirty = true;
+
+        // a node which was being left out turns out to be wanted, so put it back for everyone
+        if (isStripping()) {
+            refreshAll();
+        }
+    }
+
+    private void refreshAll() {
+        if (refreshPending.compareAndSet(false, true)) {
+            plugin.getPlatformScheduler().runGlobal(new Runnable() {
+                public void run() {
+                    refreshPending.set(false);
+                    plugin.refreshPermissions();
+                }
+            });
+        }
+    }
+
+    // -- Stripping
+
+    public boolean isStripping() {
+        return strip && !full && unsampled.isEmpty() && since > 0 && ExpiryTracker.now() - since >= STRIP_AFTER;
+    }
+
+    /**
+     * Check whether a configured node should go in attachments.
+     */
+    public boolean isUsed(String node) {
+        String name = node.toLowerCase();
+        return queried.containsKey(name) || plugin.getServer().getPluginManager().getPermission(name) != null;
+    }
+
+    // -- Reporting
+
+    /**
+     * Describe how many configured nodes are in use. Registered permissions must be collected on the
+     * main thread, but the rest can be done anywhere.
+     */
+    public List<String> report(PermissionsSnapshot snapshot, Set<String> registered) {
+        Set<String> configured = new HashSet<String>();
+        for (PermissionInfo info : snapshot.getGroups()) {
+            collect(info, configured);
+        }
+        addLower(snapshot.getUserNodes(), configured);
+        for (PermissionInfo info : snapshot.getLegacyUsers().values()) {
+            collect(info, configured);
+        }
+
+        Map<String, Integer> deadRoots = new HashMap<String, Integer>();
+        int dead = 0;
+        for (String node : configured) {
+            if (!queried.containsKey(node) && !registered.contains(node)) {
+                dead++;
+                int dot = node.indexOf('.');
+                String root = (dot < 0) ? node : node.substring(0, dot);
+                Integer count = deadRoots.get(root);
+                deadRoots.put(root, (count == null) ? 1 : count + 1);
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        if (since == 0) {
+            result.add("No players sampled yet" + (percent == 0 ? ", and sampling is off." : "."));
+        } else {
+            long hours = (ExpiryTracker.now() - since) / 3600;
+            result.add(sampled.get() + " players sampled this run, " + queried.size() + " nodes seen in " + hours + " hours of sampling" + (percent == 0 ? " (now off)." : "."));
+        }
+        result.add(configured.size() + " configured nodes: " + (configured.size() - dead) + " in use, " + dead + " never checked by a sampled player or registered.");
+        if (strip) {
+            if (full) {
+                result.add("Too many different nodes were checked to remember them all, so none are being left out of attachments.");
+            } else if (!unsampled.isEmpty()) {
+                result.add(unsampled.size() + " online players aren't sampled, so no nodes are being left out of attachments.");
+            } else {
+                result.add(isStripping() ? "Unused nodes are being left out of attachments." : "Unused nodes will be left out of attachments after a day of sampling.");
+            }
+        }
+
+        List<Map.Entry<String, Integer>> roots = new ArrayList<Map.Entry<String, Integer>>(deadRoots.entrySet());
+        Collections.sort(roots, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        for (Map.Entry<String, Integer> root : roots.subList(0, Math.min(roots.size(), 8))) {
+            result.add("  " + root.getKey() + ".*: " + root.getValue() + " unused");
+        }
+        return result;
+    }
+
+    private static void collect(PermissionInfo info, Set<String> nodes) {
+        addLower(info.getPermissions().keySet(), nodes);
+        for (String world : info.getWorlds()) {
+            addLower(info.getWorldPermissions(world).keySet(), nodes);
+        }
+        for (ContextRule rule : info.getContextRules()) {
+            addLower(rule.getPermissions().keySet(), nodes);
+        }
+    }
+
+    private static void addLower(Collection<String> from, Set<String> to) {
+        for (String node : from) {
+            to.add(node.toLowerCase());
+        }
+    }
+
+    /**
+     * Collect the names of every registered permission and their children. Must be called from the main thread.
+     */
+    public Set<String> registeredNodes() {
+        Set<String> result = new HashSet<String>();
+        for (Permission perm : plugin.getServer().getPluginManager().getPermissions()) {
+            result.add(perm.getName().toLowerCase());
+            for (String child : perm.getChildren().keySet()) {
+                result.add(child.toLowerCase());
+            }
+        }
+        return result;
+    }
+
+    // -- Storage
+
+    /**
+     * Forget everything seen so far and start again.
+     */
+    public void reset() {
+        queried.clear();
+        sampled.set(0);
+        since = 0;
+        full = false;
+        dirty = true;
+    }
+
+    public void load() throws IOException {
+        queried.clear();
+        since = 0;
+        full = false;
+        if (!file.isFile()) return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line != null && line.startsWith("since\t")) {
+                try {
+                    since = Long.parseLong(line.substring(6));
+                } catch (NumberFormatException ex) {
+                    // leave it unknown
+                }
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    queried.put(line, Boolean.TRUE);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Write the nodes seen out if there are any new ones. Safe to call from any thread.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        dirty = false;
+
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            writer.write("since\t" + since + "\n");
+            for (String node : queried.keySet()) {
+                writer.write(node + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                dirty = true;
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    // Bukkit checks a node with containsKey before getting its value, so that's all that needs watching
+    private final class RecordingMap extends HashMap<String, PermissionAttachmentInfo> {
+        RecordingMap(Map<String, PermissionAttachmentInfo> contents) {
+            super(contents);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (key instanceof String) {
+                record((String) key);
+            }
+            return super.containsKey(key);
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.permissions.PermissionAttachmentInfo;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Output for the read-only commands, worked out on the plugin's worker threads and sent a page at a time.
+ * A sorted dump is kept for each permissible until the configuration changes or a minute passes, so
+ * paging through one costs nothing.
+ */
+final class PagedReplies {
+
+    public static final int PAGE_SIZE = 8;
+    private static final long DUMP_LIFETIME = 60000;
+
+    private final PermissionsPlugin plugin;
+    private final Map<String, Dump> dumps = new ConcurrentHashMap<String, Dump>();
+
+    public PagedReplies(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Run part of a command in the background, telling the sender if it goes wrong.
+     */
+    public void run(final CommandSender sender, final Runnable task) {
+        plugin.getAsyncExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    sender.sendMessage(ChatColor.RED + "Command failed, see the console for more details");
+                    sender.sendMessage(ChatColor.RED + e.toString());
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public static int pageCount(int size) {
+        return Math.max(1, 1 + (size - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * Bring a page number into range for a list of the given size.
+     */
+    public static int clampPage(int page, int size) {
+        return Math.max(1, Math.min(page, pageCount(size)));
+    }
+
+    public static String header(int page, int size) {
+        return ChatColor.RED + "[==== " + ChatColor.GREEN + "Page " + page + " of " + pageCount(size) + ChatColor.RED + " ====]";
+    }
+
+    /**
+     * Send one page of lines, with a page header if there is more than one page.
+     *
+     * @param page The page to send, counting from 1. Out-of-range pages are clamped.
+     */
+    public static void sendPage(CommandSender sender, List<String> lines, int page) {
+        page = clampPage(page, lines.size());
+        if (pageCount(lines.size()) > 1) {
+            sender.sendMessage(header(page, lines.size()));
+        }
+        int start = PAGE_SIZE * (page - 1);
+        for (int i = start; i < start + PAGE_SIZE && i < lines.size(); ++i) {
+            sender.sendMessage(lines.get(i));
+        }
+    }
+
+    /**
+     * Parse a page number, or return 0 if the argument isn't one.
+     */
+    public static int parsePage(String arg) {
+        try {
+            return Math.max(1, Integer.parseInt(arg));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    // -- Dumps
+
+    /**
+     * Get a permissible's sorted dump if it is still fresh, or null.
+     */
+    public List<PermissionAttachmentInfo> getDump(String key) {
+        Dump dump = dumps.get(key);
+        if (dump == null || dump.version != plugin.getSnapshot().getVersion() || System.currentTimeMillis() - dump.time > DUMP_LIFETIME) {
+            return null;
+        }
+        return dump.infos;
+    }
+
+    /**
+     * Sort a permissible's effective permissions, as collected from the thread which owns it, and keep them.
+     */
+    public List<PermissionAttachmentInfo> sortDump(String key, long version, Collection<PermissionAttachmentInfo> effective) {
+        List<PermissionAttachmentInfo> sorted = new ArrayList<PermissionAttachmentInfo>(effective);
+        Collections.sort(sorted, new Comparator<PermissionAttachmentInfo>() {
+            public int compare(PermissionAttachmentInfo a, PermissionAttachmentInfo b) {
+                return a.getPermission().compareTo(b.getPermission());
+            }
+        });
+        sorted = Collections.unmodifiableList(sorted);
+
+        // drop whatever has gone stale while here, so viewers who leave don't pile up
+        long now = System.currentTimeMillis();
+        for (Iterator<Dump> it = dumps.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().time > DUMP_LIFETIME) {
+                it.remove();
+            }
+        }
+        dumps.put(key, new Dump(version, now, sorted));
+        return sorted;
+    }
+
+    private static final class Dump {
+        final long version;
+        final long time;
+        final List<PermissionAttachmentInfo> infos;
+
+        Dump(long version, long time, List<PermissionAttachmentInfo> infos) {
+            this.version = version;
+            this.time = time;
+            this.infos = infos;
+        }
+    }
+
+}
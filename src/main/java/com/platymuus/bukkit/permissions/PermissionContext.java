@@ -0,0 +1,101 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * The circumstances a player's permissions are resolved in, as named keys with values, such as
+ * world=world_nether or gamemode=creative. Keys and values are kept in lowercase. Immutable.
+ */
+final class PermissionContext {
+
+    public static final String WORLD = "world";
+    public static final String GAMEMODE = "gamemode";
+
+    private final SortedMap<String, String> values;
+
+    private PermissionContext(SortedMap<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * Make a context from the server's own contexts and the given world.
+     */
+    public static PermissionContext of(Map<String, String> base, String world) {
+        SortedMap<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : base.entrySet()) {
+            values.put(entry.getKey().toLowerCase(), entry.getValue().toLowerCase());
+        }
+        values.put(WORLD, world.toLowerCase());
+        return new PermissionContext(values);
+    }
+
+    public PermissionContext with(String key, String value) {
+        SortedMap<String, String> copy = new TreeMap<String, String>(values);
+        copy.put(key.toLowerCase(), value.toLowerCase());
+        return new PermissionContext(copy);
+    }
+
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    public String getWorld() {
+        return values.get(WORLD);
+    }
+
+    /**
+     * Check whether every key=value pair in a condition holds in this context.
+     */
+    public boolean matches(Map<String, String> condition) {
+        for (Map.Entry<String, String> entry : condition.entrySet()) {
+            if (!entry.getValue().equals(values.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describe only the given keys of this context, so that contexts which differ in nothing else describe the same.
+     */
+    public String project(Set<String> keys) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (keys.contains(entry.getKey())) {
+                result.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Parse a condition such as "gamemode=creative,server=lobby".
+     *
+     * @return The pairs in the condition, or null if it is malformed.
+     */
+    public static Map<String, String> parseCondition(String text) {
+        Map<String, String> result = new TreeMap<String, String>();
+        for (String part : text.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq <= 0 || eq == part.length() - 1) {
+                return null;
+            }
+            result.put(part.substring(0, eq).trim().toLowerCase(), part.substring(eq + 1).trim().toLowerCase());
+        }
+        return result;
+    }
+
+    /**
+     * Get the section a node prefixed with "qualifier:" belongs in, relative to its user or group:
+     * a world's section, or for a condition such as "gamemode=creative", a context's.
+     */
+    public static String sectionFor(String qualifier) {
+        return (qualifier.indexOf('=') >= 0 ? "contexts/" : "worlds/") + qualifier;
+    }
+
+    @Override
+    public String toString() {
+        return project(values.keySet());
+    }
+
+}
@@ -1,71 +1,141 @@
 package com.platymuus.bukkit.permissions;
 
-import org.bukkit.configuration.ConfigurationSection;
-
 import java.util.*;
 
 /**
- * A class representing the global and world nodes attached to a player or group.
+ * A class representing the global, world and context nodes attached to a player or group.
+ * Instances are immutable and may be used from any thread.
  */
 public final class PermissionInfo {
 
     private final PermissionsPlugin plugin;
-    private final ConfigurationSection node;
-    private final String groupType;
+    private final String name;
+    private final List<String> groups;
+    private final Map<String, Boolean> permissions;
+    private final Map<String, Map<String, Boolean>> worlds;
+    private final List<ContextRule> contexts;
+
+    // the groups as last looked up
+    private volatile GroupViews.Resolved resolved;
 
-    PermissionInfo(PermissionsPlugin plugin, ConfigurationSection node, String groupType) {
+    PermissionInfo(PermissionsPlugin plugin, String name, List<String> groups, Map<String, Boolean> permissions, Map<String, Map<String, Boolean>> worlds, List<ContextRule> contexts) {
         this.plugin = plugin;
-        this.node = node;
-        this.groupType = groupType;
+        this.name = name;
+        this.groups = groups;
+        this.permissions = permissions;
+        this.worlds = worlds;
+        this.contexts = contexts;
+    }
+
+    PermissionsPlugin getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * Gets the name of this group, or the last known name of this player.
+     *
+     * @return The name, or null for a player whose name is not known.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the names of the groups this group/player inherits permissions from, as written in the configuration.
+     *
+     * @return The list of group names.
+     */
+    List<String> getGroupNames() {
+        return groups;
+    }
+
+    /**
+     * Gets the context-qualified nodes of this group/player, in configuration order.
+     *
+     * @return The list of rules.
+     */
+    List<ContextRule> getContextRules() {
+        return contexts;
     }
 
     /**
      * Gets the list of groups this group/player inherits permissions from.
      *
-     * @return The list of groups.
+     * @return The unmodifiable list of groups.
      */
     public List<Group> getGroups() {
-        ArrayList<Group> result = new ArrayList<Group>();
-
-        for (String key : node.getStringList(groupType)) {
-            Group group = plugin.getGroup(key);
-            if (group != null) {
-                result.add(group);
-            }
+        GroupViews views = plugin.getGroupViews();
+        GroupViews.Resolved result = resolved;
+        if (result == null || result.views != views) {
+            result = new GroupViews.Resolved(views, views.resolve(groups));
+            resolved = result;
         }
-
-        return result;
+        return result.groups;
     }
 
     /**
      * Gets a map of non-world-specific permission nodes to boolean values that this group/player defines.
      *
-     * @return The map of permissions.
+     * @return The unmodifiable map of permissions.
      */
     public Map<String, Boolean> getPermissions() {
-        return plugin.getAllPerms(node.getName(), node.getCurrentPath());
+        return permissions;
     }
 
     /**
      * Gets a list of worlds this group/player defines world-specific permissions for.
      *
-     * @return The list of worlds.
+     * @return The set of worlds.
      */
     public Set<String> getWorlds() {
-        if (node.getConfigurationSection("worlds") == null) {
-            return new HashSet<String>();
-        }
-        return node.getConfigurationSection("worlds").getKeys(false);
+        return worlds.keySet();
     }
 
     /**
      * Gets a map of world-specific permission nodes to boolean values that this group/player defines.
      *
      * @param world The name of the world.
-     * @return The map of permissions.
+     * @return The unmodifiable map of permissions, empty if there are none.
      */
     public Map<String, Boolean> getWorldPermissions(String world) {
-        return plugin.getAllPerms(node.getName() + ":" + world, node.getName() + "/world/" + world);
+        Map<String, Boolean> result = worlds.get(world);
+        if (result == null) {
+            for (Map.Entry<String, Map<String, Boolean>> entry : worlds.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(world)) {
+                    return entry.getValue();
+                }
+            }
+            return Collections.emptyMap();
+        }
+        return result;
+    }
+
+    /**
+     * Gets a list of the context conditions, such as "gamemode=creative", this group/player defines permissions for.
+     *
+     * @return The list of conditions, as written in the configuration.
+     */
+    public List<String> getContexts() {
+        List<String> result = new ArrayList<String>();
+        for (ContextRule rule : contexts) {
+            result.add(rule.getLabel());
+        }
+        return result;
+    }
+
+    /**
+     * Gets a map of context-qualified permission nodes to boolean values that this group/player defines.
+     *
+     * @param context The condition, as written in the configuration.
+     * @return The unmodifiable map of permissions, empty if there are none.
+     */
+    public Map<String, Boolean> getContextPermissions(String context) {
+        for (ContextRule rule : contexts) {
+            if (rule.getLabel().equalsIgnoreCase(context)) {
+                return rule.getPermissions();
+            }
+        }
+        return Collections.emptyMap();
     }
 
 }
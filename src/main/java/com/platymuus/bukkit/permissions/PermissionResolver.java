@@ -0,0 +1,355 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.PluginManager;
+
+import java.util.*;
+
+/**
+ * Resolves a player's effective permissions from a snapshot, without needing the player to be online.
+ * Results are kept in a bounded LRU cache and are thrown away whenever a new snapshot is published.
+ * Cache entries are keyed by what the result can actually depend on: players whose own entry holds
+ * nothing but groups share entries, and only the context keys their groups refer to are part of the key,
+ * so switching gamemode with no gamemode rules in play finds the very same map.
+ */
+final class PermissionResolver {
+
+    private static final int CACHE_SIZE = 1024;
+
+    private final PermissionsPlugin plugin;
+
+    private final Map<String, Resolved> cache = new LinkedHashMap<String, Resolved>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // the context keys each signature's rules refer to, guarded by the cache's lock
+    private final Map<String, ContextKeys> contextKeys = new LinkedHashMap<String, ContextKeys>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ContextKeys> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // resolutions run on the main thread and the worker threads, each with its own scratch space
+    private final ThreadLocal<LayerMerger> mergers = new ThreadLocal<LayerMerger>() {
+        @Override
+        protected LayerMerger initialValue() {
+            return new LayerMerger();
+        }
+    };
+
+    public PermissionResolver(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Get the nodes the plugin would set on a player's attachment in the given world, in application order.
+     */
+    public Map<String, Boolean> getEffectivePermissions(UUID player, String world) {
+        return resolve(player, plugin.contextFor(world)).permissions;
+    }
+
+    /**
+     * Get the nodes the plugin would set on a player's attachment in the given context, in application order.
+     * The same map is returned for as long as the result would not change.
+     */
+    public Map<String, Boolean> getEffectivePermissions(UUID player, PermissionContext context) {
+        return resolve(player, context).permissions;
+    }
+
+    /**
+     * Get a player's nodes in the given context with the children of registered permissions filled in, keyed
+     * in lowercase, as Bukkit would work them out. Players who resolve alike share the same map.
+     */
+    public Map<String, Boolean> getExpandedPermissions(UUID player, PermissionContext context) {
+        return resolve(player, context).expanded;
+    }
+
+    /**
+     * Check a node against a player's resolved permissions, expanding the children of registered permissions
+     * the same way Bukkit does. Nodes which are not set fall back to their registered non-op default.
+     */
+    public boolean hasPermission(UUID player, String node, String world) {
+        String name = node.toLowerCase();
+        Boolean value = resolve(player, plugin.contextFor(world)).expanded.get(name);
+        if (value != null) {
+            return value;
+        }
+
+        Permission perm = plugin.getServer().getPluginManager().getPermission(name);
+        if (perm != null) {
+            return perm.getDefault().getValue(false);
+        }
+        return Permission.DEFAULT_PERMISSION.getValue(false);
+    }
+
+    /**
+     * Get where each of a player's nodes in the given world came from.
+     */
+    public Provenance getProvenance(UUID player, String world) {
+        return getProvenance(player, plugin.contextFor(world));
+    }
+
+    /**
+     * Get where each of a player's nodes in the given context came from. Only commands ask this, so rather
+     * than keeping a record of every write for every cached result, the player is resolved again to find out.
+     */
+    public Provenance getProvenance(UUID player, PermissionContext context) {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
+        LayerMerger merger = calculatePermissions(snapshot, snapshot.getUser(player), context);
+        NodeMap perms = merger.toMap();
+        Provenance provenance = merger.toProvenance(perms);
+        expand(perms, provenance);
+        return provenance;
+    }
+
+    /**
+     * Get the value a player's resolved permissions give a node, including children, or null if it is not set.
+     */
+    public Boolean getValue(UUID player, String node, String world) {
+        return resolve(player, plugin.contextFor(world)).expanded.get(node.toLowerCase());
+    }
+
+    /**
+     * Get every node a player's entry sets in a world, including children, against a fixed snapshot and without
+     * touching the cache, for bulk jobs which would otherwise flush it. A null entry resolves like the default group.
+     */
+    public Map<String, Boolean> getExpandedPermissions(PermissionsSnapshot snapshot, PermissionInfo info, String world) {
+        LayerMerger merger = calculatePermissions(snapshot, info, plugin.contextFor(world));
+        return expand(merger.toMap(), null);
+    }
+
+    /**
+     * Expand a player's nodes again against the permissions registered now, for when Bukkit recalculates
+     * because one was registered or removed. The shared result is replaced if anything came out different.
+     */
+    public Map<String, Boolean> reexpand(UUID player, PermissionContext context) {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
+        Resolved current = resolve(player, context);
+        Map<String, Boolean> expanded = expand(current.permissions, null);
+        if (expanded.equals(current.expanded)) {
+            return current.expanded;
+        }
+
+        Resolved result = new Resolved(current.version, current.permissions, Collections.unmodifiableMap(expanded));
+        synchronized (cache) {
+            String key = keyOf(snapshot, player, context);
+            if (cache.get(key) == current) {
+                cache.put(key, result);
+            }
+        }
+        return result.expanded;
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            contextKeys.clear();
+        }
+    }
+
+    // -- Resolution
+
+    private Resolved resolve(UUID player, PermissionContext context) {
+        PermissionsSnapshot snapshot = plugin.getSnapshot();
+
+        // the entry is only put back together if there is nothing to share
+        String key;
+        synchronized (cache) {
+            key = keyOf(snapshot, player, context);
+            Resolved cached = cache.get(key);
+            if (cached != null && cached.version == snapshot.getVersion()) {
+                return cached;
+            }
+        }
+
+        PermissionInfo info = snapshot.getUser(player);
+        LayerMerger merger = calculatePermissions(snapshot, info, context);
+        NodeMap perms = merger.toMap();
+        Resolved result = new Resolved(snapshot.getVersion(), perms, Collections.unmodifiableMap(expand(perms, null)));
+
+        synchronized (cache) {
+            // don't let a slow resolution against an old snapshot replace a newer one
+            Resolved cached = cache.get(key);
+            if (cached == null || cached.version < result.version) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    // must be called holding the cache's lock, which also guards the context keys
+    private String keyOf(PermissionsSnapshot snapshot, UUID player, PermissionContext context) {
+        String signature = snapshot.getUserSignature(player);
+        return signature + "|" + context.project(getContextKeys(snapshot, signature, player));
+    }
+
+    private Set<String> getContextKeys(PermissionsSnapshot snapshot, String signature, UUID player) {
+        ContextKeys cached = contextKeys.get(signature);
+        if (cached != null && cached.version == snapshot.getVersion()) {
+            return cached.keys;
+        }
+
+        PermissionInfo info = snapshot.getUser(player);
+        Set<String> keys = new HashSet<String>();
+        Set<String> visited = new HashSet<String>();
+        if (info == null) {
+            collectContextKeys(snapshot, snapshot.getGroup("default"), keys, visited);
+        } else {
+            collectContextKeys(snapshot, info, keys, visited);
+        }
+        contextKeys.put(signature, new ContextKeys(snapshot.getVersion(), keys));
+        return keys;
+    }
+
+    private static void collectContextKeys(PermissionsSnapshot snapshot, PermissionInfo info, Set<String> keys, Set<String> visited) {
+        if (info == null) return;
+        if (!info.getWorlds().isEmpty()) {
+            keys.add(PermissionContext.WORLD);
+        }
+        for (ContextRule rule : info.getContextRules()) {
+            keys.addAll(rule.getCondition().keySet());
+        }
+        for (String group : info.getGroupNames()) {
+            if (visited.add(group.toLowerCase())) {
+                collectContextKeys(snapshot, snapshot.getGroup(group), keys, visited);
+            }
+        }
+    }
+
+    // the result is left in this thread's merger, until its next use
+    private LayerMerger calculatePermissions(PermissionsSnapshot snapshot, PermissionInfo info, PermissionContext context) {
+        LayerMerger merger = mergers.get();
+        merger.reset();
+
+        // if the player isn't in the config, act like they're in default
+        if (info == null) {
+            applyGroup(snapshot, "default", context, merger);
+            return merger;
+        }
+
+        // first, apply the player's groups
+        // later groups override earlier groups
+        for (String group : info.getGroupNames()) {
+            merger.getVisited().clear();
+            applyGroup(snapshot, group, context, merger);
+        }
+
+        // now apply user-specific permissions
+        merger.apply(info.getPermissions(), "user", null, null, null);
+
+        // now apply world- and user-specific permissions
+        String world = context.getWorld();
+        merger.apply(info.getWorldPermissions(world), "user", null, "world", world);
+
+        // and finally, any of the user's context rules which hold
+        applyContexts(info, context, null, merger);
+
+        return merger;
+    }
+
+    // layers are written straight into the player's merger in order, which gives the same result as
+    // building each group's map and merging it in, without the intermediate maps
+    private void applyGroup(PermissionsSnapshot snapshot, String group, PermissionContext context, LayerMerger merger) {
+        PermissionInfo info = snapshot.getGroup(group);
+
+        // if the group's not in the config, nothing
+        if (info == null) {
+            return;
+        }
+
+        Set<String> recursionBuffer = merger.getVisited();
+        recursionBuffer.add(group);
+
+        // first apply any parent groups (see calculatePermissions for more)
+        for (String parent : info.getGroupNames()) {
+            if (recursionBuffer.contains(parent)) {
+                plugin.getLogger().warning("In group " + group + ": recursive inheritance from " + parent);
+                continue;
+            }
+
+            applyGroup(snapshot, parent, context, merger);
+        }
+
+        // now apply the group's permissions
+        merger.apply(info.getPermissions(), "group", group, null, null);
+
+        // now apply world-specific permissions
+        String world = context.getWorld();
+        merger.apply(info.getWorldPermissions(world), "group", group, "world", world);
+
+        // now apply context-specific permissions
+        applyContexts(info, context, group, merger);
+    }
+
+    // with a null group, the rules are the user's
+    private static void applyContexts(PermissionInfo info, PermissionContext context, String group, LayerMerger merger) {
+        for (ContextRule rule : info.getContextRules()) {
+            if (context.matches(rule.getCondition())) {
+                merger.apply(rule.getPermissions(), group == null ? "user" : "group", group, "context", rule.getLabel());
+            }
+        }
+    }
+
+    // mirror of PermissibleBase's child calculation, so offline checks agree with online ones,
+    // noting where children came from if given somewhere to
+    private Map<String, Boolean> expand(Map<String, Boolean> perms, Provenance provenance) {
+        PluginManager manager = plugin.getServer().getPluginManager();
+        Map<String, Boolean> result = new HashMap<String, Boolean>(perms.size() * 2);
+        for (Map.Entry<String, Boolean> entry : perms.entrySet()) {
+            String name = entry.getKey().toLowerCase();
+            result.put(name, entry.getValue());
+            if (provenance != null) {
+                provenance.child(name, null);
+            }
+
+            Permission perm = manager.getPermission(name);
+            if (perm != null) {
+                expandChildren(manager, result, name, perm.getChildren(), !entry.getValue(), new HashSet<String>(), provenance);
+            }
+        }
+        return result;
+    }
+
+    private void expandChildren(PluginManager manager, Map<String, Boolean> result, String parent, Map<String, Boolean> children, boolean invert, Set<String> visited, Provenance provenance) {
+        for (Map.Entry<String, Boolean> entry : children.entrySet()) {
+            String name = entry.getKey().toLowerCase();
+            boolean value = entry.getValue() ^ invert;
+            result.put(name, value);
+            if (provenance != null) {
+                provenance.child(name, parent);
+            }
+
+            Permission perm = manager.getPermission(name);
+            if (perm != null && visited.add(name)) {
+                expandChildren(manager, result, name, perm.getChildren(), !value, visited, provenance);
+            }
+        }
+    }
+
+    private static final class ContextKeys {
+        final long version;
+        final Set<String> keys;
+
+        ContextKeys(long version, Set<String> keys) {
+            this.version = version;
+            this.keys = keys;
+        }
+    }
+
+    private static final class Resolved {
+        final long version;
+        final Map<String, Boolean> permissions;
+        final Map<String, Boolean> expanded;
+
+        Resolved(long version, Map<String, Boolean> permissions, Map<String, Boolean> expanded) {
+            this.version = version;
+            this.permissions = permissions;
+            this.expanded = expanded;
+        }
+    }
+
+}
@@ -0,0 +1,389 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.*;
+
+/**
+ * A set of membership and permission changes which are applied together. If any change is invalid
+ * none of them are applied, and however many changes there are, a batch is saved once and refreshes
+ * each affected online player once.
+ */
+public final class PermissionsBatch {
+
+    private final PermissionsPlugin plugin;
+    private final List<Op> ops = new ArrayList<Op>();
+    private final List<String> problems = new ArrayList<String>();
+    private String source;
+
+    // filled in while committing
+    private final List<Change> applied = new ArrayList<Change>();
+    private final Set<UUID> players = new HashSet<UUID>();
+    private final Set<String> groups = new HashSet<String>();
+
+    PermissionsBatch(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Set a player to be in only the given groups.
+     *
+     * @param player The uuid of the player.
+     * @param groups The groups, in order.
+     */
+    public void setGroups(final UUID player, final List<String> groups) {
+        final List<String> copy = new ArrayList<String>(groups);
+        add(new Op() {
+            String validate() {
+                return checkGroups(copy);
+            }
+
+            void apply() {
+                stage("users/" + player, "groups", copy);
+                players.add(player);
+            }
+        });
+    }
+
+    /**
+     * Add a player to a group, if they are not already in it.
+     *
+     * @param player The uuid of the player.
+     * @param group The name of the group.
+     */
+    public void addGroup(final UUID player, final String group) {
+        add(new Op() {
+            String validate() {
+                return checkGroups(Collections.singletonList(group));
+            }
+
+            void apply() {
+                ConfigurationSection node = plugin.getNode("users/" + player);
+                List<String> list = (node != null) ? node.getStringList("groups") : new ArrayList<String>();
+                if (!list.contains(group)) {
+                    list.add(group);
+                    stage("users/" + player, "groups", list);
+                    players.add(player);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove a player from a group, if they are in it.
+     *
+     * @param player The uuid of the player.
+     * @param group The name of the group.
+     */
+    public void removeGroup(final UUID player, final String group) {
+        add(new Op() {
+            String validate() {
+                return null;
+            }
+
+            void apply() {
+                ConfigurationSection node = plugin.getNode("users/" + player);
+                if (node == null) return;
+                List<String> list = node.getStringList("groups");
+                if (list.remove(group)) {
+                    stage(node.getCurrentPath(), "groups", list);
+                    players.add(player);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set a permission on a player.
+     *
+     * @param player The uuid of the player.
+     * @param node The node, optionally prefixed with "world:" or a context such as "gamemode=creative:".
+     * @param value The value, or null to unset it.
+     */
+    public void setPermission(UUID player, String node, Boolean value) {
+        addPermission("users/" + player, node, value, player, null);
+    }
+
+    /**
+     * Set a permission on a group.
+     *
+     * @param group The name of the group.
+     * @param node The node, optionally prefixed with "world:" or a context such as "gamemode=creative:".
+     * @param value The value, or null to unset it.
+     */
+    public void setGroupPermission(String group, String node, Boolean value) {
+        addPermission("groups/" + group, node, value, null, group);
+    }
+
+    /**
+     * Get the number of changes in this batch.
+     *
+     * @return The number of changes.
+     */
+    public int size() {
+        return ops.size();
+    }
+
+    /**
+     * Check every change against the current configuration without applying anything.
+     * Must be called from the main thread.
+     *
+     * @return A description of each problem found, empty if the batch can be committed.
+     */
+    public List<String> validate() {
+        List<String> result = new ArrayList<String>(problems);
+        for (Op op : ops) {
+            String problem = op.validate();
+            if (problem != null) {
+                result.add(op.source != null ? op.source + ": " + problem : problem);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Apply every change in this batch, then save and refresh once. Must be called from the main thread.
+     *
+     * @throws IllegalArgumentException If any change is invalid, in which case nothing is applied.
+     */
+    public void commit() {
+        List<String> problems = validate();
+        if (!problems.isEmpty()) {
+            throw new IllegalArgumentException(problems.size() + " invalid changes, first: " + problems.get(0));
+        }
+
+        applied.clear();
+        players.clear();
+        groups.clear();
+        try {
+            for (Op op : ops) {
+                op.apply();
+            }
+        } catch (RuntimeException ex) {
+            rollback();
+            throw ex;
+        }
+        plugin.commitBatch(source != null ? source : "api", applied, players, groups);
+    }
+
+    // -- Building
+
+    // label the changes which follow, so that problems can be traced to their origin
+    void setSource(String source) {
+        this.source = source;
+    }
+
+    // record a problem found before a change could be made, such as a malformed line
+    void invalid(String problem) {
+        problems.add(source != null ? source + ": " + problem : problem);
+    }
+
+    // remove an entry such as "groups/vip" from a user or group once it has expired, along with its expiry time
+    void expire(final String owner, final String entry) {
+        add(new Op() {
+            String validate() {
+                return null;
+            }
+
+            void apply() {
+                ConfigurationSection node = plugin.getNode(owner);
+                if (node == null || !ExpiryTracker.isExpired(node, entry, ExpiryTracker.now())) return;
+
+                int split = entry.lastIndexOf('/');
+                String parent = entry.substring(0, split), key = entry.substring(split + 1);
+                if (parent.equals("groups") || parent.equals("inheritance")) {
+                    List<String> list = node.getStringList(parent);
+                    if (list.remove(key)) {
+                        stage(node.getCurrentPath(), parent, list);
+                    }
+                } else if (node.getConfigurationSection(parent) != null && node.getConfigurationSection(parent).contains(key)) {
+                    stage(node.getCurrentPath() + "/" + parent, key, null);
+                }
+                stage(node.getCurrentPath() + "/expiry/" + parent, key, null);
+
+                UUID player = PermissionsSnapshot.parseUUID(node.getName());
+                if (owner.startsWith("users/") && player != null) {
+                    players.add(player);
+                } else if (owner.startsWith("groups/")) {
+                    groups.add(node.getName());
+                }
+            }
+        });
+    }
+
+    // give an entry such as "groups/vip" of a user or group an expiry time, or with a null time, make it permanent
+    void setExpiry(final String owner, final String entry, final Long time) {
+        add(new Op() {
+            String validate() {
+                return null;
+            }
+
+            void apply() {
+                int split = entry.lastIndexOf('/');
+                String section = owner + "/expiry/" + entry.substring(0, split), key = entry.substring(split + 1);
+                if (time == null) {
+                    ConfigurationSection node = plugin.getNode(section);
+                    if (node == null || !node.contains(key)) return;
+                }
+                stage(section, key, time);
+
+                String name = owner.substring(owner.indexOf('/') + 1);
+                UUID player = PermissionsSnapshot.parseUUID(name);
+                if (owner.startsWith("users/") && player != null) {
+                    players.add(player);
+                } else if (owner.startsWith("groups/")) {
+                    groups.add(name);
+                }
+            }
+        });
+    }
+
+    // drop a user's entry entirely, such as when pruning
+    void removeUser(final String key) {
+        add(new Op() {
+            String validate() {
+                return null;
+            }
+
+            void apply() {
+                if (plugin.getNode("users/" + key) == null) return;
+                stage("users", key, null);
+                UUID player = PermissionsSnapshot.parseUUID(key);
+                if (player != null) {
+                    players.add(player);
+                }
+            }
+        });
+    }
+
+    // put back an archived user's entry, without replacing anything they have been given since
+    void restoreUser(final String key, final ConfigurationSection archived) {
+        add(new Op() {
+            String validate() {
+                return null;
+            }
+
+            void apply() {
+                ConfigurationSection node = plugin.getNode("users/" + key);
+                for (Map.Entry<String, Object> entry : archived.getValues(true).entrySet()) {
+                    if (entry.getValue() instanceof ConfigurationSection) continue;
+                    if (node != null && node.contains(entry.getKey())) continue;
+
+                    String path = entry.getKey();
+                    int split = path.lastIndexOf('/');
+                    stage("users/" + key + (split >= 0 ? "/" + path.substring(0, split) : ""), path.substring(split + 1), entry.getValue());
+                }
+                UUID player = PermissionsSnapshot.parseUUID(key);
+                if (player != null) {
+                    players.add(player);
+                }
+            }
+        });
+    }
+
+    private void add(Op op) {
+        op.source = source;
+        ops.add(op);
+    }
+
+    private void addPermission(final String path, String node, final Boolean value, final UUID player, final String group) {
+        String section = path + "/permissions";
+        String perm = node;
+        if (perm.contains(":")) {
+            section = path + "/" + PermissionContext.sectionFor(perm.substring(0, perm.indexOf(':')));
+            perm = perm.substring(perm.indexOf(':') + 1);
+        }
+        final String finalSection = section, finalPerm = perm;
+
+        add(new Op() {
+            String validate() {
+                if (finalPerm.length() == 0 || finalPerm.contains("/") || finalPerm.contains(" ")) {
+                    return "invalid permission node " + finalPerm;
+                } else if (finalSection.endsWith("/worlds/")) {
+                    return "missing world name before " + finalPerm;
+                } else if (finalSection.contains("/contexts/") && PermissionContext.parseCondition(finalSection.substring(finalSection.indexOf("/contexts/") + 10)) == null) {
+                    return "invalid context before " + finalPerm;
+                } else if (group != null && plugin.getNode(path) == null) {
+                    return "no such group " + group;
+                }
+                return null;
+            }
+
+            void apply() {
+                if (value == null) {
+                    ConfigurationSection sec = plugin.getNode(finalSection);
+                    if (sec == null || !sec.contains(finalPerm)) return;
+                }
+                stage(finalSection, finalPerm, value);
+                if (player != null) {
+                    players.add(player);
+                } else {
+                    groups.add(group);
+                }
+            }
+        });
+    }
+
+    private String checkGroups(List<String> names) {
+        for (String name : names) {
+            if (plugin.getNode("groups/" + name) == null) {
+                return "no such group " + name;
+            }
+        }
+        return null;
+    }
+
+    // -- Applying
+
+    private void stage(String section, String key, Object value) {
+        plugin.attachUser(section, key);
+        // remember the outermost section we had to create, so a rollback can take it away again
+        String created = plugin.findMissing(section);
+        ConfigurationSection node = plugin.createNode(section);
+        Object old = node.get(key);
+        node.set(key, value);
+        applied.add(new Change(node.getCurrentPath(), key, value, old, created));
+    }
+
+    private void rollback() {
+        for (int i = applied.size() - 1; i >= 0; --i) {
+            Change change = applied.get(i);
+            ConfigurationSection node = plugin.getNode(change.section);
+            if (node != null) {
+                node.set(change.key, change.old);
+            }
+            if (change.created != null) {
+                plugin.getConfig().set(change.created, null);
+            }
+        }
+        applied.clear();
+    }
+
+    private abstract class Op {
+        String source;
+
+        abstract String validate();
+
+        abstract void apply();
+    }
+
+    /**
+     * A single value changed by a batch.
+     */
+    static final class Change {
+        final String section;
+        final String key;
+        final Object value;
+        final Object old;
+        final String created;
+
+        Change(String section, String key, Object value, Object old, String created) {
+            this.section = section;
+            this.key = key;
+            this.value = value;
+            this.old = old;
+            this.created = created;
+        }
+    }
+
+}
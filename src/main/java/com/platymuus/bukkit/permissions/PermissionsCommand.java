@@ -1,6 +1,7 @@
 package com.platymuus.bukkit.permissions;
 
 import org.bukkit.ChatColor;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -16,7 +17,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * CommandExecutor for /permissions
@@ -24,12 +28,38 @@ import java.util.*;
 final class PermissionsCommand implements CommandExecutor {
 
     private final PermissionsPlugin plugin;
+    private final AtomicBoolean exporting = new AtomicBoolean();
+    private final PagedReplies replies;
 
     public PermissionsCommand(PermissionsPlugin plugin) {
         this.plugin = plugin;
+        this.replies = new PagedReplies(plugin);
     }
 
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] split) {
+    public boolean onCommand(final CommandSender sender, final Command command, final String label, final String[] split) {
+        // commands change the configuration, which only the global thread may do on region-threaded servers
+        if (!plugin.getPlatformScheduler().isGlobalThread()) {
+            plugin.getPlatformScheduler().runGlobal(new Runnable() {
+                public void run() {
+                    if (!onCommand(sender, command, label, split)) {
+                        usage(sender, command);
+                    }
+                }
+            });
+            return true;
+        }
+
+        plugin.getProfiler().begin();
+        plugin.getAudit().begin(sender.getName());
+        try {
+            return runCommand(sender, command, split);
+        } finally {
+            plugin.getAudit().end();
+            plugin.getProfiler().end(TickProfiler.COMMAND);
+        }
+    }
+
+    private boolean runCommand(CommandSender sender, Command command, String[] split) {
         if (split.length < 1) {
             return !checkPerm(sender, "help") || usage(sender, command);
         }
@@ -43,9 +73,234 @@ final class PermissionsCommand implements CommandExecutor {
                 sender.sendMessage(ChatColor.RED + "Your configuration is invalid, see the console for details.");
             } else {
                 plugin.refreshPermissions();
+                plugin.getChangeBus().publishReload();
                 sender.sendMessage(ChatColor.GREEN + "Configuration reloaded.");
             }
             return true;
+        } else if (subcommand.equals("convert")) {
+            if (!checkPerm(sender, "convert")) return true;
+            if (split.length != 2) return usage(sender, command, subcommand);
+
+            String layout = split[1].toLowerCase();
+            if (!layout.equals("single") && !layout.equals("sharded")) return usage(sender, command, subcommand);
+
+            try {
+                plugin.convertStorage(layout.equals("sharded"));
+                sender.sendMessage(ChatColor.GREEN + "User storage converted to " + ChatColor.WHITE + layout + ChatColor.GREEN + ".");
+            } catch (IOException e) {
+                sender.sendMessage(ChatColor.RED + "Failed to convert user storage, see the console for more details");
+                sender.sendMessage(ChatColor.RED + e.toString());
+                e.printStackTrace();
+            }
+            return true;
+        } else if (subcommand.equals("import")) {
+            if (!checkPerm(sender, "import")) return true;
+            if (split.length != 2) return usage(sender, command, subcommand);
+            importFile(sender, split[1]);
+            return true;
+        } else if (subcommand.equals("export")) {
+            if (!checkPerm(sender, "export")) return true;
+            if (split.length > 2) return usage(sender, command, subcommand);
+            String format = (split.length == 2) ? split[1].toLowerCase() : "jsonl";
+            if (!format.equals("jsonl") && !format.equals("csv")) return usage(sender, command, subcommand);
+            export(sender, format);
+            return true;
+        } else if (subcommand.equals("prune")) {
+            if (!checkPerm(sender, "prune")) return true;
+            if (split.length > 2) return usage(sender, command, subcommand);
+            int days = 0;
+            if (split.length == 2) {
+                try {
+                    days = Integer.parseInt(split[1]);
+                } catch (NumberFormatException ex) {
+                    return usage(sender, command, subcommand);
+                }
+                if (days < 1) return usage(sender, command, subcommand);
+            }
+
+            if (plugin.getPruner().start(sender, days)) {
+                sender.sendMessage(ChatColor.GREEN + "Pruning users...");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Users are already being pruned.");
+            }
+            return true;
+        } else if (subcommand.equals("trace")) {
+            if (!checkPerm(sender, "trace")) return true;
+            if (split.length == 2 && split[1].equalsIgnoreCase("dump")) {
+                File file = new File(plugin.getDataFolder(), "trace.txt");
+                try {
+                    int count = plugin.getTrace().dump(file);
+                    sender.sendMessage(ChatColor.GREEN + "Wrote " + ChatColor.WHITE + count + ChatColor.GREEN + " trace events to " + ChatColor.WHITE + file);
+                } catch (IOException e) {
+                    sender.sendMessage(ChatColor.RED + "Failed to write to trace.txt, see the console for more details");
+                    sender.sendMessage(ChatColor.RED + e.toString());
+                    e.printStackTrace();
+                }
+                return true;
+            }
+            if (split.length != 3) return usage(sender, command, subcommand);
+
+            int category = Trace.categoryOf(split[1]);
+            if (category == 0) {
+                sender.sendMessage(ChatColor.RED + "No such trace category " + ChatColor.WHITE + split[1] + ChatColor.RED + ".");
+                return true;
+            }
+            boolean on = split[2].equalsIgnoreCase("on") || Boolean.parseBoolean(split[2]);
+            plugin.getTrace().setRecording(category, on);
+            sender.sendMessage(ChatColor.GREEN + "Trace events for " + ChatColor.WHITE + split[1].toLowerCase() + ChatColor.GREEN + " are now " + ChatColor.WHITE + (on ? "recorded" : "not recorded") + ChatColor.GREEN + ".");
+            return true;
+        } else if (subcommand.equals("profile")) {
+            if (!checkPerm(sender, "profile")) return true;
+            TickProfiler profiler = plugin.getProfiler();
+            if (split.length == 1) {
+                if (!profiler.isRunning()) {
+                    sender.sendMessage(ChatColor.GOLD + "The profiler is not running.");
+                }
+                for (String line : profiler.report()) {
+                    sender.sendMessage(ChatColor.GREEN + line);
+                }
+            } else if (split.length == 2 && split[1].equalsIgnoreCase("start")) {
+                profiler.start();
+                sender.sendMessage(ChatColor.GREEN + "Profiler started.");
+            } else if (split.length == 2 && split[1].equalsIgnoreCase("stop")) {
+                profiler.stop();
+                sender.sendMessage(ChatColor.GREEN + "Profiler stopped.");
+            } else {
+                return usage(sender, command, subcommand);
+            }
+            return true;
+        } else if (subcommand.equals("usage")) {
+            if (!checkPerm(sender, "usage")) return true;
+            final NodeUsage usage = plugin.getNodeUsage();
+            if (split.length == 2 && split[1].equalsIgnoreCase("reset")) {
+                usage.reset();
+                sender.sendMessage(ChatColor.GREEN + "Node usage cleared.");
+                return true;
+            } else if (split.length != 1) {
+                return usage(sender, command, subcommand);
+            }
+
+            // registered permissions are read here, and the configured nodes counted in the background
+            final Set<String> registered = usage.registeredNodes();
+            final PermissionsSnapshot snapshot = plugin.getSnapshot();
+            plugin.getPlatformScheduler().runAsync(new Runnable() {
+                public void run() {
+                    sender.sendMessage(ChatColor.GREEN + "Node usage, sampling " + ChatColor.WHITE + usage.getPercent() + "%" + ChatColor.GREEN + " of players:");
+                    for (String line : usage.report(snapshot, registered)) {
+                        sender.sendMessage(ChatColor.WHITE + line);
+                    }
+                }
+            });
+            return true;
+        } else if (subcommand.equals("history")) {
+            if (!checkPerm(sender, "history")) return true;
+            if (split.length != 2 && split.length != 3) return usage(sender, command, subcommand);
+            final int page = (split.length == 3) ? PagedReplies.parsePage(split[2]) : 1;
+            if (page == 0) return usage(sender, command, subcommand);
+
+            // a group of that name wins over a player
+            final String target;
+            PermissionInfo group = plugin.getSnapshot().getGroup(split[1]);
+            if (group != null) {
+                target = "groups/" + group.getName();
+            } else {
+                UUID player = resolvePlayer(sender, split[1]);
+                if (player == null) return true;
+                target = "users/" + player;
+            }
+
+            replies.run(sender, new Runnable() {
+                public void run() {
+                    ChatColor g = ChatColor.GREEN, w = ChatColor.WHITE;
+                    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+                    List<String> lines = new ArrayList<String>();
+                    for (AuditLog.Entry entry : plugin.getAudit().getHistory(target)) {
+                        lines.add(g + format.format(new Date(entry.time)) + " " + w + entry.actor + g + ": " + w + entry.key + g + " " + w + entry.before + g + " -> " + w + entry.after);
+                    }
+                    if (lines.isEmpty()) {
+                        sender.sendMessage(ChatColor.GREEN + "No recorded changes to " + ChatColor.WHITE + target + ChatColor.GREEN + ".");
+                        return;
+                    }
+                    sender.sendMessage(ChatColor.GREEN + "Latest changes to " + ChatColor.WHITE + target + ChatColor.GREEN + ":");
+                    PagedReplies.sendPage(sender, lines, page);
+                }
+            });
+            return true;
+        } else if (subcommand.equals("search")) {
+            if (!checkPerm(sender, "search")) return true;
+            if (split.length != 2 && split.length != 3) return usage(sender, command, subcommand);
+            final String node = split[1];
+            final int page = (split.length == 3) ? PagedReplies.parsePage(split[2]) : 1;
+            if (page == 0) return usage(sender, command, subcommand);
+
+            replies.run(sender, new Runnable() {
+                public void run() {
+                    // "worldedit.*" finds that node itself and everything under "worldedit."
+                    List<NodeHolder> holders = plugin.getIndex().find(node, false);
+                    if (node.endsWith("*")) {
+                        for (NodeHolder holder : plugin.getIndex().find(node.substring(0, node.length() - 1), true)) {
+                            if (!holder.getNode().equalsIgnoreCase(node)) {
+                                holders.add(holder);
+                            }
+                        }
+                    }
+                    if (holders.isEmpty()) {
+                        sender.sendMessage(ChatColor.GREEN + "Nobody sets " + ChatColor.WHITE + node + ChatColor.GREEN + ".");
+                        return;
+                    }
+
+                    ChatColor g = ChatColor.GREEN, w = ChatColor.WHITE;
+                    List<String> lines = new ArrayList<String>();
+                    for (NodeHolder holder : holders) {
+                        String where = (holder.getWorld() != null) ? g + " in world " + w + holder.getWorld()
+                                : (holder.getContext() != null) ? g + " when " + w + holder.getContext() : "";
+                        lines.add(g + (holder.isGroup() ? "Group " : "Player ") + w + holder.getName() + g + " sets " + w + holder.getNode() + g + " = " + w + holder.getValue() + where);
+                    }
+                    sender.sendMessage(ChatColor.GREEN + "Found " + ChatColor.WHITE + holders.size() + ChatColor.GREEN + " entries for " + ChatColor.WHITE + node + ChatColor.GREEN + ":");
+                    PagedReplies.sendPage(sender, lines, page);
+                }
+            });
+            return true;
+        } else if (subcommand.equals("rollback")) {
+            if (!checkPerm(sender, "rollback")) return true;
+            if (split.length > 2) return usage(sender, command, subcommand);
+            ConfigHistory history = plugin.getHistory();
+            if (split.length == 1) {
+                ChatColor g = ChatColor.GREEN, w = ChatColor.WHITE;
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                List<ConfigHistory.Version> versions = history.getVersions();
+                if (versions.isEmpty()) {
+                    sender.sendMessage(g + "No changes recorded since version " + w + history.getBaseVersion() + g + ".");
+                    return true;
+                }
+                sender.sendMessage(g + "Oldest version kept: " + w + history.getBaseVersion() + g + ", latest changes:");
+                for (ConfigHistory.Version version : versions.subList(0, Math.min(versions.size(), PagedReplies.PAGE_SIZE))) {
+                    String actor = (version.actor != null) ? version.actor : "server";
+                    sender.sendMessage(g + "  " + w + version.version + g + " at " + w + format.format(new Date(version.time)) + g + " by " + w + actor + g + " (" + w + version.size + g + " values)");
+                }
+                return true;
+            }
+
+            long version;
+            if (isDuration(split[1])) {
+                version = history.versionAt(System.currentTimeMillis() - ExpiryTracker.parseDuration(split[1]) * 1000);
+            } else {
+                try {
+                    version = Long.parseLong(split[1]);
+                } catch (NumberFormatException ex) {
+                    return usage(sender, command, subcommand);
+                }
+            }
+
+            int count = (version < 0) ? -1 : plugin.rollback(version);
+            if (count < 0) {
+                sender.sendMessage(ChatColor.RED + "That is further back than history goes, the oldest version kept is " + ChatColor.WHITE + history.getBaseVersion() + ChatColor.RED + ".");
+            } else if (count == 0) {
+                sender.sendMessage(ChatColor.GREEN + "Nothing has changed since version " + ChatColor.WHITE + version + ChatColor.GREEN + ".");
+            } else {
+                sender.sendMessage(ChatColor.GREEN + "Rolled back " + ChatColor.WHITE + count + ChatColor.GREEN + " values to version " + ChatColor.WHITE + version + ChatColor.GREEN + ".");
+            }
+            return true;
         } else if (subcommand.equals("about")) {
             if (!checkPerm(sender, "about")) return true;
 
@@ -98,6 +353,25 @@ final class PermissionsCommand implements CommandExecutor {
                 sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + name + ChatColor.GREEN + sets + ChatColor.WHITE + node + ChatColor.GREEN + " to " + ChatColor.WHITE + perm + ChatColor.GREEN + ".");
             }
             return true;
+        } else if (subcommand.equals("explain")) {
+            if (!checkPerm(sender, "explain")) return true;
+            if (split.length != 3 && split.length != 4) return usage(sender, command, subcommand);
+            UUID player = resolvePlayer(sender, split[1]);
+            if (player == null) return true;
+            String node = split[2];
+
+            String world;
+            Player online = plugin.getServer().getPlayer(player);
+            if (split.length == 4) {
+                world = split[3];
+            } else if (online != null) {
+                world = online.getWorld().getName();
+            } else {
+                world = plugin.getServer().getWorlds().get(0).getName();
+            }
+
+            explain(sender, player, online != null ? online.getName() : player.toString(), node, world);
+            return true;
         } else if (subcommand.equals("info")) {
             if (!checkPerm(sender, "info")) return true;
             if (split.length != 2) return usage(sender, command, subcommand);
@@ -167,62 +441,40 @@ final class PermissionsCommand implements CommandExecutor {
                 return true;
             }
 
-            ArrayList<PermissionAttachmentInfo> dump = new ArrayList<PermissionAttachmentInfo>(permissible.getEffectivePermissions());
-            Collections.sort(dump, new Comparator<PermissionAttachmentInfo>() {
-                public int compare(PermissionAttachmentInfo a, PermissionAttachmentInfo b) {
-                    return a.getPermission().compareTo(b.getPermission());
+            // paging reuses the sorted dump from before, unless the configuration has changed since
+            final String key = (permissible instanceof Player) ? ((Player) permissible).getUniqueId().toString() : ((CommandSender) permissible).getName();
+            final int shownPage = page;
+            if (page > 0 && split.length > 1 && PagedReplies.parsePage(split[split.length - 1]) > 0) {
+                List<PermissionAttachmentInfo> cached = replies.getDump(key);
+                if (cached != null) {
+                    sendDump(sender, cached, page);
+                    return true;
                 }
-            });
-
-            if (page == -1) {
-                // Dump to file
-                File file = new File(plugin.getDataFolder(), "dump.txt");
-                try {
-                    FileOutputStream fos = new FileOutputStream(file);
-                    PrintStream out = new PrintStream(fos);
-                    // right now permissible is always a CommandSender
-                    out.println("PermissionsBukkit dump for: " + ((CommandSender) permissible).getName());
-                    out.println(new Date().toString());
-
-                    for (PermissionAttachmentInfo info : dump) {
-                        if (info.getAttachment() == null) {
-                            out.println(info.getPermission() + "=" + info.getValue() + " (default)");
-                        } else {
-                            out.println(info.getPermission() + "=" + info.getValue() + " (" + info.getAttachment().getPlugin().getDescription().getName() + ")");
-                        }
-                    }
-
-                    out.close();
-                    fos.close();
-
-                    sender.sendMessage(ChatColor.GREEN + "Permissions dump written to " + ChatColor.WHITE + file);
-                } catch (IOException e) {
-                    sender.sendMessage(ChatColor.RED + "Failed to write to dump.txt, see the console for more details");
-                    sender.sendMessage(ChatColor.RED + e.toString());
-                    e.printStackTrace();
-                }
-                return true;
             }
 
-            int numpages = 1 + (dump.size() - 1) / 8;
-            if (page > numpages) {
-                page = numpages;
-            } else if (page < 1) {
-                page = 1;
-            }
-
-            ChatColor g = ChatColor.GREEN, w = ChatColor.WHITE, r = ChatColor.RED;
-
-            int start = 8 * (page - 1);
-            sender.sendMessage(ChatColor.RED + "[==== " + ChatColor.GREEN + "Page " + page + " of " + numpages + ChatColor.RED + " ====]");
-            for (int i = start; i < start + 8 && i < dump.size(); ++i) {
-                PermissionAttachmentInfo info = dump.get(i);
-
-                if (info.getAttachment() == null) {
-                    sender.sendMessage(g + "Node " + w + info.getPermission() + g + "=" + w + info.getValue() + g + " (" + r + "default" + g + ")");
-                } else {
-                    sender.sendMessage(g + "Node " + w + info.getPermission() + g + "=" + w + info.getValue() + g + " (" + w + info.getAttachment().getPlugin().getDescription().getName() + g + ")");
+            // the effective permissions are read where the permissible lives, then sorted and sent in the background
+            final Permissible target = permissible;
+            Runnable collect = new Runnable() {
+                public void run() {
+                    final long version = plugin.getSnapshot().getVersion();
+                    final Set<PermissionAttachmentInfo> effective = target.getEffectivePermissions();
+                    final PermissionContext context = (target instanceof Player) ? plugin.contextOf((Player) target) : null;
+                    replies.run(sender, new Runnable() {
+                        public void run() {
+                            List<PermissionAttachmentInfo> dump = replies.sortDump(key, version, effective);
+                            if (shownPage == -1) {
+                                dumpToFile(sender, target, dump, context);
+                            } else {
+                                sendDump(sender, dump, shownPage);
+                            }
+                        }
+                    });
                 }
+            };
+            if (permissible instanceof Player) {
+                plugin.getPlatformScheduler().runFor((Player) permissible, collect);
+            } else {
+                collect.run();
             }
             return true;
         } else if (subcommand.equals("rank") || subcommand.equals("setrank")) {
@@ -239,7 +491,7 @@ final class PermissionsCommand implements CommandExecutor {
                 return true;
             }
 
-            plugin.createNode("users/" + player).set("groups", Arrays.asList(group));
+            plugin.set("users/" + player, "groups", Arrays.asList(group));
             plugin.refreshForPlayer(player);
 
             sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " is now in " + ChatColor.WHITE + group + ChatColor.GREEN + ".");
@@ -268,49 +520,64 @@ final class PermissionsCommand implements CommandExecutor {
             if (!checkPerm(sender, "group.list")) return true;
             if (split.length != 2) return usage(sender, command, "group list");
 
-            String result = "", sep = "";
-            for (String key : plugin.getNode("groups").getKeys(false)) {
-                result += sep + key;
-                sep = ", ";
-            }
-            sender.sendMessage(ChatColor.GREEN + "Groups: " + ChatColor.WHITE + result);
+            final PermissionsSnapshot snapshot = plugin.getSnapshot();
+            replies.run(sender, new Runnable() {
+                public void run() {
+                    StringBuilder result = new StringBuilder();
+                    for (PermissionInfo group : snapshot.getGroups()) {
+                        if (result.length() > 0) result.append(", ");
+                        result.append(group.getName());
+                    }
+                    sender.sendMessage(ChatColor.GREEN + "Groups: " + ChatColor.WHITE + result);
+                }
+            });
             return true;
         } else if (subcommand.equals("players")) {
             if (!checkPerm(sender, "group.players")) return true;
-            if (split.length != 3) return usage(sender, command, "group players");
-            String group = split[2];
+            if (split.length != 3 && split.length != 4) return usage(sender, command, "group players");
+            final String group = split[2];
+            final int page = (split.length == 4) ? PagedReplies.parsePage(split[3]) : 1;
+            if (page == 0) return usage(sender, command, "group players");
 
-            if (plugin.getNode("groups/" + group) == null) {
+            final PermissionsSnapshot snapshot = plugin.getSnapshot();
+            if (snapshot.getGroup(group) == null) {
                 sender.sendMessage(ChatColor.RED + "No such group " + ChatColor.WHITE + group + ChatColor.RED + ".");
                 return true;
             }
 
-            List<String> users = new LinkedList<String>();
-            for (String userKey : plugin.getNode("users").getKeys(false)) {
-                ConfigurationSection node = plugin.getNode("users/" + userKey);
-                if (node.getStringList("groups").contains(group)) {
-                    try {
-                        // show UUID and name if available
-                        UUID uuid = UUID.fromString(userKey);
-                        String name = node.getString("name", "???");
-                        users.add(name + ChatColor.GREEN + " (" + ChatColor.WHITE + uuid + ChatColor.GREEN + ")");
-                    } catch (IllegalArgumentException ex) {
-                        // show as unconverted name-only entry
-                        users.add(userKey + ChatColor.GREEN + " (" + ChatColor.WHITE + "unconverted" + ChatColor.GREEN + ")");
+            // every user is scanned, so do it in the background
+            replies.run(sender, new Runnable() {
+                public void run() {
+                    List<String> users = new ArrayList<String>();
+                    for (UUID uuid : snapshot.getUsers().keySet()) {
+                        if (Group.includes(snapshot.getUserGroupNames(uuid), group)) {
+                            // show UUID and name if available
+                            String name = snapshot.getUserName(uuid);
+                            users.add("  " + (name != null ? name : "???") + ChatColor.GREEN + " (" + ChatColor.WHITE + uuid + ChatColor.GREEN + ")");
+                        }
                     }
+                    for (Map.Entry<String, PermissionInfo> entry : snapshot.getLegacyUsers().entrySet()) {
+                        if (Group.includes(entry.getValue().getGroupNames(), group)) {
+                            // show as unconverted name-only entry
+                            users.add("  " + entry.getKey() + ChatColor.GREEN + " (" + ChatColor.WHITE + "unconverted" + ChatColor.GREEN + ")");
+                        }
+                    }
+                    // users aren't kept in any order, so sort them for the pages to stay put
+                    Collections.sort(users, String.CASE_INSENSITIVE_ORDER);
+
+                    sender.sendMessage(ChatColor.GREEN + "Users in " + ChatColor.WHITE + group + ChatColor.GREEN + " (" + ChatColor.WHITE + users.size() + ChatColor.GREEN + "):");
+                    PagedReplies.sendPage(sender, users, page);
                 }
-            }
-            sender.sendMessage(ChatColor.GREEN + "Users in " + ChatColor.WHITE + group + ChatColor.GREEN + " (" + ChatColor.WHITE + users.size() + ChatColor.GREEN + "):");
-            for (String user : users) {
-                sender.sendMessage("  " + user);
-            }
+            });
             return true;
         } else if (subcommand.equals("setperm")) {
             if (!checkPerm(sender, "group.setperm")) return true;
-            if (split.length != 4 && split.length != 5) return usage(sender, command, "group setperm");
+            if (split.length < 4 || split.length > 6) return usage(sender, command, "group setperm");
             String group = split[2];
             String perm = split[3];
-            boolean value = (split.length != 5) || Boolean.parseBoolean(split[4]);
+            boolean value = (split.length == 4) || isDuration(split[4]) || Boolean.parseBoolean(split[4]);
+            long expires = expiryArg(split, isDuration(split[split.length - 1]) ? split.length - 1 : split.length);
+            if (split.length == 6 && expires <= 0) return usage(sender, command, "group setperm");
 
             String node = "permissions";
             if (plugin.getNode("groups/" + group) == null) {
@@ -319,15 +586,16 @@ final class PermissionsCommand implements CommandExecutor {
             }
 
             if (perm.contains(":")) {
-                String world = perm.substring(0, perm.indexOf(':'));
+                node = PermissionContext.sectionFor(perm.substring(0, perm.indexOf(':')));
                 perm = perm.substring(perm.indexOf(':') + 1);
-                node = "worlds/" + world;
             }
 
-            plugin.createNode("groups/" + group + "/" + node).set(perm, value);
-            plugin.refreshForGroup(group);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.setGroupPermission(group, split[3], value);
+            batch.setExpiry("groups/" + group, node + "/" + perm, expires > 0 ? expires : null);
+            if (!commit(sender, batch)) return true;
 
-            sender.sendMessage(ChatColor.GREEN + "Group " + ChatColor.WHITE + group + ChatColor.GREEN + " now has " + ChatColor.WHITE + perm + ChatColor.GREEN + " = " + ChatColor.WHITE + value + ChatColor.GREEN + ".");
+            sender.sendMessage(ChatColor.GREEN + "Group " + ChatColor.WHITE + group + ChatColor.GREEN + " now has " + ChatColor.WHITE + perm + ChatColor.GREEN + " = " + ChatColor.WHITE + value + until(expires) + ChatColor.GREEN + ".");
             return true;
         } else if (subcommand.equals("unsetperm")) {
             if (!checkPerm(sender, "group.unsetperm")) return true;
@@ -342,18 +610,19 @@ final class PermissionsCommand implements CommandExecutor {
             }
 
             if (perm.contains(":")) {
-                String world = perm.substring(0, perm.indexOf(':'));
+                node = PermissionContext.sectionFor(perm.substring(0, perm.indexOf(':')));
                 perm = perm.substring(perm.indexOf(':') + 1);
-                node = "worlds/" + world;
             }
 
-            ConfigurationSection sec = plugin.createNode("groups/" + group + "/" + node);
-            if (!sec.contains(perm)) {
+            ConfigurationSection sec = plugin.getNode("groups/" + group + "/" + node);
+            if (sec == null || !sec.contains(perm)) {
                 sender.sendMessage(ChatColor.GREEN + "Group " + ChatColor.WHITE + group + ChatColor.GREEN + " did not have " + ChatColor.WHITE + perm + ChatColor.GREEN + " set.");
                 return true;
             }
-            sec.set(perm, null);
-            plugin.refreshForGroup(group);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.setGroupPermission(group, split[3], null);
+            batch.setExpiry("groups/" + group, node + "/" + perm, null);
+            if (!commit(sender, batch)) return true;
 
             sender.sendMessage(ChatColor.GREEN + "Group " + ChatColor.WHITE + group + ChatColor.GREEN + " no longer has " + ChatColor.WHITE + perm + ChatColor.GREEN + " set.");
             return true;
@@ -371,19 +640,24 @@ final class PermissionsCommand implements CommandExecutor {
             UUID player = resolvePlayer(sender, split[2]);
             if (player == null) return true;
 
-            if (plugin.getNode("users/" + player) == null) {
-                sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.RED + " is in the default group.");
-                return true;
-            }
+            final UUID uuid = player;
+            final PermissionsSnapshot snapshot = plugin.getSnapshot();
+            replies.run(sender, new Runnable() {
+                public void run() {
+                    PermissionInfo info = snapshot.getUser(uuid);
+                    if (info == null) {
+                        sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + uuid + ChatColor.RED + " is in the default group.");
+                        return;
+                    }
 
-            int count = 0;
-            String text = "", sep = "";
-            for (String group : plugin.getNode("users/" + player).getStringList("groups")) {
-                ++count;
-                text += sep + group;
-                sep = ", ";
-            }
-            sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " is in groups (" + ChatColor.WHITE + count + ChatColor.GREEN + "): " + ChatColor.WHITE + text);
+                    StringBuilder text = new StringBuilder();
+                    for (String group : info.getGroupNames()) {
+                        if (text.length() > 0) text.append(", ");
+                        text.append(group);
+                    }
+                    sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + uuid + ChatColor.GREEN + " is in groups (" + ChatColor.WHITE + info.getGroupNames().size() + ChatColor.GREEN + "): " + ChatColor.WHITE + text);
+                }
+            });
             return true;
         } else if (subcommand.equals("setgroup")) {
             if (!checkPerm(sender, "player.setgroup")) return true;
@@ -392,29 +666,35 @@ final class PermissionsCommand implements CommandExecutor {
             if (player == null) return true;
             String[] groups = split[3].split(",");
 
-            plugin.createNode("users/" + player).set("groups", Arrays.asList(groups));
-            plugin.refreshForPlayer(player);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.setGroups(player, Arrays.asList(groups));
+            for (String group : groups) {
+                batch.setExpiry("users/" + player, "groups/" + group, null);
+            }
+            if (!commit(sender, batch)) return true;
 
             sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " is now in " + ChatColor.WHITE + split[3] + ChatColor.GREEN + ".");
             return true;
         } else if (subcommand.equals("addgroup")) {
             if (!checkPerm(sender, "player.addgroup")) return true;
-            if (split.length != 4) return usage(sender, command, "player addgroup");
+            if (split.length != 4 && split.length != 5) return usage(sender, command, "player addgroup");
+            long expires = expiryArg(split, 4);
+            if (expires < 0) return usage(sender, command, "player addgroup");
             UUID player = resolvePlayer(sender, split[2]);
             if (player == null) return true;
             String group = split[3];
 
-            List<String> list = plugin.createNode("users/" + player).getStringList("groups");
-            if (list.contains(group)) {
+            List<String> list = getGroupList(player);
+            if (list.contains(group) && expires == 0) {
                 sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " was already in " + ChatColor.WHITE + group + ChatColor.GREEN + ".");
                 return true;
             }
-            list.add(group);
-            plugin.getNode("users/" + player).set("groups", list);
-
-            plugin.refreshForPlayer(player);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.addGroup(player, group);
+            batch.setExpiry("users/" + player, "groups/" + group, expires > 0 ? expires : null);
+            if (!commit(sender, batch)) return true;
 
-            sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " is now in " + ChatColor.WHITE + group + ChatColor.GREEN + ".");
+            sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " is now in " + ChatColor.WHITE + group + until(expires) + ChatColor.GREEN + ".");
             return true;
         } else if (subcommand.equals("removegroup")) {
             if (!checkPerm(sender, "player.removegroup")) return true;
@@ -423,37 +703,40 @@ final class PermissionsCommand implements CommandExecutor {
             if (player == null) return true;
             String group = split[3];
 
-            List<String> list = plugin.createNode("users/" + player).getStringList("groups");
+            List<String> list = getGroupList(player);
             if (!list.contains(group)) {
                 sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " was not in " + ChatColor.WHITE + group + ChatColor.GREEN + ".");
                 return true;
             }
-            list.remove(group);
-            plugin.getNode("users/" + player).set("groups", list);
-
-            plugin.refreshForPlayer(player);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.removeGroup(player, group);
+            batch.setExpiry("users/" + player, "groups/" + group, null);
+            if (!commit(sender, batch)) return true;
 
             sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " is no longer in " + ChatColor.WHITE + group + ChatColor.GREEN + ".");
             return true;
         } else if (subcommand.equals("setperm")) {
             if (!checkPerm(sender, "player.setperm")) return true;
-            if (split.length != 4 && split.length != 5) return usage(sender, command, "player setperm");
+            if (split.length < 4 || split.length > 6) return usage(sender, command, "player setperm");
+            boolean value = (split.length == 4) || isDuration(split[4]) || Boolean.parseBoolean(split[4]);
+            long expires = expiryArg(split, isDuration(split[split.length - 1]) ? split.length - 1 : split.length);
+            if (split.length == 6 && expires <= 0) return usage(sender, command, "player setperm");
             UUID player = resolvePlayer(sender, split[2]);
             if (player == null) return true;
             String perm = split[3];
-            boolean value = (split.length != 5) || Boolean.parseBoolean(split[4]);
 
             String node = "permissions";
             if (perm.contains(":")) {
-                String world = perm.substring(0, perm.indexOf(':'));
+                node = PermissionContext.sectionFor(perm.substring(0, perm.indexOf(':')));
                 perm = perm.substring(perm.indexOf(':') + 1);
-                node = "worlds/" + world;
             }
 
-            plugin.createNode("users/" + player + "/" + node).set(perm, value);
-            plugin.refreshForPlayer(player);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.setPermission(player, split[3], value);
+            batch.setExpiry("users/" + player, node + "/" + perm, expires > 0 ? expires : null);
+            if (!commit(sender, batch)) return true;
 
-            sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " now has " + ChatColor.WHITE + perm + ChatColor.GREEN + " = " + ChatColor.WHITE + value + ChatColor.GREEN + ".");
+            sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " now has " + ChatColor.WHITE + perm + ChatColor.GREEN + " = " + ChatColor.WHITE + value + until(expires) + ChatColor.GREEN + ".");
             return true;
         } else if (subcommand.equals("unsetperm")) {
             if (!checkPerm(sender, "player.unsetperm")) return true;
@@ -464,18 +747,19 @@ final class PermissionsCommand implements CommandExecutor {
 
             String node = "permissions";
             if (perm.contains(":")) {
-                String world = perm.substring(0, perm.indexOf(':'));
+                node = PermissionContext.sectionFor(perm.substring(0, perm.indexOf(':')));
                 perm = perm.substring(perm.indexOf(':') + 1);
-                node = "worlds/" + world;
             }
 
-            ConfigurationSection sec = plugin.createNode("users/" + player + "/" + node);
-            if (!sec.contains(perm)) {
+            ConfigurationSection sec = plugin.getNode("users/" + player + "/" + node);
+            if (sec == null || !sec.contains(perm)) {
                 sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " did not have " + ChatColor.WHITE + perm + ChatColor.GREEN + " set.");
                 return true;
             }
-            sec.set(perm, null);
-            plugin.refreshForPlayer(player);
+            PermissionsBatch batch = new PermissionsBatch(plugin);
+            batch.setPermission(player, split[3], null);
+            batch.setExpiry("users/" + player, node + "/" + perm, null);
+            if (!commit(sender, batch)) return true;
 
             sender.sendMessage(ChatColor.GREEN + "Player " + ChatColor.WHITE + player + ChatColor.GREEN + " no longer has " + ChatColor.WHITE + perm + ChatColor.GREEN + " set.");
             return true;
@@ -484,6 +768,171 @@ final class PermissionsCommand implements CommandExecutor {
         }
     }
 
+    private void explain(CommandSender sender, UUID player, String name, String node, String world) {
+        ChatColor g = ChatColor.GREEN, w = ChatColor.WHITE;
+        Boolean value = plugin.getResolver().getValue(player, node, world);
+        if (value == null) {
+            Permission perm = plugin.getServer().getPluginManager().getPermission(node);
+            String def = (perm != null ? perm.getDefault() : Permission.DEFAULT_PERMISSION).toString().toLowerCase();
+            sender.sendMessage(g + "Player " + w + name + g + " does not have " + w + node + g + " set in " + w + world + g + ", it defaults to " + w + def + g + ".");
+            return;
+        }
+
+        Provenance provenance = plugin.getResolver().getProvenance(player, world);
+        sender.sendMessage(g + "Player " + w + name + g + " has " + w + node + g + " = " + w + value + g + " in " + w + world + g + ".");
+
+        // follow the chain of parents up to whichever layer actually set something
+        String current = node.toLowerCase();
+        for (int depth = 0; depth < 16; ++depth) {
+            String parent = provenance.getParent(current);
+            if (parent == null) break;
+            sender.sendMessage(g + "  Child of: " + w + parent);
+            current = parent;
+        }
+
+        String source = provenance.getSource(current);
+        if (source != null) {
+            sender.sendMessage(g + "  Set by: " + w + source);
+        }
+        for (String overridden : provenance.getOverridden(current)) {
+            sender.sendMessage(g + "  Overrides: " + w + overridden);
+        }
+    }
+
+    private void sendDump(CommandSender sender, List<PermissionAttachmentInfo> dump, int page) {
+        ChatColor g = ChatColor.GREEN, w = ChatColor.WHITE, r = ChatColor.RED;
+        page = PagedReplies.clampPage(page, dump.size());
+
+        int start = PagedReplies.PAGE_SIZE * (page - 1);
+        sender.sendMessage(PagedReplies.header(page, dump.size()));
+        for (int i = start; i < start + PagedReplies.PAGE_SIZE && i < dump.size(); ++i) {
+            PermissionAttachmentInfo info = dump.get(i);
+
+            if (info.getAttachment() == null) {
+                sender.sendMessage(g + "Node " + w + info.getPermission() + g + "=" + w + info.getValue() + g + " (" + r + "default" + g + ")");
+            } else {
+                sender.sendMessage(g + "Node " + w + info.getPermission() + g + "=" + w + info.getValue() + g + " (" + w + info.getAttachment().getPlugin().getDescription().getName() + g + ")");
+            }
+        }
+    }
+
+    private void dumpToFile(CommandSender sender, Permissible permissible, List<PermissionAttachmentInfo> dump, PermissionContext context) {
+        // with where our own nodes came from if we know
+        Provenance provenance = null;
+        if (permissible instanceof Player) {
+            provenance = plugin.getResolver().getProvenance(((Player) permissible).getUniqueId(), context);
+        }
+
+        File file = new File(plugin.getDataFolder(), "dump.txt");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            PrintStream out = new PrintStream(fos);
+            // right now permissible is always a CommandSender
+            out.println("PermissionsBukkit dump for: " + ((CommandSender) permissible).getName());
+            out.println(new Date().toString());
+
+            for (PermissionAttachmentInfo info : dump) {
+                if (info.getAttachment() == null) {
+                    out.println(info.getPermission() + "=" + info.getValue() + " (default)");
+                } else if (provenance != null && info.getAttachment().getPlugin() == plugin && provenance.describe(info.getPermission()) != null) {
+                    out.println(info.getPermission() + "=" + info.getValue() + " (" + plugin.getDescription().getName() + ": " + provenance.describe(info.getPermission()) + ")");
+                } else {
+                    out.println(info.getPermission() + "=" + info.getValue() + " (" + info.getAttachment().getPlugin().getDescription().getName() + ")");
+                }
+            }
+
+            out.close();
+            fos.close();
+
+            sender.sendMessage(ChatColor.GREEN + "Permissions dump written to " + ChatColor.WHITE + file);
+        } catch (IOException e) {
+            sender.sendMessage(ChatColor.RED + "Failed to write to dump.txt, see the console for more details");
+            sender.sendMessage(ChatColor.RED + e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    private void importFile(final CommandSender sender, String name) {
+        final File file = new File(plugin.getDataFolder(), name);
+        try {
+            // only read files from our own folder
+            if (!file.getCanonicalPath().startsWith(plugin.getDataFolder().getCanonicalPath() + File.separator)) {
+                sender.sendMessage(ChatColor.RED + "File " + ChatColor.WHITE + name + ChatColor.RED + " is outside the plugin folder.");
+                return;
+            }
+        } catch (IOException e) {
+            sender.sendMessage(ChatColor.RED + "Could not resolve " + ChatColor.WHITE + name + ChatColor.RED + ": " + e);
+            return;
+        }
+        if (!file.isFile()) {
+            sender.sendMessage(ChatColor.RED + "File " + ChatColor.WHITE + name + ChatColor.RED + " not found.");
+            return;
+        }
+
+        sender.sendMessage(ChatColor.GREEN + "Reading " + ChatColor.WHITE + file.getName() + ChatColor.GREEN + "...");
+        plugin.getPlatformScheduler().runAsync(new Runnable() {
+            public void run() {
+                final PermissionsBatch batch;
+                try {
+                    batch = BatchImporter.read(plugin, file);
+                } catch (Exception e) {
+                    sender.sendMessage(ChatColor.RED + "Failed to read " + file.getName() + ", see the console for more details");
+                    sender.sendMessage(ChatColor.RED + e.toString());
+                    e.printStackTrace();
+                    return;
+                }
+
+                // validate and apply on the main thread, where the configuration lives
+                plugin.getPlatformScheduler().runGlobal(new Runnable() {
+                    public void run() {
+                        List<String> problems = batch.validate();
+                        if (!problems.isEmpty()) {
+                            sender.sendMessage(ChatColor.RED + "Nothing was imported, " + ChatColor.WHITE + problems.size() + ChatColor.RED + " problems found:");
+                            for (String problem : problems.subList(0, Math.min(problems.size(), 8))) {
+                                sender.sendMessage("  " + ChatColor.WHITE + problem);
+                            }
+                            if (problems.size() > 8) {
+                                sender.sendMessage(ChatColor.RED + "  (+" + (problems.size() - 8) + " more)");
+                            }
+                            return;
+                        }
+
+                        plugin.getAudit().begin(sender.getName() + " (import " + file.getName() + ")");
+                        try {
+                            batch.commit();
+                        } finally {
+                            plugin.getAudit().end();
+                        }
+                        sender.sendMessage(ChatColor.GREEN + "Imported " + ChatColor.WHITE + batch.size() + ChatColor.GREEN + " changes from " + ChatColor.WHITE + file.getName() + ChatColor.GREEN + ".");
+                    }
+                });
+            }
+        });
+    }
+
+    private void export(CommandSender sender, String format) {
+        if (!exporting.compareAndSet(false, true)) {
+            sender.sendMessage(ChatColor.RED + "An export is already running.");
+            return;
+        }
+
+        File folder = new File(plugin.getDataFolder(), "exports");
+        folder.mkdirs();
+        File file = new File(folder, "permissions-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "." + format);
+
+        // the server's lists can only be read here on the main thread
+        List<String> worlds = new ArrayList<String>();
+        for (World world : plugin.getServer().getWorlds()) {
+            worlds.add(world.getName());
+        }
+        Map<UUID, String> online = new HashMap<UUID, String>();
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            online.put(player.getUniqueId(), player.getName());
+        }
+
+        plugin.getPlatformScheduler().runAsync(new PermissionsExporter(plugin, sender, file, format.equals("csv"), worlds, online, exporting));
+    }
+
     private UUID resolvePlayer(CommandSender sender, String arg) {
         arg = arg.toLowerCase();
 
@@ -517,6 +966,40 @@ final class PermissionsCommand implements CommandExecutor {
 
     // -- utilities --
 
+    // a value and its expiry time go in together, so a rollback can't leave a timed grant permanent
+    private boolean commit(CommandSender sender, PermissionsBatch batch) {
+        List<String> problems = batch.validate();
+        if (!problems.isEmpty()) {
+            sender.sendMessage(ChatColor.RED + "Nothing was changed: " + ChatColor.WHITE + problems.get(0));
+            return false;
+        }
+        batch.commit();
+        return true;
+    }
+
+    // a copy of a user's own groups, without creating their section, so that set() notes if it is new and
+    // a rollback can remove it again
+    private List<String> getGroupList(UUID player) {
+        ConfigurationSection sec = plugin.getNode("users/" + player);
+        return (sec != null) ? sec.getStringList("groups") : new ArrayList<String>();
+    }
+
+    private static boolean isDuration(String arg) {
+        return ExpiryTracker.parseDuration(arg) > 0;
+    }
+
+    // the optional duration argument of a grant, as the time it expires, or 0 if there is none and -1 if it is invalid
+    private static long expiryArg(String[] split, int index) {
+        if (split.length <= index) return 0;
+        long duration = ExpiryTracker.parseDuration(split[index]);
+        return (duration < 0) ? -1 : ExpiryTracker.now() + duration;
+    }
+
+    private static String until(long expires) {
+        if (expires <= 0) return "";
+        return ChatColor.GREEN + " until " + ChatColor.WHITE + Instant.ofEpochSecond(expires);
+    }
+
     private boolean checkPerm(CommandSender sender, String subnode) {
         boolean ok = sender.hasPermission("permissions." + subnode);
         if (!ok) {
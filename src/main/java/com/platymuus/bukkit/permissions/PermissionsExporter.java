@@ -0,0 +1,205 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Writes the effective permissions of every configured user, and every online player, in every known world
+ * to a JSONL or CSV file. Users are resolved in chunks on the plugin's worker threads while this task writes
+ * finished chunks out in order, with only a few chunks in memory at once however many users there are.
+ */
+final class PermissionsExporter implements Runnable {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private final PermissionsPlugin plugin;
+    private final CommandSender sender;
+    private final File file;
+    private final boolean csv;
+    private final Collection<String> serverWorlds;
+    private final Map<UUID, String> onlinePlayers;
+    private final AtomicBoolean running;
+
+    /**
+     * Set up an export. The world and player lists must be taken on the main thread.
+     */
+    public PermissionsExporter(PermissionsPlugin plugin, CommandSender sender, File file, boolean csv, Collection<String> serverWorlds, Map<UUID, String> onlinePlayers, AtomicBoolean running) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.file = file;
+        this.csv = csv;
+        this.serverWorlds = serverWorlds;
+        this.onlinePlayers = onlinePlayers;
+        this.running = running;
+    }
+
+    public void run() {
+        try {
+            int count = export();
+            sender.sendMessage(ChatColor.GREEN + "Exported " + ChatColor.WHITE + count + ChatColor.GREEN + " users to " + ChatColor.WHITE + file.getName() + ChatColor.GREEN + ".");
+        } catch (Exception e) {
+            sender.sendMessage(ChatColor.RED + "Failed to export permissions, see the console for more details");
+            sender.sendMessage(ChatColor.RED + e.toString());
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private int export() throws IOException {
+        // everything is resolved against one snapshot so the export is consistent
+        final PermissionsSnapshot snapshot = plugin.getSnapshot();
+
+        // users keyed by UUID are only put back together in the chunk which formats them
+        List<Entry> entries = new ArrayList<Entry>();
+        for (UUID uuid : snapshot.getUsers().keySet()) {
+            String name = snapshot.getUserName(uuid);
+            if (name == null) {
+                name = onlinePlayers.get(uuid);
+            }
+            entries.add(new Entry(uuid, uuid.toString(), name, null));
+        }
+        for (Map.Entry<String, PermissionInfo> user : snapshot.getLegacyUsers().entrySet()) {
+            entries.add(new Entry(null, user.getKey(), user.getKey(), user.getValue()));
+        }
+        for (Map.Entry<UUID, String> player : onlinePlayers.entrySet()) {
+            if (!snapshot.getUsers().containsKey(player.getKey())) {
+                entries.add(new Entry(null, player.getKey().toString(), player.getValue(), null));
+            }
+        }
+
+        // worlds the server has loaded, plus any the configuration mentions
+        final Set<String> worlds = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        worlds.addAll(serverWorlds);
+        for (PermissionInfo group : snapshot.getGroups()) {
+            worlds.addAll(group.getWorlds());
+        }
+        worlds.addAll(snapshot.getUserWorlds());
+        for (Entry entry : entries) {
+            if (entry.info != null) {
+                worlds.addAll(entry.info.getWorlds());
+            }
+        }
+
+        sender.sendMessage(ChatColor.GREEN + "Exporting " + ChatColor.WHITE + entries.size() + ChatColor.GREEN + " users in " + ChatColor.WHITE + worlds.size() + ChatColor.GREEN + " worlds...");
+
+        int window = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+        Deque<CompletableFuture<String>> pending = new ArrayDeque<CompletableFuture<String>>();
+        int written = 0, reported = 0;
+
+        Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            if (csv) {
+                out.write("id,name,world,node,value\n");
+            }
+            for (int start = 0; start < entries.size() || !pending.isEmpty(); start += CHUNK_SIZE) {
+                if (start < entries.size()) {
+                    final List<Entry> chunk = entries.subList(start, Math.min(start + CHUNK_SIZE, entries.size()));
+                    pending.add(CompletableFuture.supplyAsync(new Supplier<String>() {
+                        public String get() {
+                            return format(snapshot, chunk, worlds);
+                        }
+                    }, plugin.getAsyncExecutor()));
+                    if (pending.size() < window) continue;
+                }
+
+                // write the oldest chunk, waiting for it if need be
+                out.write(pending.poll().join());
+                written = Math.min(entries.size(), written + CHUNK_SIZE);
+                if (written * 10 / Math.max(1, entries.size()) > reported) {
+                    reported = written * 10 / entries.size();
+                    if (reported < 10) {
+                        sender.sendMessage(ChatColor.GREEN + "Export " + ChatColor.WHITE + (reported * 10) + "%" + ChatColor.GREEN + " done...");
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return entries.size();
+    }
+
+    // -- Formatting
+
+    private String format(PermissionsSnapshot snapshot, List<Entry> chunk, Set<String> worlds) {
+        StringBuilder result = new StringBuilder();
+        for (Entry entry : chunk) {
+            PermissionInfo info = (entry.uuid != null) ? snapshot.getUser(entry.uuid) : entry.info;
+            for (String world : worlds) {
+                Map<String, Boolean> perms = new TreeMap<String, Boolean>(plugin.getResolver().getExpandedPermissions(snapshot, info, world));
+                if (csv) {
+                    for (Map.Entry<String, Boolean> perm : perms.entrySet()) {
+                        result.append(csv(entry.id)).append(',').append(csv(entry.name)).append(',').append(csv(world)).append(',')
+                                .append(csv(perm.getKey())).append(',').append(perm.getValue()).append('\n');
+                    }
+                } else {
+                    result.append("{\"id\":").append(json(entry.id)).append(",\"name\":").append(json(entry.name))
+                            .append(",\"world\":").append(json(world)).append(",\"permissions\":{");
+                    boolean first = true;
+                    for (Map.Entry<String, Boolean> perm : perms.entrySet()) {
+                        if (!first) result.append(',');
+                        result.append(json(perm.getKey())).append(':').append(perm.getValue());
+                        first = false;
+                    }
+                    result.append("}}\n");
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    private static final class Entry {
+        // set for users keyed by UUID, whose info is looked up when formatting
+        final UUID uuid;
+        final String id;
+        final String name;
+        final PermissionInfo info;
+
+        Entry(UUID uuid, String id, String name, PermissionInfo info) {
+            this.uuid = uuid;
+            this.id = id;
+            this.name = name;
+            this.info = info;
+        }
+    }
+
+}
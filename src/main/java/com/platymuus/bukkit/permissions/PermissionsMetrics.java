@@ -1,14 +1,10 @@
 package com.platymuus.bukkit.permissions;
 
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.MemoryConfiguration;
 import org.mcstats.Metrics;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
  * Handles statistic tracking for PermissionsBukkit
@@ -57,15 +53,6 @@ final class PermissionsMetrics {
         return result;
     }
 
-    private ConfigurationSection getSection(String name) {
-        // make sure we don't NPE if users or groups is missing
-        ConfigurationSection result = plugin.getNode(name);
-        if (result == null) {
-            result = new MemoryConfiguration();
-        }
-        return result;
-    }
-
     public void apiUsed() {
         apiUsed = true;
     }
@@ -78,15 +65,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Per-user permissions") {
             @Override
             protected boolean value() {
-                ConfigurationSection sec = getSection("users");
-                if (sec == null) return false;
-
-                for (String key : sec.getKeys(false)) {
-                    if (!key.equalsIgnoreCase("ConspiracyWizard") && (sec.isConfigurationSection(key + "/permissions") || sec.isConfigurationSection(key + "/worlds"))) {
-                        return true;
-                    }
-                }
-                return false;
+                return plugin.getCounters().hasUserPermissions();
             }
         });
 
@@ -94,18 +73,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Per-world permissions") {
             @Override
             protected boolean value() {
-                return found(getSection("users")) || found(getSection("groups"));
-            }
-
-            private boolean found(ConfigurationSection section) {
-                if (section == null) return false;
-
-                for (String key : section.getKeys(false)) {
-                    if (section.isConfigurationSection(key + "/worlds")) {
-                        return true;
-                    }
-                }
-                return false;
+                return plugin.getCounters().hasWorldPermissions();
             }
         });
 
@@ -113,14 +81,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Group inheritance") {
             @Override
             protected boolean value() {
-                ConfigurationSection section = getSection("groups");
-
-                for (String key : section.getKeys(false)) {
-                    if (section.contains(key + "/inheritance")) {
-                        return true;
-                    }
-                }
-                return false;
+                return plugin.getCounters().hasInheritance();
             }
         });
 
@@ -128,7 +89,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Anti-build enabled") {
             @Override
             protected boolean value() {
-                return antiBuildEnabled();
+                return plugin.getCounters().hasAntiBuild();
             }
         });
 
@@ -136,7 +97,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Anti-build message") {
             @Override
             protected boolean value() {
-                return antiBuildEnabled() && plugin.getConfig().getString("messages.build", "").length() > 0;
+                return plugin.getCounters().hasAntiBuild() && plugin.getConfig().getString("messages.build", "").length() > 0;
             }
         });
 
@@ -144,14 +105,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Anti-build default") {
             @Override
             protected boolean value() {
-                ConfigurationSection sec = getSection("groups");
-                if (sec == null) return false;
-
-                ConfigurationSection def = sec.getConfigurationSection("default");
-                if (def == null) return false;
-
-                ConfigurationSection perms = sec.getConfigurationSection("permissions");
-                return perms != null && perms.isBoolean("permissions.build") && !perms.getBoolean("permissions.build");
+                return plugin.getCounters().hasAntiBuildDefault();
             }
         });
 
@@ -170,8 +124,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new BooleanPlotter("Wizards") {
             @Override
             protected boolean value() {
-                ConfigurationSection sec = getSection("users");
-                return sec != null && sec.isConfigurationSection("ConspiracyWizard");
+                return plugin.getCounters().hasWizards();
             }
         });
 
@@ -192,40 +145,6 @@ final class PermissionsMetrics {
         });
     }
 
-    private boolean antiBuildEnabled() {
-        ConfigurationSection section = getSection("groups");
-        if (section == null) return false;
-
-        // check each group
-        for (String key : section.getKeys(false)) {
-            if (section.isConfigurationSection(key)) {
-                ConfigurationSection group = section.getConfigurationSection(key);
-
-                // check and see if it sets permissions.build false
-                if (group.isConfigurationSection("permissions")) {
-                    if (!group.getConfigurationSection("permissions").getBoolean("permissions.build", true)) {
-                        return true;
-                    }
-                }
-
-                // check each world
-                if (group.isConfigurationSection("worlds")) {
-                    ConfigurationSection worlds = group.getConfigurationSection("worlds");
-                    for (String world : worlds.getKeys(false)) {
-                        if (worlds.isConfigurationSection(world)) {
-                            // ... if THAT sets permissions.build false
-                            if (!worlds.getConfigurationSection(world).getBoolean("permissions.build", true)) {
-                                return true;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        return false;
-    }
-
     private void setupUsage() {
         Metrics.Graph graph = metrics.createGraph("Usage");
         usage = graph;
@@ -234,8 +153,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new Metrics.Plotter("Users") {
             @Override
             public int getValue() {
-                ConfigurationSection sec = getSection("users");
-                return sec == null ? 0 : sec.getKeys(false).size();
+                return plugin.getCounters().getUsers();
             }
         });
 
@@ -243,8 +161,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new Metrics.Plotter("Groups") {
             @Override
             public int getValue() {
-                ConfigurationSection sec = getSection("groups");
-                return sec == null ? 0 : sec.getKeys(false).size();
+                return plugin.getCounters().getGroups();
             }
         });
 
@@ -252,71 +169,14 @@ final class PermissionsMetrics {
         graph.addPlotter(new Metrics.Plotter("Permissions") {
             @Override
             public int getValue() {
-                return count(getSection("groups")) + count(getSection("users"));
-            }
-
-            private int count(ConfigurationSection section) {
-                if (section == null) return 0;
-
-                int total = 0;
-                for (String key : section.getKeys(false)) {
-                    if (section.isConfigurationSection(key)) {
-                        ConfigurationSection individual = section.getConfigurationSection(key);
-
-                        if (individual.isConfigurationSection("permissions")) {
-                            total += individual.getConfigurationSection("permissions").getKeys(false).size();
-                        }
-
-                        if (individual.isConfigurationSection("worlds")) {
-                            ConfigurationSection worlds = individual.getConfigurationSection("worlds");
-                            for (String world : worlds.getKeys(false)) {
-                                if (worlds.isConfigurationSection(world)) {
-                                    total += worlds.getConfigurationSection(world).getKeys(false).size();
-                                }
-                            }
-                        }
-                    }
-                }
-                return total;
+                return plugin.getCounters().getPermissions();
             }
         });
 
         graph.addPlotter(new Metrics.Plotter("Permission Roots") {
             @Override
             public int getValue() {
-                Set<String> roots = new HashSet<String>();
-                fill(roots, getSection("groups"));
-                fill(roots, getSection("users"));
-                return roots.size();
-            }
-
-            private void fill(Set<String> results, ConfigurationSection section) {
-                if (section == null) return;
-
-                for (String key : section.getKeys(false)) {
-                    if (section.isConfigurationSection(key)) {
-                        ConfigurationSection individual = section.getConfigurationSection(key);
-
-                        if (individual.isConfigurationSection("permissions")) {
-                            for (String node : individual.getConfigurationSection("permissions").getKeys(false)) {
-                                int i = node.indexOf('.');
-                                results.add(i >= 0 ? node.substring(0, i) : node);
-                            }
-                        }
-
-                        if (individual.isConfigurationSection("worlds")) {
-                            ConfigurationSection worlds = individual.getConfigurationSection("worlds");
-                            for (String world : worlds.getKeys(false)) {
-                                if (worlds.isConfigurationSection(world)) {
-                                    for (String node : worlds.getConfigurationSection(world).getKeys(false)) {
-                                        int i = node.indexOf('.');
-                                        results.add(i >= 0 ? node.substring(0, i) : node);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+                return plugin.getCounters().getRoots();
             }
         });
 
@@ -324,24 +184,7 @@ final class PermissionsMetrics {
         graph.addPlotter(new Metrics.Plotter("Worlds") {
             @Override
             public int getValue() {
-                Set<String> worlds = new HashSet<String>();
-                fill(worlds, getSection("groups"));
-                fill(worlds, getSection("users"));
-                return worlds.size();
-            }
-
-            private void fill(Set<String> results, ConfigurationSection section) {
-                if (section == null) return;
-
-                for (String key : section.getKeys(false)) {
-                    if (section.isConfigurationSection(key)) {
-                        ConfigurationSection individual = section.getConfigurationSection(key);
-                        if (individual.isConfigurationSection("worlds")) {
-                            ConfigurationSection worlds = individual.getConfigurationSection("worlds");
-                            results.addAll(worlds.getKeys(false));
-                        }
-                    }
-                }
+                return plugin.getCounters().getWorlds();
             }
         });
     }
@@ -1,12 +1,15 @@
 package com.platymuus.bukkit.permissions;
 
+import org.bukkit.ChatColor;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 import org.bukkit.util.FileUtil;
 
 import java.io.File;
@@ -14,7 +17,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,16 +36,67 @@ public final class PermissionsPlugin extends JavaPlugin {
     private final PermissionsTabComplete tabCompleter = new PermissionsTabComplete(this);
     private final PermissionsMetrics metrics = new PermissionsMetrics(this);
 
-    private final HashMap<UUID, PermissionAttachment> permissions = new HashMap<UUID, PermissionAttachment>();
+    // players are registered and updated from whichever thread owns them, which on some servers isn't just one
+    private final Map<UUID, PermissionAttachment> permissions = new ConcurrentHashMap<UUID, PermissionAttachment>();
+    // the resolved map each attachment was last filled from
+    private final Map<UUID, Map<String, Boolean>> applied = new ConcurrentHashMap<UUID, Map<String, Boolean>>();
+    private final Map<UUID, InjectedPermissible> injected = new ConcurrentHashMap<UUID, InjectedPermissible>();
+    private volatile boolean inject = false;
+    private volatile boolean injectFailed = false;
+    private volatile Map<String, String> serverContexts = Collections.emptyMap();
+    private volatile String buildMessage = "";
+    private PlatformScheduler scheduler;
 
     private File configFile;
     private YamlConfiguration config;
+    // users whose sections were dropped from the configuration, leaving the snapshot's table the only copy
+    private final UuidSet detached = new UuidSet();
+    private UserShards shards;
+    private volatile MutationJournal journal;
+    private volatile boolean compacting = false;
+    private final Object saveLock = new Object();
+    private ChangeBus bus;
+    private ExecutorService asyncExecutor;
+
+    private volatile PermissionsSnapshot snapshot = PermissionsSnapshot.EMPTY;
+    private volatile GroupViews groupViews = GroupViews.EMPTY;
+    private final PermissionResolver resolver = new PermissionResolver(this);
+    private final UsageCounters counters = new UsageCounters();
+    private final NodeIndex index = new NodeIndex();
+    private final Trace trace = new Trace(getLogger());
+    private final TickProfiler profiler = new TickProfiler(this);
+    private final ExpiryTracker expiry = new ExpiryTracker(this);
+    private final LastSeen lastSeen = new LastSeen(getDataFolder());
+    private final NodeUsage usage = new NodeUsage(this);
+    private final AuditLog audit = new AuditLog(this);
+    private final ConfigHistory history = new ConfigHistory();
+    private final UserPruner pruner = new UserPruner(this);
+    private long lastPrune;
 
     public boolean configLoadError = false;
 
+    public PermissionsPlugin() {
+    }
+
+    // for tests, which load the plugin without a plugin class loader
+    PermissionsPlugin(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     // -- Basic stuff
     @Override
     public void onEnable() {
+        scheduler = new PlatformScheduler(this);
+        asyncExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PermissionsBukkit worker " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
         // Take care of configuration
         configFile = new File(getDataFolder(), "config.yml");
         saveDefaultConfig();
@@ -48,17 +106,85 @@ public final class PermissionsPlugin extends JavaPlugin {
         getCommand("permissions").setExecutor(commandExecutor);
         getCommand("permissions").setTabCompleter(tabCompleter);
         getServer().getPluginManager().registerEvents(playerListener, this);
+        scheduler.runAsyncTimer(new Runnable() {
+            public void run() {
+                syncJournal();
+            }
+        }, 20, 20);
+        scheduler.runGlobalTimer(new Runnable() {
+            public void run() {
+                expiry.tick();
+            }
+        }, 20, 20);
+        scheduler.runGlobalTimer(new Runnable() {
+            public void run() {
+                detachUsers();
+            }
+        }, 200, 200);
 
-        // Register everyone online right now
-        for (Player p : getServer().getOnlinePlayers()) {
-            registerPlayer(p);
+        // Keep track of when users were last seen, and prune now and then if configured to
+        try {
+            lastSeen.load();
+        } catch (IOException ex) {
+            getLogger().log(Level.WARNING, "Failed to load last-seen times", ex);
+        }
+        try {
+            usage.load();
+        } catch (IOException ex) {
+            getLogger().log(Level.WARNING, "Failed to load node usage", ex);
         }
-
-        // Metrics are fun!
         try {
-            metrics.start();
+            audit.load();
         } catch (IOException ex) {
-            getLogger().warning("Failed to connect to plugin metrics: " + ex.getMessage());
+            getLogger().log(Level.WARNING, "Failed to load the audit log", ex);
+        }
+        scheduler.runAsyncTimer(new Runnable() {
+            public void run() {
+                flushAudit();
+            }
+        }, 100, 100);
+        scheduler.runAsyncTimer(new Runnable() {
+            public void run() {
+                saveLastSeen();
+            }
+        }, 6000, 6000);
+        lastPrune = System.currentTimeMillis();
+        scheduler.runGlobalTimer(new Runnable() {
+            public void run() {
+                autoPrune();
+            }
+        }, 72000, 72000);
+        startSync();
+
+        // Expanded maps include the children of whatever permissions were registered at the time, so once
+        // every plugin is enabled, work them out again for anyone whose map is used directly
+        if (inject) {
+            scheduler.runGlobal(new Runnable() {
+                public void run() {
+                    resolver.clear();
+                    refreshPermissions();
+                }
+            });
+        }
+
+        // Register everyone online right now
+        for (final Player p : getServer().getOnlinePlayers()) {
+            scheduler.runFor(p, new Runnable() {
+                public void run() {
+                    registerPlayer(p);
+                }
+            });
+        }
+
+        // Metrics are fun! They schedule through the Bukkit scheduler, which region-threaded servers refuse
+        if (scheduler.isRegionized()) {
+            getLogger().info("Plugin metrics are not supported on region-threaded servers, skipping");
+        } else {
+            try {
+                metrics.start();
+            } catch (IOException ex) {
+                getLogger().warning("Failed to connect to plugin metrics: " + ex.getMessage());
+            }
         }
 
         // How are you gentlemen
@@ -80,8 +206,12 @@ public final class PermissionsPlugin extends JavaPlugin {
     public void reloadConfig() {
         config = new YamlConfiguration();
         config.options().pathSeparator('/');
+        detached.clear();
         try {
-            config.load(configFile);
+            StreamingConfigLoader.load(configFile, config);
+            if (loadShards()) {
+                loadJournal();
+            }
         } catch (InvalidConfigurationException ex) {
             configLoadError = true;
 
@@ -133,27 +263,409 @@ public final class PermissionsPlugin extends JavaPlugin {
         } catch (Exception ex) {
             getLogger().log(Level.SEVERE, "Failed to load configuration", ex);
         }
+        List<String> categories = config.isList("trace/categories") ? config.getStringList("trace/categories") : Arrays.asList("all");
+        trace.configure(categories, config.getInt("trace/buffer-size", 1024), config.getBoolean("debug", false));
+
+        Map<String, String> contexts = new HashMap<String, String>();
+        ConfigurationSection contextsNode = config.getConfigurationSection("server-contexts");
+        if (contextsNode != null) {
+            for (String key : contextsNode.getKeys(false)) {
+                contexts.put(key, contextsNode.getString(key));
+            }
+        }
+        serverContexts = contexts;
+        inject = config.getBoolean("inject-permissible", false) && !injectFailed;
+        usage.configure(config.getInt("usage/sample-percent", 0), config.getBoolean("usage/strip-unused", false));
+        audit.configure(config.getBoolean("audit/enabled", true), config.getInt("audit/max-size", 1024), config.getInt("audit/keep", 10));
+        history.configure(config.getInt("history/size", 100));
+        buildMessage = ChatColor.translateAlternateColorCodes('&', config.getString("messages/build", ""));
+
+        rebuildSnapshot();
+        history.reset(snapshot);
+    }
+
+    private boolean loadShards() {
+        shards = null;
+        if (!"sharded".equalsIgnoreCase(config.getString("storage/layout"))) {
+            return true;
+        }
+
+        UserShards loaded = new UserShards(new File(getDataFolder(), "users"), config.getInt("storage/shards", 256));
+        try {
+            boolean imported = loaded.load(createNode("users"));
+            loaded.flush(userSource);
+            shards = loaded;
+            if (imported) {
+                // users were moved out of config.yml, so drop them from it
+                getLogger().info("Moved users from config.yml into shard files");
+                synchronized (saveLock) {
+                    copyConfig(false).save(configFile);
+                }
+            }
+            return true;
+        } catch (Exception ex) {
+            configLoadError = true;
+            getLogger().log(Level.SEVERE, "Failed to load user shards, no permissions will be loaded", ex);
+
+            // don't run (or save) with only half of the data
+            config = new YamlConfiguration();
+            config.options().pathSeparator('/');
+            return false;
+        }
+    }
+
+    private void loadJournal() {
+        MutationJournal loaded = (journal != null) ? journal : new MutationJournal(getDataFolder());
+        journal = null;
+        try {
+            int count = loaded.replay(new MutationJournal.Target() {
+                public void replaySet(String section, String key, Object value) {
+                    if (value != null) {
+                        createNode(section).set(key, value);
+                    } else if (getNode(section) != null) {
+                        getNode(section).set(key, null);
+                    }
+                }
+
+                public void replayMove(String from, String to) {
+                    moveNode(from, to);
+                }
+            });
+            if (count > 0) {
+                getLogger().info("Replayed " + count + " changes from " + loaded.getFile());
+            }
+
+            if (config.getBoolean("storage/journal", false)) {
+                loaded.open();
+                journal = loaded;
+                if (count > 0) {
+                    compactJournal();
+                }
+            } else {
+                // journal was turned off, fold anything left in it into the configuration for good
+                loaded.close();
+                if (count > 0) {
+                    writeConfig();
+                }
+                loaded.delete();
+            }
+        } catch (IOException ex) {
+            configLoadError = true;
+            getLogger().log(Level.SEVERE, "Failed to replay the journal, no permissions will be loaded", ex);
+
+            config = new YamlConfiguration();
+            config.options().pathSeparator('/');
+        }
     }
 
     @Override
     public void saveConfig() {
         // If there's no keys (such as in the event of a load failure) don't save
-        if (config.getKeys(true).size() > 0) {
+        if (config.getKeys(false).size() > 0) {
+            try {
+                writeConfig();
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
+            }
+        }
+    }
+
+    private void writeConfig() throws IOException {
+        synchronized (saveLock) {
+            if (shards != null) {
+                shards.saveAll(userSource);
+                copyConfig(false).save(configFile);
+            } else {
+                copyConfig(true).save(configFile);
+            }
+        }
+    }
+
+    /**
+     * Save changes to a single user, writing only their shard if shards are in use.
+     */
+    protected void saveUser(String key) {
+        if (shards == null) {
+            saveConfig();
+        } else if (config.getKeys(false).size() > 0) {
+            try {
+                synchronized (saveLock) {
+                    shards.save(userSource, key);
+                }
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to save user " + key, ex);
+            }
+        }
+    }
+
+    /**
+     * Save changes to anything but users, leaving shards untouched if they are in use.
+     */
+    protected void saveBase() {
+        if (shards == null) {
+            saveConfig();
+        } else if (config.getKeys(false).size() > 0) {
             try {
-                config.save(configFile);
+                synchronized (saveLock) {
+                    copyConfig(false).save(configFile);
+                }
             } catch (IOException ex) {
                 getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
             }
         }
     }
 
+    protected boolean isSharded() {
+        return shards != null;
+    }
+
+    protected void convertStorage(boolean sharded) throws IOException {
+        synchronized (saveLock) {
+            if (sharded) {
+                createNode("storage").set("layout", "sharded");
+                UserShards converted = new UserShards(new File(getDataFolder(), "users"), config.getInt("storage/shards", 256));
+                // write the shards first, config.yml still holds everyone until they exist
+                converted.saveAll(userSource);
+                copyConfig(false).save(configFile);
+                shards = converted;
+            } else {
+                createNode("storage").set("layout", "single");
+                copyConfig(true).save(configFile);
+                if (shards != null) {
+                    shards.deleteAll();
+                    shards = null;
+                }
+            }
+        }
+    }
+
+    // a detached deep copy, safe to write out from another thread
+    private YamlConfiguration copyConfig(boolean users) {
+        YamlConfiguration copy = new YamlConfiguration();
+        copy.options().pathSeparator('/');
+        copy.options().header(config.options().header());
+        for (String key : config.getKeys(false)) {
+            if (!users && key.equalsIgnoreCase("users")) {
+                continue;
+            }
+            if (config.isConfigurationSection(key)) {
+                UserShards.copy(config.getConfigurationSection(key), copy.createSection(key));
+            } else {
+                copy.set(key, config.get(key));
+            }
+        }
+        if (users && !detached.isEmpty()) {
+            ConfigurationSection section = copy.isConfigurationSection("users") ? copy.getConfigurationSection("users") : copy.createSection("users");
+            for (UUID uuid : detached) {
+                writeUser(snapshot.getUser(uuid), section.createSection(uuid.toString()));
+            }
+        }
+        return copy;
+    }
+
+    // every user, whether their section is in the configuration or was detached from it
+    private final UserShards.Source userSource = new UserShards.Source() {
+        public Collection<String> getKeys() {
+            List<String> keys = new ArrayList<String>();
+            ConfigurationSection users = config.getConfigurationSection("users");
+            if (users != null) {
+                keys.addAll(users.getKeys(false));
+            }
+            for (UUID uuid : detached) {
+                keys.add(uuid.toString());
+            }
+            return keys;
+        }
+
+        public ConfigurationSection get(String key) {
+            ConfigurationSection users = config.getConfigurationSection("users");
+            if (users != null && users.isConfigurationSection(key)) {
+                return users.getConfigurationSection(key);
+            }
+            UUID uuid = PermissionsSnapshot.parseUUID(key);
+            if (uuid == null || !key.equals(uuid.toString()) || !detached.contains(uuid)) {
+                return null;
+            }
+            // written out afresh, and left out of the configuration
+            YamlConfiguration out = new YamlConfiguration();
+            out.options().pathSeparator('/');
+            ConfigurationSection result = out.createSection(key);
+            writeUser(snapshot.getUser(uuid), result);
+            return result;
+        }
+    };
+
+    // -- Sync
+
+    private void startSync() {
+        String serverId = config.getString("sync/server-id", UUID.randomUUID().toString());
+        bus = new ChangeBus(this, serverId, config.getBoolean("sync/persist", false));
+
+        String type = config.getString("sync/transport", "none");
+        ChangeTransport transport;
+        if (type.equalsIgnoreCase("tcp")) {
+            List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+            for (String peer : config.getStringList("sync/peers")) {
+                int i = peer.lastIndexOf(':');
+                if (i < 0) {
+                    getLogger().warning("Ignoring sync peer without a port: " + peer);
+                    continue;
+                }
+                peers.add(new InetSocketAddress(peer.substring(0, i), Integer.parseInt(peer.substring(i + 1))));
+            }
+            InetSocketAddress bind = new InetSocketAddress(config.getString("sync/host", "127.0.0.1"), config.getInt("sync/port", 25590));
+            transport = new TcpChangeTransport(getLogger(), bind, peers, config.getString("sync/secret", ""));
+        } else if (type.equalsIgnoreCase("directory")) {
+            File folder = new File(config.getString("sync/directory", new File(getDataFolder(), "sync").getPath()));
+            transport = new DirectoryChangeTransport(getLogger(), folder, config.getLong("sync/poll-millis", 500), serverId);
+        } else {
+            if (!type.equalsIgnoreCase("none")) {
+                getLogger().warning("Unknown sync transport: " + type);
+            }
+            return;
+        }
+        setChangeTransport(transport);
+    }
+
+    protected ChangeBus getChangeBus() {
+        return bus;
+    }
+
+    protected void applyRemoteSet(String section, String key, Object value, boolean persist) {
+        attachUser(section, key);
+        ConfigurationSection node;
+        if (value != null) {
+            node = createNode(section);
+        } else if ((node = getNode(section)) == null) {
+            return;
+        }
+        audit.record("sync", node.getCurrentPath(), key, node.get(key), value);
+        node.set(key, value);
+        updateSnapshot(node.getCurrentPath() + "/" + key);
+        if (persist) {
+            persistSet(node.getCurrentPath(), key, value);
+        }
+    }
+
+    protected void applyRemoteMove(String from, String to, boolean persist) {
+        ConfigurationSection source = getNode(from);
+        if (source == null) return;
+        String fromPath = source.getCurrentPath();
+        ConfigurationSection dest = moveNode(fromPath, to);
+        updateSnapshot(fromPath);
+        updateSnapshot(dest.getCurrentPath());
+        if (persist) {
+            persistMove(fromPath, dest.getCurrentPath());
+        }
+    }
+
+    // -- Journal
+
+    private void syncJournal() {
+        MutationJournal current = journal;
+        if (current == null) return;
+        try {
+            current.sync();
+        } catch (IOException ex) {
+            getLogger().log(Level.SEVERE, "Failed to sync the journal", ex);
+        }
+    }
+
+    private boolean appendJournal(String section, String key, Object value) {
+        MutationJournal current = journal;
+        if (current == null) return false;
+        try {
+            current.appendSet(section, key, value);
+        } catch (IOException ex) {
+            getLogger().log(Level.SEVERE, "Failed to write to the journal, saving in full instead", ex);
+            return false;
+        }
+        if (current.size() > config.getLong("storage/compact-size", 1048576)) {
+            compactJournal();
+        }
+        return true;
+    }
+
+    private void compactJournal() {
+        final MutationJournal current = journal;
+        if (current == null || compacting) return;
+
+        try {
+            current.rotate();
+        } catch (IOException ex) {
+            getLogger().log(Level.SEVERE, "Failed to rotate the journal", ex);
+            return;
+        }
+
+        // copy whatever changed now, the copies are written out in the background
+        final Map<File, YamlConfiguration> writes = new LinkedHashMap<File, YamlConfiguration>();
+        final Set<String> users = current.takeTouchedUsers();
+        final boolean base = current.takeTouchedBase();
+        if (shards != null) {
+            writes.putAll(shards.prepare(userSource, users));
+            if (base) {
+                writes.put(configFile, copyConfig(false));
+            }
+        } else {
+            writes.put(configFile, copyConfig(true));
+        }
+
+        compacting = true;
+        trace.log(Trace.IO, "Compacting journal: %d files to write", writes.size());
+        scheduler.runAsync(new Runnable() {
+            public void run() {
+                try {
+                    synchronized (saveLock) {
+                        for (Map.Entry<File, YamlConfiguration> entry : writes.entrySet()) {
+                            if (entry.getValue().getKeys(false).isEmpty() && !entry.getKey().equals(configFile)) {
+                                if (entry.getKey().exists() && !entry.getKey().delete()) {
+                                    throw new IOException("Failed to delete " + entry.getKey());
+                                }
+                            } else {
+                                entry.getValue().save(entry.getKey());
+                            }
+                        }
+                    }
+                    current.finishCompaction();
+                } catch (IOException ex) {
+                    // the rotated file stays, and the next compaction takes it up again along with these
+                    current.restoreTouched(users, base);
+                    getLogger().log(Level.SEVERE, "Failed to compact the journal, it will be retried or replayed at startup", ex);
+                } finally {
+                    compacting = false;
+                }
+            }
+        });
+    }
+
     @Override
     public void onDisable() {
-        // Unregister everyone
+        profiler.stop();
+
+        // Unregister everyone, handing back their own permissibles first
+        for (InjectedPermissible injection : injected.values()) {
+            injection.uninject();
+        }
         for (Player p : getServer().getOnlinePlayers()) {
             unregisterPlayer(p);
         }
 
+        if (bus != null) {
+            bus.stop();
+        }
+        asyncExecutor.shutdown();
+        saveLastSeen();
+        flushAudit();
+
+        // Make sure the last few changes hit the disk
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to close the journal", ex);
+            }
+        }
+
         // Good day to you! I said good day!
         int count = getServer().getOnlinePlayers().size();
         if (count > 0) {
@@ -171,14 +683,7 @@ public final class PermissionsPlugin extends JavaPlugin {
      */
     public Group getGroup(String groupName) {
         metrics.apiUsed();
-        if (getNode("groups") != null) {
-            for (String key : getNode("groups").getKeys(false)) {
-                if (key.equalsIgnoreCase(groupName)) {
-                    return new Group(this, key);
-                }
-            }
-        }
-        return null;
+        return getGroupViews().get(groupName);
     }
 
     /**
@@ -191,16 +696,8 @@ public final class PermissionsPlugin extends JavaPlugin {
     @Deprecated
     public List<Group> getGroups(String playerName) {
         metrics.apiUsed();
-        ArrayList<Group> result = new ArrayList<Group>();
-        ConfigurationSection node = getUsernameNode(playerName);
-        if (node != null) {
-            for (String key : node.getStringList("groups")) {
-                result.add(new Group(this, key));
-            }
-        } else {
-            result.add(new Group(this, "default"));
-        }
-        return result;
+        PermissionInfo info = snapshot.getUserByName(playerName);
+        return toGroups((info != null) ? info.getGroupNames() : null);
     }
 
     /**
@@ -211,15 +708,7 @@ public final class PermissionsPlugin extends JavaPlugin {
      */
     public List<Group> getGroups(UUID player) {
         metrics.apiUsed();
-        ArrayList<Group> result = new ArrayList<Group>();
-        if (getNode("users/" + player) != null) {
-            for (String key : getNode("users/" + player).getStringList("groups")) {
-                result.add(new Group(this, key));
-            }
-        } else {
-            result.add(new Group(this, "default"));
-        }
-        return result;
+        return toGroups(snapshot.getUserGroupNames(player));
     }
 
     /**
@@ -232,12 +721,7 @@ public final class PermissionsPlugin extends JavaPlugin {
     @Deprecated
     public PermissionInfo getPlayerInfo(String playerName) {
         metrics.apiUsed();
-        ConfigurationSection node = getUsernameNode(playerName);
-        if (node == null) {
-            return null;
-        } else {
-            return new PermissionInfo(this, node, "groups");
-        }
+        return snapshot.getUserByName(playerName);
     }
 
     /**
@@ -248,100 +732,609 @@ public final class PermissionsPlugin extends JavaPlugin {
      */
     public PermissionInfo getPlayerInfo(UUID player) {
         metrics.apiUsed();
-        if (getNode("users/" + player) == null) {
-            return null;
-        } else {
-            return new PermissionInfo(this, getNode("users/" + player), "groups");
-        }
+        return snapshot.getUser(player);
     }
 
     /**
      * Returns a list of all defined groups.
      *
-     * @return The list of groups.
+     * @return The unmodifiable list of groups.
      */
     public List<Group> getAllGroups() {
         metrics.apiUsed();
-        ArrayList<Group> result = new ArrayList<Group>();
-        if (getNode("groups") != null) {
-            for (String key : getNode("groups").getKeys(false)) {
-                result.add(new Group(this, key));
-            }
-        }
-        return result;
+        return getGroupViews().getAll();
     }
 
-    // -- Plugin stuff
-
-    protected PermissionsMetrics getMetrics() {
-        return metrics;
+    /**
+     * Check whether a player has a permission in a world, whether or not they are online.
+     * Safe to call from any thread.
+     *
+     * @param player The uuid of the player.
+     * @param node The permission node.
+     * @param world The name of the world.
+     * @return Whether the player would have the permission in that world.
+     */
+    public boolean hasPermission(UUID player, String node, String world) {
+        metrics.apiUsed();
+        return resolver.hasPermission(player, node, world);
     }
 
-    protected void registerPlayer(Player player) {
-        if (permissions.containsKey(player.getUniqueId())) {
-            debug("Registering " + player.getName() + ": was already registered");
-            unregisterPlayer(player);
-        }
-        PermissionAttachment attachment = player.addAttachment(this);
-        permissions.put(player.getUniqueId(), attachment);
-        calculateAttachment(player);
+    /**
+     * Returns the permissions this plugin would give a player in a world, whether or not they are online.
+     * Safe to call from any thread.
+     *
+     * @param player The uuid of the player.
+     * @param world The name of the world.
+     * @return The unmodifiable map of permission nodes, in the order they are applied.
+     */
+    public Map<String, Boolean> getEffectivePermissions(UUID player, String world) {
+        metrics.apiUsed();
+        return resolver.getEffectivePermissions(player, world);
     }
 
-    protected void unregisterPlayer(Player player) {
-        if (permissions.containsKey(player.getUniqueId())) {
-            try {
-                player.removeAttachment(permissions.get(player.getUniqueId()));
-            } catch (IllegalArgumentException ex) {
-                debug("Unregistering " + player.getName() + ": player did not have attachment");
-            }
-            permissions.remove(player.getUniqueId());
-        } else {
-            debug("Unregistering " + player.getName() + ": was not registered");
-        }
+    /**
+     * Find every user and group which sets a permission node, in any world or context. Safe to call from any thread.
+     *
+     * @param node The permission node, ignoring case.
+     * @param prefix Whether to also find every node starting with the given text, such as "worldedit.".
+     * @return The holders, sorted by node and then by owner.
+     */
+    public List<NodeHolder> findHolders(String node, boolean prefix) {
+        metrics.apiUsed();
+        return index.find(node, prefix);
     }
 
-    protected void refreshForPlayer(UUID player) {
-        saveConfig();
-        debug("Refreshing for player " + player);
-
-        Player onlinePlayer = getServer().getPlayer(player);
-        if (onlinePlayer != null) {
-            calculateAttachment(onlinePlayer);
-        }
+    /**
+     * Start a batch of changes which will be applied, saved and refreshed all at once.
+     *
+     * @return The new, empty batch.
+     */
+    public PermissionsBatch newBatch() {
+        metrics.apiUsed();
+        return new PermissionsBatch(this);
     }
 
-    private void fillChildGroups(HashSet<String> childGroups, String group) {
-        if (childGroups.contains(group)) return;
-        childGroups.add(group);
+    /**
+     * Returns a list of groups a player is in, computed off the main thread.
+     *
+     * @param player The uuid of the player.
+     * @return A future for the groups this player is in.
+     */
+    public CompletableFuture<List<Group>> getGroupsAsync(final UUID player) {
+        return CompletableFuture.supplyAsync(new Supplier<List<Group>>() {
+            public List<Group> get() {
+                return getGroups(player);
+            }
+        }, asyncExecutor);
+    }
 
-        for (String key : getNode("groups").getKeys(false)) {
-            for (String parent : getNode("groups/" + key).getStringList("inheritance")) {
-                if (parent.equalsIgnoreCase(group)) {
-                    fillChildGroups(childGroups, key);
-                }
+    /**
+     * Returns permission info on the given player, computed off the main thread.
+     *
+     * @param player The uuid of the player.
+     * @return A future for the PermissionsInfo about this player.
+     */
+    public CompletableFuture<PermissionInfo> getPlayerInfoAsync(final UUID player) {
+        return CompletableFuture.supplyAsync(new Supplier<PermissionInfo>() {
+            public PermissionInfo get() {
+                return getPlayerInfo(player);
             }
-        }
+        }, asyncExecutor);
     }
 
-    protected void refreshForGroup(String group) {
-        saveConfig();
+    /**
+     * Returns a list of all defined groups, computed off the main thread.
+     *
+     * @return A future for the list of groups.
+     */
+    public CompletableFuture<List<Group>> getAllGroupsAsync() {
+        return CompletableFuture.supplyAsync(new Supplier<List<Group>>() {
+            public List<Group> get() {
+                return getAllGroups();
+            }
+        }, asyncExecutor);
+    }
 
-        // build the set of groups which are children of "group"
+    /**
+     * Returns the players in a group, found off the main thread. Needs to look at every user.
+     *
+     * @param groupName The name of the group.
+     * @return A future for the players in the group, or null if the group does not exist.
+     */
+    public CompletableFuture<List<UUID>> getGroupPlayersAsync(final String groupName) {
+        return CompletableFuture.supplyAsync(new Supplier<List<UUID>>() {
+            public List<UUID> get() {
+                Group group = getGroup(groupName);
+                return group == null ? null : group.getPlayerUUIDs();
+            }
+        }, asyncExecutor);
+    }
+
+    /**
+     * Replace the transport used to exchange changes with other servers which share permissions.
+     *
+     * @param transport The transport to use.
+     */
+    public void setChangeTransport(ChangeTransport transport) {
+        metrics.apiUsed();
+        try {
+            bus.start(transport);
+            getLogger().info("Sharing permission changes using " + transport.getClass().getSimpleName());
+        } catch (IOException ex) {
+            getLogger().log(Level.SEVERE, "Failed to start sharing permission changes", ex);
+        }
+    }
+
+    // -- Plugin stuff
+
+    protected PermissionsMetrics getMetrics() {
+        return metrics;
+    }
+
+    protected Trace getTrace() {
+        return trace;
+    }
+
+    protected LastSeen getLastSeen() {
+        return lastSeen;
+    }
+
+    protected UserPruner getPruner() {
+        return pruner;
+    }
+
+    protected TickProfiler getProfiler() {
+        return profiler;
+    }
+
+    protected PermissionResolver getResolver() {
+        return resolver;
+    }
+
+    protected UsageCounters getCounters() {
+        return counters;
+    }
+
+    protected NodeIndex getIndex() {
+        return index;
+    }
+
+    protected PermissionsSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    protected Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    protected NodeUsage getNodeUsage() {
+        return usage;
+    }
+
+    protected AuditLog getAudit() {
+        return audit;
+    }
+
+    protected ConfigHistory getHistory() {
+        return history;
+    }
+
+    protected PlatformScheduler getPlatformScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get the message for players without permissions.build, or an empty string. Safe from any thread.
+     */
+    protected String getBuildMessage() {
+        return buildMessage;
+    }
+
+    /**
+     * Get the canonical Group objects, made again only if the groups have changed. Safe from any thread.
+     */
+    protected GroupViews getGroupViews() {
+        PermissionsSnapshot current = snapshot;
+        GroupViews views = groupViews;
+        if (views.getGroupsVersion() != current.getGroupsVersion()) {
+            views = GroupViews.of(this, current, views);
+            groupViews = views;
+        }
+        return views;
+    }
+
+    private List<Group> toGroups(List<String> names) {
+        GroupViews views = getGroupViews();
+        ArrayList<Group> result = new ArrayList<Group>();
+        for (String key : (names != null) ? names : Collections.singletonList("default")) {
+            // memberships of groups which don't exist are still reported
+            Group group = views.get(key);
+            result.add(group != null ? group : new Group(this, key));
+        }
+        return result;
+    }
+
+    // -- Snapshots
+
+    private void rebuildSnapshot() {
+        PermissionsSnapshot.Builder builder = new PermissionsSnapshot.Builder(snapshot.getVersion() + 1);
+        counters.clear();
+        index.clear();
+        expiry.clear();
+        ConfigurationSection groups = getNode("groups");
+        if (groups != null) {
+            for (String key : groups.getKeys(false)) {
+                if (groups.isConfigurationSection(key)) {
+                    PermissionInfo info = readGroup(groups.getConfigurationSection(key));
+                    builder.addGroup(key, info);
+                    counters.updateGroup(key, null, info);
+                    index.updateGroup(key, null, info);
+                    expiry.scan(groups.getConfigurationSection(key));
+                }
+            }
+        }
+        ConfigurationSection users = getNode("users");
+        if (users != null) {
+            for (String key : users.getKeys(false)) {
+                if (users.isConfigurationSection(key)) {
+                    PermissionInfo info = readUser(users.getConfigurationSection(key));
+                    builder.addUser(key, info);
+                    counters.updateUser(key, null, info);
+                    index.updateUser(key, null, info);
+                    expiry.scan(users.getConfigurationSection(key));
+                }
+            }
+        }
+        // detached users are only in the last snapshot, and never have anything to expire
+        for (UUID uuid : detached) {
+            PermissionInfo info = snapshot.getUser(uuid);
+            builder.addUser(uuid.toString(), info);
+            counters.updateUser(uuid.toString(), null, info);
+            index.updateUser(uuid.toString(), null, info);
+        }
+        snapshot = builder.build();
+        resolver.clear();
+        detachUsers();
+    }
+
+    // -- Detached users
+
+    /**
+     * Drop from the configuration every user section which the snapshot's table can write out again exactly,
+     * so that most users are held only there. Runs after loading and then now and then, rather than after
+     * each change, so that nobody is left holding a section which is no longer in the configuration.
+     */
+    private void detachUsers() {
+        ConfigurationSection users = config.getConfigurationSection("users");
+        if (users == null) return;
+        for (String key : new ArrayList<String>(users.getKeys(false))) {
+            UUID uuid = PermissionsSnapshot.parseUUID(key);
+            if (uuid == null || !key.equals(uuid.toString()) || !users.isConfigurationSection(key)) continue;
+            PermissionInfo info = snapshot.getUser(uuid);
+            if (info != null && isWrittenAs(users.getConfigurationSection(key), info)) {
+                users.set(key, null);
+                detached.add(uuid);
+            }
+        }
+    }
+
+    // put a detached user's section back into the configuration, for something about to read or change it
+    private void attachUser(String key) {
+        UUID uuid = PermissionsSnapshot.parseUUID(key);
+        if (uuid == null || !detached.remove(uuid)) return;
+        writeUser(snapshot.getUser(uuid), createNode("users").createSection(uuid.toString()));
+    }
+
+    /**
+     * Put back the section of a user being changed through the users section itself, such as when the whole
+     * entry is removed, so that the change isn't made to a section which isn't there.
+     */
+    void attachUser(String section, String key) {
+        if (section.equalsIgnoreCase("users")) {
+            attachUser(key);
+        }
+    }
+
+    // only entries with no worlds, contexts or expiries get here, so these are all there is to write
+    private static void writeUser(PermissionInfo info, ConfigurationSection node) {
+        if (info.getName() != null) {
+            node.set("name", info.getName());
+        }
+        if (!info.getGroupNames().isEmpty()) {
+            node.set("groups", new ArrayList<String>(info.getGroupNames()));
+        }
+        if (!info.getPermissions().isEmpty()) {
+            ConfigurationSection perms = node.createSection("permissions");
+            for (Map.Entry<String, Boolean> entry : info.getPermissions().entrySet()) {
+                perms.set(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // whether writeUser would give back the same section, apart from the order of its keys
+    private static boolean isWrittenAs(ConfigurationSection node, PermissionInfo info) {
+        if (!info.getWorlds().isEmpty() || !info.getContextRules().isEmpty()) {
+            return false;
+        }
+        int keys = 0;
+        if (info.getName() != null) {
+            if (!info.getName().equals(node.get("name"))) return false;
+            keys++;
+        }
+        if (!info.getGroupNames().isEmpty()) {
+            if (!info.getGroupNames().equals(node.get("groups"))) return false;
+            keys++;
+        }
+        if (!info.getPermissions().isEmpty()) {
+            ConfigurationSection perms = node.getConfigurationSection("permissions");
+            if (perms == null) return false;
+            Map<String, Object> values = perms.getValues(false);
+            if (!values.equals(info.getPermissions()) || !new ArrayList<String>(values.keySet()).equals(new ArrayList<String>(info.getPermissions().keySet()))) {
+                return false;
+            }
+            keys++;
+        }
+        return node.getKeys(false).size() == keys;
+    }
+
+    // publish a new snapshot with the user or group holding this path re-read
+    private void updateSnapshot(String path) {
+        String[] pieces = path.split("/");
+        if (pieces.length < 2) {
+            if (pieces[0].equalsIgnoreCase("users") || pieces[0].equalsIgnoreCase("groups")) {
+                rebuildSnapshot();
+            }
+            return;
+        }
+
+        ConfigurationSection node = getNode(pieces[0] + "/" + pieces[1]);
+        String key = (node != null) ? node.getName() : pieces[1];
+        if (node != null) {
+            expiry.scan(node);
+        }
+        if (pieces[0].equalsIgnoreCase("users")) {
+            PermissionInfo info = (node != null) ? readUser(node) : null;
+            counters.updateUser(key, snapshot.getUser(key), info);
+            index.updateUser(key, snapshot.getUser(key), info);
+            snapshot = snapshot.withUser(key, info);
+        } else if (pieces[0].equalsIgnoreCase("groups")) {
+            PermissionInfo info = (node != null) ? readGroup(node) : null;
+            counters.updateGroup(key, snapshot.getGroup(key), info);
+            index.updateGroup(key, snapshot.getGroup(key), info);
+            snapshot = snapshot.withGroup(key, info);
+        }
+    }
+
+    private PermissionInfo readGroup(ConfigurationSection node) {
+        return readInfo(node, "group " + node.getName(), node.getName(), "inheritance");
+    }
+
+    private PermissionInfo readUser(ConfigurationSection node) {
+        String name = node.getString("name");
+        if (name == null && PermissionsSnapshot.parseUUID(node.getName()) == null) {
+            // unconverted node, keyed by name
+            name = node.getName();
+        }
+        return readInfo(node, "user " + node.getName(), name, "groups");
+    }
+
+    private PermissionInfo readInfo(ConfigurationSection node, String desc, String name, String groupType) {
+        Map<String, Boolean> perms = Collections.emptyMap();
+        ConfigurationSection permsNode = findNode(node, new String[]{"permissions"}, 0);
+        if (permsNode != null) {
+            perms = Collections.unmodifiableMap(getAllPerms(desc, permsNode));
+        }
+
+        Map<String, Map<String, Boolean>> worlds = new LinkedHashMap<String, Map<String, Boolean>>();
+        ConfigurationSection worldsNode = findNode(node, new String[]{"worlds"}, 0);
+        if (worldsNode != null) {
+            for (String world : worldsNode.getKeys(false)) {
+                if (worldsNode.isConfigurationSection(world)) {
+                    worlds.put(world, Collections.unmodifiableMap(getAllPerms(desc + " world " + world, worldsNode.getConfigurationSection(world))));
+                }
+            }
+        }
+
+        List<String> contextLabels = new ArrayList<String>();
+        List<Map<String, Boolean>> contextPerms = new ArrayList<Map<String, Boolean>>();
+        ConfigurationSection contextsNode = findNode(node, new String[]{"contexts"}, 0);
+        if (contextsNode != null) {
+            for (String context : contextsNode.getKeys(false)) {
+                if (contextsNode.isConfigurationSection(context)) {
+                    contextLabels.add(context);
+                    contextPerms.add(Collections.unmodifiableMap(getAllPerms(desc + " context " + context, contextsNode.getConfigurationSection(context))));
+                }
+            }
+        }
+
+        List<String> groups = new ArrayList<String>(node.getStringList(groupType));
+
+        // leave out anything which has expired but not been removed yet
+        if (node.isConfigurationSection("expiry")) {
+            long now = ExpiryTracker.now();
+            for (Iterator<String> it = groups.iterator(); it.hasNext(); ) {
+                if (ExpiryTracker.isExpired(node, groupType + "/" + it.next(), now)) it.remove();
+            }
+            perms = withoutExpired(node, "permissions", perms, now);
+            for (Map.Entry<String, Map<String, Boolean>> world : worlds.entrySet()) {
+                world.setValue(withoutExpired(node, "worlds/" + world.getKey(), world.getValue(), now));
+            }
+            for (int i = 0; i < contextLabels.size(); ++i) {
+                contextPerms.set(i, withoutExpired(node, "contexts/" + contextLabels.get(i), contextPerms.get(i), now));
+            }
+        }
+
+        List<ContextRule> contexts = new ArrayList<ContextRule>();
+        for (int i = 0; i < contextLabels.size(); ++i) {
+            Map<String, String> condition = PermissionContext.parseCondition(contextLabels.get(i));
+            if (condition == null) {
+                getLogger().warning("In " + desc + ": context " + contextLabels.get(i) + " is not of the form key=value,...");
+                continue;
+            }
+            contexts.add(new ContextRule(contextLabels.get(i), condition, contextPerms.get(i)));
+        }
+
+        return new PermissionInfo(this, name, Collections.unmodifiableList(groups), perms, Collections.unmodifiableMap(worlds), Collections.unmodifiableList(contexts));
+    }
+
+    private Map<String, Boolean> withoutExpired(ConfigurationSection node, String prefix, Map<String, Boolean> perms, long now) {
+        Map<String, Boolean> result = null;
+        for (String perm : perms.keySet()) {
+            if (ExpiryTracker.isExpired(node, prefix + "/" + perm, now)) {
+                if (result == null) result = new LinkedHashMap<String, Boolean>(perms);
+                result.remove(perm);
+            }
+        }
+        return (result == null) ? perms : Collections.unmodifiableMap(result);
+    }
+
+    // only users with an entry are worth remembering, since nobody else can be pruned
+    protected void markSeen(Player player) {
+        if (snapshot.getUsers().containsKey(player.getUniqueId())) {
+            lastSeen.seen(player.getUniqueId().toString(), ExpiryTracker.now());
+        }
+    }
+
+    private void saveLastSeen() {
+        try {
+            lastSeen.save();
+        } catch (IOException ex) {
+            getLogger().log(Level.WARNING, "Failed to save last-seen times", ex);
+        }
+        try {
+            usage.save();
+        } catch (IOException ex) {
+            getLogger().log(Level.WARNING, "Failed to save node usage", ex);
+        }
+    }
+
+    private void flushAudit() {
+        try {
+            audit.flush();
+        } catch (IOException ex) {
+            getLogger().log(Level.WARNING, "Failed to write the audit log", ex);
+        }
+    }
+
+    private void autoPrune() {
+        long hours = getConfig().getInt("prune/interval-hours", 0);
+        if (hours <= 0 || System.currentTimeMillis() - lastPrune < hours * 3600000L) return;
+        lastPrune = System.currentTimeMillis();
+        pruner.start(getServer().getConsoleSender(), getConfig().getInt("prune/archive-days", 0));
+    }
+
+    /**
+     * Give a player their attachment. Must be called from the thread which owns the player.
+     */
+    protected void registerPlayer(Player player) {
+        if (permissions.containsKey(player.getUniqueId())) {
+            trace.log(Trace.JOIN, "Registering %s: was already registered", player.getName());
+            unregisterPlayer(player);
+        }
+        PermissionAttachment attachment = player.addAttachment(this);
+        permissions.put(player.getUniqueId(), attachment);
+        if (inject) {
+            injectInto(player);
+        }
+        usage.sample(player);
+        calculateAttachment(player);
+    }
+
+    private void injectInto(Player player) {
+        try {
+            InjectedPermissible injection = InjectedPermissible.inject(player, this);
+            if (injection != null) {
+                injected.put(player.getUniqueId(), injection);
+            }
+        } catch (Exception ex) {
+            // fall back to filling attachments for everyone from now on
+            getLogger().log(Level.WARNING, "Could not inject into " + player.getName() + ", using attachments instead", ex);
+            injectFailed = true;
+            inject = false;
+        }
+    }
+
+    protected void unregisterPlayer(Player player) {
+        PermissionAttachment attachment = permissions.remove(player.getUniqueId());
+        if (attachment != null) {
+            try {
+                player.removeAttachment(attachment);
+            } catch (IllegalArgumentException ex) {
+                trace.log(Trace.JOIN, "Unregistering %s: player did not have attachment", player.getName());
+            }
+            applied.remove(player.getUniqueId());
+            injected.remove(player.getUniqueId());
+            usage.forget(player);
+        } else {
+            trace.log(Trace.JOIN, "Unregistering %s: was not registered", player.getName());
+        }
+    }
+
+    protected void refreshForPlayer(UUID player) {
+        trace.log(Trace.REFRESH, "Refreshing for player %s", player);
+
+        Player onlinePlayer = getServer().getPlayer(player);
+        if (onlinePlayer != null) {
+            recalculateFor(onlinePlayer);
+        }
+    }
+
+    // recalculate on the player's own thread, straight away if that's this one
+    private void recalculateFor(final Player player) {
+        scheduler.runFor(player, new Runnable() {
+            public void run() {
+                calculateAttachment(player);
+            }
+        });
+    }
+
+    private void fillChildGroups(HashSet<String> childGroups, String group) {
+        if (childGroups.contains(group)) return;
+        childGroups.add(group);
+
+        for (String key : getNode("groups").getKeys(false)) {
+            for (String parent : getNode("groups/" + key).getStringList("inheritance")) {
+                if (parent.equalsIgnoreCase(group)) {
+                    fillChildGroups(childGroups, key);
+                }
+            }
+        }
+    }
+
+    protected void refreshForGroup(String group) {
+        trace.log(Trace.REFRESH, "Refreshing for group %s", group);
+        refreshFor(Collections.<UUID>emptySet(), Collections.singleton(group));
+    }
+
+    // refresh each online player who is in the given set or in a group inheriting from one of the given groups
+    private void refreshFor(Set<UUID> players, Set<String> groups) {
+        // build the set of groups which are children of "groups"
         // e.g. if Bob is only a member of "expert" which inherits "user", he
         // must be updated if the permissions of "user" change
         HashSet<String> childGroups = new HashSet<String>();
-        fillChildGroups(childGroups, group);
-        debug("Refreshing for group " + group + " (total " + childGroups.size() + " subgroups)");
+        for (String group : groups) {
+            fillChildGroups(childGroups, group);
+        }
+        trace.log(Trace.REFRESH, "Refreshing for %d players and %d groups", players.size(), childGroups.size());
 
+        // each recalculation is handed to the thread owning that player, so they proceed in parallel
+        // on servers with more than one; group membership comes from the snapshot, which any thread can read
+        PermissionsSnapshot current = snapshot;
         for (UUID uuid : permissions.keySet()) {
             Player player = getServer().getPlayer(uuid);
-            ConfigurationSection node = getUserNode(player);
+            if (player == null) continue;
+            if (players.contains(uuid)) {
+                recalculateFor(player);
+                continue;
+            }
+            if (childGroups.isEmpty()) continue;
+            List<String> groupList = current.getUserGroupNames(uuid);
 
             // if the player isn't in the config, act like they're in default
-            List<String> groupList = (node != null) ? node.getStringList("groups") : Arrays.asList("default");
+            if (groupList == null) groupList = Arrays.asList("default");
             for (String userGroup : groupList) {
                 if (childGroups.contains(userGroup)) {
-                    calculateAttachment(player);
+                    recalculateFor(player);
                     break;
                 }
             }
@@ -349,64 +1342,68 @@ public final class PermissionsPlugin extends JavaPlugin {
     }
 
     protected void refreshPermissions() {
-        debug("Refreshing all permissions (for " + permissions.size() + " players)");
-        for (UUID player : permissions.keySet()) {
-            calculateAttachment(getServer().getPlayer(player));
+        trace.log(Trace.REFRESH, "Refreshing all permissions (for %d players)", permissions.size());
+        for (UUID uuid : permissions.keySet()) {
+            Player player = getServer().getPlayer(uuid);
+            if (player != null) {
+                recalculateFor(player);
+            }
         }
     }
 
     protected ConfigurationSection getNode(String node) {
-        for (String entry : getConfig().getKeys(true)) {
-            if (node.equalsIgnoreCase(entry) && getConfig().isConfigurationSection(entry)) {
-                return getConfig().getConfigurationSection(entry);
-            }
+        String[] pieces = node.split("/");
+        if (pieces.length > 1 && pieces[0].equalsIgnoreCase("users") && !detached.isEmpty()) {
+            attachUser(pieces[1]);
         }
-        return null;
+        return findNode(getConfig(), pieces, 0);
     }
 
-    protected ConfigurationSection getUserNode(Player player) {
-        ConfigurationSection sec = getNode("users/" + player.getUniqueId());
-        if (sec == null) {
-            sec = getNode("users/" + player.getName());
-            if (sec != null) {
-                getConfig().set(sec.getCurrentPath(), null);
-                getConfig().set("users/" + player.getUniqueId(), sec);
-                sec.set("name", player.getName());
-                debug("Migrated " + player.getName() + " to UUID " + player.getUniqueId());
-                saveConfig();
-            }
+    // walk down one level at a time rather than scanning every key in the configuration
+    private ConfigurationSection findNode(ConfigurationSection sec, String[] pieces, int index) {
+        if (index == pieces.length) {
+            return sec;
         }
 
-        // make sure name field matches
-        if (sec != null) {
-            if (!player.getName().equals(sec.getString("name"))) {
-                debug("Updating name of " + player.getUniqueId() + " to: " + player.getName());
-                sec.set("name", player.getName());
-                saveConfig();
+        String piece = pieces[index];
+        if (sec.isConfigurationSection(piece)) {
+            ConfigurationSection result = findNode(sec.getConfigurationSection(piece), pieces, index + 1);
+            if (result != null) {
+                return result;
             }
         }
-
-        return sec;
-    }
-
-    protected ConfigurationSection getUsernameNode(String name) {
-        // try to look up node based on username rather than UUID
-        ConfigurationSection sec = getNode("users");
-        if (sec != null) {
-            for (String child : sec.getKeys(false)) {
-                ConfigurationSection node = sec.getConfigurationSection(child);
-                if (node != null && (name.equals(node.getString("name")) || name.equals("child"))) {
-                    // either the "name" field matches or the key matches
-                    return node;
+        for (String key : sec.getKeys(false)) {
+            if (key.equalsIgnoreCase(piece) && !key.equals(piece) && sec.isConfigurationSection(key)) {
+                ConfigurationSection result = findNode(sec.getConfigurationSection(key), pieces, index + 1);
+                if (result != null) {
+                    return result;
                 }
             }
         }
         return null;
     }
 
+    // move a player's entry from their name to their UUID and keep its name up to date, reading the entry
+    // from the snapshot so that a detached section is only put back if it needs changing
+    private void migrateUser(Player player) {
+        String path = "users/" + player.getUniqueId();
+        if (!snapshot.getUsers().containsKey(player.getUniqueId())) {
+            ConfigurationSection sec = snapshot.getLegacyUsers().isEmpty() ? null : getNode("users/" + player.getName());
+            if (sec == null) return;
+            path = move(sec.getCurrentPath(), path).getCurrentPath();
+            set(path, "name", player.getName(), "join");
+            trace.log(Trace.JOIN, "Migrated %s to UUID %s", player.getName(), player.getUniqueId());
+        } else if (!player.getName().equals(snapshot.getUserName(player.getUniqueId()))) {
+            // make sure name field matches
+            trace.log(Trace.JOIN, "Updating name of %s to: %s", player.getUniqueId(), player.getName());
+            set(path, "name", player.getName(), "join");
+        }
+    }
+
     protected ConfigurationSection createNode(String node) {
         ConfigurationSection sec = getConfig();
         for (String piece : node.split("/")) {
+            if (piece.length() == 0) continue;
             ConfigurationSection sec2 = getNode(sec == getConfig() ? piece : sec.getCurrentPath() + "/" + piece);
             if (sec2 == null) {
                 sec2 = sec.createSection(piece);
@@ -416,30 +1413,309 @@ public final class PermissionsPlugin extends JavaPlugin {
         return sec;
     }
 
+    /**
+     * Find the outermost section along a path which doesn't exist yet.
+     *
+     * @return The path of that section, or null if the whole path exists.
+     */
+    protected String findMissing(String section) {
+        String path = "";
+        for (String piece : section.split("/")) {
+            path = path.length() == 0 ? piece : path + "/" + piece;
+            if (getNode(path) == null) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Change a single value in the configuration and persist the change.
+     *
+     * @param section The path of the section to change, created if needed.
+     * @param key The key within that section.
+     * @param value The new value, or null to remove it.
+     */
+    protected void set(String section, String key, Object value) {
+        set(section, key, value, "api");
+    }
+
+    // the source is what the audit log puts the change down to if nobody is making changes on this thread
+    private void set(String section, String key, Object value, String source) {
+        attachUser(section, key);
+        String created = findMissing(section);
+        ConfigurationSection node = createNode(section);
+        Object old = node.get(key);
+        audit.record(source, node.getCurrentPath(), key, old, value);
+        node.set(key, value);
+
+        long previous = snapshot.getVersion();
+        updateSnapshot(node.getCurrentPath() + "/" + key);
+        history.push(previous, snapshot, audit.getActor(), Collections.singletonList(new PermissionsBatch.Change(node.getCurrentPath(), key, value, old, created)));
+        persistSet(node.getCurrentPath(), key, value);
+        if (bus != null) {
+            bus.publishSet(node.getCurrentPath(), key, value);
+        }
+    }
+
+    /**
+     * Move a section elsewhere in the configuration and persist the change.
+     *
+     * @return The section at its new location, or null if the source did not exist.
+     */
+    protected ConfigurationSection move(String from, String to) {
+        ConfigurationSection source = getNode(from);
+        if (source == null) {
+            return null;
+        }
+        String fromPath = source.getCurrentPath();
+        ConfigurationSection dest = moveNode(fromPath, to);
+        updateSnapshot(fromPath);
+        updateSnapshot(dest.getCurrentPath());
+        persistMove(fromPath, dest.getCurrentPath());
+        if (bus != null) {
+            bus.publishMove(fromPath, dest.getCurrentPath());
+        }
+        return dest;
+    }
+
+    // moves in memory only, replacing whatever was at the destination
+    private ConfigurationSection moveNode(String from, String to) {
+        ConfigurationSection source = getNode(from);
+        if (source == null) {
+            return getNode(to);
+        }
+        String fromPath = source.getCurrentPath();
+        // whoever is at the destination is replaced, so they can't be left detached
+        getNode(to);
+
+        int i = to.lastIndexOf('/');
+        ConfigurationSection dest = createNode(to.substring(0, i)).createSection(to.substring(i + 1));
+        UserShards.copy(source, dest);
+        getConfig().set(fromPath, null);
+        return dest;
+    }
+
+    private void persistSet(String section, String key, Object value) {
+        if (!appendJournal(section, key, value)) {
+            saveFor(section + "/" + key);
+        }
+    }
+
+    private void persistMove(String from, String to) {
+        MutationJournal current = journal;
+        if (current != null) {
+            try {
+                current.appendMove(from, to);
+                return;
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to write to the journal, saving in full instead", ex);
+            }
+        }
+        saveFor(from);
+        if (shards != null) {
+            saveFor(to);
+        }
+    }
+
+    /**
+     * Persist, publish and refresh the changes a batch has already made in memory.
+     */
+    protected void commitBatch(String source, List<PermissionsBatch.Change> changes, Set<UUID> players, Set<String> groups) {
+        if (changes.isEmpty()) return;
+        for (PermissionsBatch.Change change : changes) {
+            audit.record(source, change.section, change.key, change.old, change.value);
+        }
+
+        // re-read only the entries the batch touched, unless it touched so many that starting over is cheaper
+        Set<String> owners = ownersOf(changes);
+        long previous = snapshot.getVersion();
+        if (owners.size() > 64) {
+            rebuildSnapshot();
+        } else {
+            for (String owner : owners) {
+                updateSnapshot(owner);
+            }
+        }
+        history.push(previous, snapshot, audit.getActor(), changes);
+        persistChanges(changes);
+
+        trace.log(Trace.REFRESH, "Committed a batch of %d changes", changes.size());
+        refreshFor(players, groups);
+    }
+
+    // the users and groups holding each of the changes, as paths like "users/<uuid>"
+    private static Set<String> ownersOf(List<PermissionsBatch.Change> changes) {
+        Set<String> owners = new LinkedHashSet<String>();
+        for (PermissionsBatch.Change change : changes) {
+            String[] pieces = change.section.split("/");
+            owners.add(pieces.length > 1 ? pieces[0] + "/" + pieces[1] : pieces[0] + "/" + change.key);
+        }
+        return owners;
+    }
+
+    private void persistChanges(List<PermissionsBatch.Change> changes) {
+        boolean journalled = true;
+        for (PermissionsBatch.Change change : changes) {
+            if (!appendJournal(change.section, change.key, change.value)) {
+                journalled = false;
+                break;
+            }
+        }
+        if (!journalled) {
+            saveAllFor(changes);
+        }
+
+        if (bus != null) {
+            for (PermissionsBatch.Change change : changes) {
+                bus.publishSet(change.section, change.key, change.value);
+            }
+        }
+    }
+
+    /**
+     * Undo every recorded change made since the given version, then refresh whoever that affects.
+     *
+     * @return The number of values put back, or -1 if the version is further back than history goes.
+     */
+    protected int rollback(long version) {
+        List<PermissionsBatch.Change> undo = history.undoSince(version);
+        if (undo == null) return -1;
+        if (undo.isEmpty()) return 0;
+
+        PermissionsSnapshot before = snapshot;
+        PermissionsSnapshot exact = history.exactSnapshot(version, before.getVersion());
+        List<PermissionsBatch.Change> changes = new ArrayList<PermissionsBatch.Change>();
+        for (PermissionsBatch.Change change : undo) {
+            attachUser(change.section, change.key);
+            ConfigurationSection node = (change.value != null) ? createNode(change.section) : getNode(change.section);
+            if (node == null) continue;
+            Object old = node.get(change.key);
+            audit.record("rollback", node.getCurrentPath(), change.key, old, change.value);
+            node.set(change.key, change.value);
+            changes.add(new PermissionsBatch.Change(node.getCurrentPath(), change.key, change.value, old, null));
+        }
+
+        Set<String> owners = ownersOf(changes);
+        if (exact != null) {
+            // nothing else has changed since, so the old snapshot can go straight back, sharing whatever
+            // didn't change with this one
+            for (String owner : owners) {
+                ConfigurationSection node = getNode(owner);
+                if (node != null) {
+                    expiry.scan(node);
+                }
+                String key = owner.substring(owner.indexOf('/') + 1);
+                if (owner.startsWith("users/")) {
+                    counters.updateUser(key, before.getUser(key), exact.getUser(key));
+                    index.updateUser(key, before.getUser(key), exact.getUser(key));
+                } else if (owner.startsWith("groups/")) {
+                    counters.updateGroup(key, before.getGroup(key), exact.getGroup(key));
+                    index.updateGroup(key, before.getGroup(key), exact.getGroup(key));
+                }
+            }
+            snapshot = exact.withVersion(before.getVersion() + 1);
+        } else {
+            for (String owner : owners) {
+                updateSnapshot(owner);
+            }
+        }
+        history.push(before.getVersion(), snapshot, audit.getActor(), changes);
+        persistChanges(changes);
+
+        // only entries which came out different can change anyone's permissions
+        Set<UUID> players = new HashSet<UUID>();
+        Set<String> groups = new HashSet<String>();
+        for (String owner : owners) {
+            String key = owner.substring(owner.indexOf('/') + 1);
+            if (owner.startsWith("users/")) {
+                UUID uuid = PermissionsSnapshot.parseUUID(key);
+                if (uuid != null && !snapshot.isSameUser(before, key)) {
+                    players.add(uuid);
+                }
+            } else if (owner.startsWith("groups/") && before.getGroup(key) != snapshot.getGroup(key)) {
+                groups.add(key);
+            }
+        }
+        trace.log(Trace.REFRESH, "Rolled back %d values to version %d", changes.size(), version);
+        refreshFor(players, groups);
+        return changes.size();
+    }
+
+    // save each file holding any of the changes exactly once
+    private void saveAllFor(List<PermissionsBatch.Change> changes) {
+        if (shards == null) {
+            saveConfig();
+            return;
+        }
+
+        Set<String> users = new HashSet<String>();
+        boolean base = false;
+        for (PermissionsBatch.Change change : changes) {
+            String[] pieces = change.section.split("/");
+            if (pieces[0].equalsIgnoreCase("users")) {
+                users.add(pieces.length > 1 ? pieces[1] : change.key);
+            } else {
+                base = true;
+            }
+        }
+
+        try {
+            synchronized (saveLock) {
+                shards.store(shards.prepare(userSource, users));
+                if (base) {
+                    copyConfig(false).save(configFile);
+                }
+            }
+        } catch (IOException ex) {
+            getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
+        }
+    }
+
+    // save whichever file holds the given path
+    private void saveFor(String path) {
+        String[] pieces = path.split("/");
+        if (pieces.length > 1 && pieces[0].equalsIgnoreCase("users")) {
+            saveUser(pieces[1]);
+        } else {
+            saveBase();
+        }
+    }
+
     protected HashMap<String, Boolean> getAllPerms(String desc, String path) {
-        ConfigurationSection node = getNode(path);
+        return getAllPerms(desc, getNode(path));
+    }
+
+    protected HashMap<String, Boolean> getAllPerms(String desc, ConfigurationSection node) {
 
         int failures = 0;
         String firstFailure = "";
 
         // Make an attempt to autofix incorrect nesting
-        boolean fixed = false, fixedNow = true;
+        boolean fixed = false, fixedNow = true, journalled = true;
+        String nodePath = node.getCurrentPath();
         while (fixedNow) {
             fixedNow = false;
             for (String key : node.getKeys(true)) {
                 if (node.isBoolean(key) && key.contains("/")) {
-                    node.set(key.replace("/", "."), node.getBoolean(key));
+                    boolean value = node.getBoolean(key);
+                    node.set(key.replace("/", "."), value);
                     node.set(key, null);
+                    journalled &= appendJournal(nodePath, key.replace("/", "."), value);
+                    journalled &= appendJournal(nodePath, key, null);
                     fixed = fixedNow = true;
                 } else if (node.isConfigurationSection(key) && node.getConfigurationSection(key).getKeys(true).size() == 0) {
                     node.set(key, null);
+                    journalled &= appendJournal(nodePath, key, null);
                     fixed = fixedNow = true;
                 }
             }
         }
         if (fixed) {
             getLogger().info("Fixed broken nesting in " + desc + ".");
-            saveConfig();
+            if (!journalled) {
+                saveFor(nodePath);
+            }
         }
 
         LinkedHashMap<String, Boolean> result = new LinkedHashMap<String, Boolean>();
@@ -464,131 +1740,132 @@ public final class PermissionsPlugin extends JavaPlugin {
         return result;
     }
 
-    protected void debug(String message) {
-        if (getConfig().getBoolean("debug", false)) {
-            getLogger().info("Debug: " + message);
-        }
-    }
-
-    protected void calculateAttachment(Player player) {
+    /**
+     * Fill in a player's attachment from the snapshot. Must be called from the thread which owns the player.
+     */
+    protected void calculateAttachment(final Player player) {
         if (player == null) {
             return;
         }
         PermissionAttachment attachment = permissions.get(player.getUniqueId());
         if (attachment == null) {
-            debug("Calculating permissions on " + player.getName() + ": attachment was null");
+            trace.log(Trace.RESOLVE, "Calculating permissions on %s: attachment was null", player.getName());
             return;
         }
 
-        Map<String, Boolean> values = calculatePlayerPermissions(player, player.getWorld().getName());
-
-        // Fill the attachment reflectively so we don't recalculate for each permission
-        // it turns out there's a lot of permissions!
-        Map<String, Boolean> dest = reflectMap(attachment);
-        dest.clear();
-        dest.putAll(values);
-        debug("Calculated permissions on " + player.getName() + ": " + dest.size() + " values");
-
-        player.recalculatePermissions();
-    }
-
-    // -- Private stuff
-
-    private Field pField;
-
-    @SuppressWarnings("unchecked")
-    private Map<String, Boolean> reflectMap(PermissionAttachment attachment) {
-        try {
-            if (pField == null) {
-                pField = PermissionAttachment.class.getDeclaredField("permissions");
-                pField.setAccessible(true);
+        // the player's entry may need migrating to their UUID or renaming, which changes the configuration,
+        // so it has to happen on the global thread; the player is refreshed again if anything changed
+        if (needsMigration(player)) {
+            if (scheduler.isGlobalThread()) {
+                migrateUser(player);
+            } else {
+                scheduler.runGlobal(new Runnable() {
+                    public void run() {
+                        long version = snapshot.getVersion();
+                        migrateUser(player);
+                        if (snapshot.getVersion() != version) {
+                            refreshForPlayer(player.getUniqueId());
+                        }
+                    }
+                });
             }
-            return (Map<String, Boolean>) pField.get(attachment);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
+        PermissionContext context = contextOf(player);
+        fillAttachment(player, attachment, context, resolver.getEffectivePermissions(player.getUniqueId(), context));
     }
 
-    // normally, LinkedHashMap.put (and thus putAll) will not reorder the list
-    // if that key is already in the map, which we don't want - later puts should
-    // always be bumped to the end of the list
-    private <K, V> void put(Map<K, V> dest, K key, V value) {
-        dest.remove(key);
-        dest.put(key, value);
-    }
+    /**
+     * Swap in a player's permissions for a new context, such as after changing world or gamemode.
+     * Nothing is recalculated if the player's rules don't depend on what changed.
+     */
+    protected void updateContext(Player player, PermissionContext context) {
+        PermissionAttachment attachment = permissions.get(player.getUniqueId());
+        if (attachment == null) {
+            trace.log(Trace.RESOLVE, "Updating context on %s: attachment was null", player.getName());
+            return;
+        }
 
-    private <K, V> void putAll(Map<K, V> dest, Map<K, V> src) {
-        for (Map.Entry<K, V> entry : src.entrySet()) {
-            put(dest, entry.getKey(), entry.getValue());
+        Map<String, Boolean> values = resolver.getEffectivePermissions(player.getUniqueId(), context);
+        if (values == applied.get(player.getUniqueId())) {
+            trace.log(Trace.RESOLVE, "Updating context on %s: unchanged in %s", player.getName(), context);
+            return;
         }
+        fillAttachment(player, attachment, context, values);
     }
 
-    private Map<String, Boolean> calculatePlayerPermissions(Player player, String world) {
-        ConfigurationSection node = getUserNode(player);
-
-        // if the player isn't in the config, act like they're in default
-        if (node == null) {
-            return calculateGroupPermissions("default", world);
+    private boolean needsMigration(Player player) {
+        if (!snapshot.getUsers().containsKey(player.getUniqueId())) {
+            return snapshot.hasLegacyUser(player.getName());
         }
+        return !player.getName().equals(snapshot.getUserName(player.getUniqueId()));
+    }
 
-        String nodePath = node.getCurrentPath();
-        Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>();
-
-        // first, apply the player's groups (getStringList returns an empty list if not found)
-        // later groups override earlier groups
-        for (String group : node.getStringList("groups")) {
-            putAll(perms, calculateGroupPermissions(group, world));
+    private void fillAttachment(Player player, PermissionAttachment attachment, PermissionContext context, Map<String, Boolean> values) {
+        InjectedPermissible injection = injected.get(player.getUniqueId());
+        if (injection != null) {
+            // the permissible answers from the expanded map itself, so Bukkit has nothing to recalculate
+            injection.setEffective(resolver.getExpandedPermissions(player.getUniqueId(), context));
+            applied.put(player.getUniqueId(), values);
+            trace.log(Trace.RESOLVE, "Calculated permissions on %s: %d values, injected", player.getName(), values.size());
+            return;
         }
 
-        // now apply user-specific permissions
-        if (getNode(nodePath + "/permissions") != null) {
-            putAll(perms, getAllPerms("user " + player, nodePath + "/permissions"));
+        // Fill the attachment reflectively so we don't recalculate for each permission
+        // it turns out there's a lot of permissions!
+        Map<String, Boolean> dest = reflectMap(attachment);
+        dest.clear();
+        if (usage.isStripping()) {
+            // nodes nothing uses would only make recalculating slower
+            for (Map.Entry<String, Boolean> entry : values.entrySet()) {
+                if (usage.isUsed(entry.getKey())) {
+                    dest.put(entry.getKey(), entry.getValue());
+                }
+            }
+        } else {
+            dest.putAll(values);
         }
+        applied.put(player.getUniqueId(), values);
+        trace.log(Trace.RESOLVE, "Calculated permissions on %s: %d values", player.getName(), dest.size());
 
-        // now apply world- and user-specific permissions
-        if (getNode(nodePath + "/worlds/" + world) != null) {
-            putAll(perms, getAllPerms("user " + player + " world " + world, nodePath + "/worlds/" + world));
-        }
+        player.recalculatePermissions();
+    }
 
-        return perms;
+    /**
+     * Expand an injected player's nodes again, when Bukkit recalculates their permissions.
+     */
+    void reexpand(Player player) {
+        InjectedPermissible injection = injected.get(player.getUniqueId());
+        if (injection != null) {
+            injection.setEffective(resolver.reexpand(player.getUniqueId(), contextOf(player)));
+        }
     }
 
-    private Map<String, Boolean> calculateGroupPermissions(String group, String world) {
-        return calculateGroupPermissions0(new HashSet<String>(), group, world);
+    /**
+     * Get the context for resolving permissions in a world, with no player-specific keys.
+     */
+    protected PermissionContext contextFor(String world) {
+        return PermissionContext.of(serverContexts, world);
     }
 
-    private Map<String, Boolean> calculateGroupPermissions0(Set<String> recursionBuffer, String group, String world) {
-        String groupNode = "groups/" + group;
+    protected PermissionContext contextOf(Player player) {
+        return contextFor(player.getWorld().getName()).with(PermissionContext.GAMEMODE, player.getGameMode().name());
+    }
 
-        // if the group's not in the config, nothing
-        if (getNode(groupNode) == null) {
-            return new LinkedHashMap<String, Boolean>();
-        }
+    // -- Private stuff
 
-        recursionBuffer.add(group);
-        Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>();
+    private Field pField;
 
-        // first apply any parent groups (see calculatePlayerPermissions for more)
-        for (String parent : getNode(groupNode).getStringList("inheritance")) {
-            if (recursionBuffer.contains(parent)) {
-                getLogger().warning("In group " + group + ": recursive inheritance from " + parent);
-                continue;
+    @SuppressWarnings("unchecked")
+    private Map<String, Boolean> reflectMap(PermissionAttachment attachment) {
+        try {
+            if (pField == null) {
+                pField = PermissionAttachment.class.getDeclaredField("permissions");
+                pField.setAccessible(true);
             }
-
-            putAll(perms, calculateGroupPermissions0(recursionBuffer, parent, world));
-        }
-
-        // now apply the group's permissions
-        if (getNode(groupNode + "/permissions") != null) {
-            putAll(perms, getAllPerms("group " + group, groupNode + "/permissions"));
-        }
-
-        // now apply world-specific permissions
-        if (getNode(groupNode + "/worlds/" + world) != null) {
-            putAll(perms, getAllPerms("group " + group + " world " + world, groupNode + "/worlds/" + world));
+            return (Map<String, Boolean>) pField.get(attachment);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
-
-        return perms;
     }
 
 }
@@ -0,0 +1,235 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * An immutable view of every user and group, safe to read from any thread.
+ * A new snapshot is published after each change to the configuration. Users are kept in a paged table and
+ * a persistent map, so a new snapshot shares all but a few pieces with the last, and old ones are cheap to
+ * keep around.
+ */
+final class PermissionsSnapshot {
+
+    public static final PermissionsSnapshot EMPTY = new PermissionsSnapshot(0, 0,
+            Collections.<String, PermissionInfo>emptyMap(),
+            UserTable.EMPTY,
+            PersistentMap.<String, PermissionInfo>empty());
+
+    private final long version;
+    // the version in which the groups last changed
+    private final long groupsVersion;
+    private final Map<String, PermissionInfo> groups;
+    private final UserTable users;
+    private final PersistentMap<String, PermissionInfo> legacyUsers;
+
+    PermissionsSnapshot(long version, long groupsVersion, Map<String, PermissionInfo> groups, UserTable users, PersistentMap<String, PermissionInfo> legacyUsers) {
+        this.version = version;
+        this.groupsVersion = groupsVersion;
+        this.groups = groups;
+        this.users = users;
+        this.legacyUsers = legacyUsers;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the version in which the groups last changed, which stays the same while only users change.
+     */
+    public long getGroupsVersion() {
+        return groupsVersion;
+    }
+
+    /**
+     * Get a group's info, ignoring case.
+     */
+    public PermissionInfo getGroup(String name) {
+        return groups.get(name.toLowerCase());
+    }
+
+    /**
+     * Get every group's info, in configuration order.
+     */
+    public Collection<PermissionInfo> getGroups() {
+        return groups.values();
+    }
+
+    public PermissionInfo getUser(UUID uuid) {
+        return users.get(uuid);
+    }
+
+    /**
+     * Get a user's info by their key in the configuration, which is either a UUID or an unconverted name.
+     */
+    public PermissionInfo getUser(String key) {
+        UUID uuid = parseUUID(key);
+        return (uuid != null) ? users.get(uuid) : legacyUsers.get(key);
+    }
+
+    /**
+     * Check whether there is an entry still keyed by the given name, which like the configuration's paths
+     * is matched without regard to case.
+     */
+    public boolean hasLegacyUser(String name) {
+        if (legacyUsers.containsKey(name)) {
+            return true;
+        }
+        for (String key : legacyUsers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the names of a user's groups, as written in the configuration, without building their whole entry.
+     *
+     * @return The names, or null if the user has no entry.
+     */
+    public List<String> getUserGroupNames(UUID uuid) {
+        return users.getGroupNames(uuid);
+    }
+
+    /**
+     * Get a user's last known name, or null if they have no entry keyed by UUID or it has no name.
+     */
+    public String getUserName(UUID uuid) {
+        return users.getName(uuid);
+    }
+
+    /**
+     * Check whether a user has an entry keyed by UUID which sets nothing but groups.
+     */
+    public boolean hasOnlyGroups(UUID uuid) {
+        return users.hasOnlyGroups(uuid);
+    }
+
+    /**
+     * Get a key which is the same for users whose permissions resolve alike in every context.
+     */
+    public String getUserSignature(UUID uuid) {
+        return users.getSignature(uuid);
+    }
+
+    /**
+     * Get every node a user entry sets, in any world or context.
+     */
+    public Set<String> getUserNodes() {
+        return users.getNodeNames();
+    }
+
+    /**
+     * Get every world a user entry sets nodes in.
+     */
+    public Set<String> getUserWorlds() {
+        return users.getWorlds();
+    }
+
+    /**
+     * Get a user's info by their last known name, which must match exactly, trying unconverted entries first.
+     */
+    public PermissionInfo getUserByName(String name) {
+        PermissionInfo info = legacyUsers.get(name);
+        if (info != null) {
+            return info;
+        }
+        UUID uuid = users.findName(name);
+        return (uuid != null) ? users.get(uuid) : null;
+    }
+
+    /**
+     * Check whether a user's entry is unchanged between another snapshot and this one.
+     *
+     * @param key The user's key in the configuration, which is either a UUID or an unconverted name.
+     */
+    public boolean isSameUser(PermissionsSnapshot other, String key) {
+        UUID uuid = parseUUID(key);
+        return (uuid != null) ? users.isSame(other.users, uuid) : legacyUsers.get(key) == other.legacyUsers.get(key);
+    }
+
+    /**
+     * Get every user keyed by UUID. Most entries are put back together when first read, so iterating over
+     * the keys alone is much cheaper.
+     */
+    public Map<UUID, PermissionInfo> getUsers() {
+        return users;
+    }
+
+    /**
+     * Get entries which are still keyed by name rather than UUID, keyed by that name.
+     */
+    public Map<String, PermissionInfo> getLegacyUsers() {
+        return legacyUsers;
+    }
+
+    // -- Building
+
+    /**
+     * Get this snapshot's contents under a new version number.
+     */
+    public PermissionsSnapshot withVersion(long version) {
+        return new PermissionsSnapshot(version, groupsVersion, groups, users, legacyUsers);
+    }
+
+    public PermissionsSnapshot withGroup(String name, PermissionInfo info) {
+        Map<String, PermissionInfo> copy = new LinkedHashMap<String, PermissionInfo>(groups);
+        if (info == null) {
+            copy.remove(name.toLowerCase());
+        } else {
+            copy.put(name.toLowerCase(), info);
+        }
+        return new PermissionsSnapshot(version + 1, version + 1, Collections.unmodifiableMap(copy), users, legacyUsers);
+    }
+
+    public PermissionsSnapshot withUser(String key, PermissionInfo info) {
+        UUID uuid = parseUUID(key);
+        if (uuid != null) {
+            return new PermissionsSnapshot(version + 1, groupsVersion, groups, (info == null) ? users.minus(uuid) : users.plus(uuid, info), legacyUsers);
+        } else {
+            return new PermissionsSnapshot(version + 1, groupsVersion, groups, users, (info == null) ? legacyUsers.minus(key) : legacyUsers.plus(key, info));
+        }
+    }
+
+    /**
+     * Accumulates entries for a brand new snapshot.
+     */
+    static final class Builder {
+        private final long version;
+        private final Map<String, PermissionInfo> groups = new LinkedHashMap<String, PermissionInfo>();
+        private final UserTable.Editor users = UserTable.EMPTY.edit();
+        private PersistentMap<String, PermissionInfo> legacyUsers = PersistentMap.empty();
+
+        Builder(long version) {
+            this.version = version;
+        }
+
+        public void addGroup(String name, PermissionInfo info) {
+            groups.put(name.toLowerCase(), info);
+        }
+
+        public void addUser(String key, PermissionInfo info) {
+            UUID uuid = parseUUID(key);
+            if (uuid != null) {
+                users.put(uuid, info);
+            } else {
+                legacyUsers = legacyUsers.plus(key, info);
+            }
+        }
+
+        public PermissionsSnapshot build() {
+            return new PermissionsSnapshot(version, version, Collections.unmodifiableMap(groups), users.done(), legacyUsers);
+        }
+    }
+
+    static UUID parseUUID(String key) {
+        if (key.length() != 36) return null;
+        try {
+            return UUID.fromString(key);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+}
@@ -1,9 +1,11 @@
 package com.platymuus.bukkit.permissions;
 
 import com.google.common.collect.ImmutableList;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
+import org.bukkit.entity.Player;
 import org.bukkit.permissions.Permission;
 import org.bukkit.util.StringUtil;
 
@@ -15,7 +17,13 @@ import java.util.*;
 final class PermissionsTabComplete implements TabCompleter {
 
     private final List<String> BOOLEAN = ImmutableList.of("true", "false");
-    private final List<String> ROOT_SUBS = ImmutableList.of("reload", "about", "check", "info", "dump", "rank", "setrank", "group", "player");
+    private final List<String> LAYOUTS = ImmutableList.of("single", "sharded");
+    private final List<String> EXPORT_FORMATS = ImmutableList.of("jsonl", "csv");
+    private final List<String> TRACE_SUBS = ImmutableList.of("dump", "join", "refresh", "resolve", "io", "all");
+    private final List<String> PROFILE_SUBS = ImmutableList.of("start", "stop");
+    private final List<String> USAGE_SUBS = ImmutableList.of("reset");
+    private final List<String> ON_OFF = ImmutableList.of("on", "off");
+    private final List<String> ROOT_SUBS = ImmutableList.of("reload", "convert", "import", "export", "prune", "trace", "profile", "usage", "history", "rollback", "search", "about", "check", "explain", "info", "dump", "rank", "setrank", "group", "player");
     private final List<String> GROUP_SUBS = ImmutableList.of("list", "players", "setperm", "unsetperm");
     private final List<String> PLAYER_SUBS = ImmutableList.of("setgroup", "addgroup", "removegroup", "setperm", "unsetperm");
 
@@ -33,7 +41,19 @@ final class PermissionsTabComplete implements TabCompleter {
 
         /*
         reload - reload the configuration from disk.
+        convert <single|sharded> - change how user data is stored on disk.
+        import <file> - apply a CSV or YAML file of changes all at once.
+        export [jsonl|csv] - write every user's effective permissions in every world to a file.
+        prune [days] - drop users who only have the default group, and archive users not seen for this many days.
+        trace dump - write recent debug events to trace.txt.
+        trace <category> <on|off> - choose whether join, refresh, resolve or io events are recorded.
+        profile [start|stop] - show, start or stop measuring the plugin's time per tick.
+        usage [reset] - show which configured nodes are ever checked, or start counting again.
+        history <player|group> [page] - show the latest recorded changes to a player or group.
+        rollback [version|time] - list recent versions, or undo every change since a version or a time ago like 10m.
+        search <node> [page] - list the players and groups which set a node, or every node under it if it ends in *.
         check <node> [player] - check if a player or the sender has a permission (any plugin).
+        explain <player> <node> [world] - show which group or world gave a player a permission.
         info <node> - prints information on a specific permission.
         dump [player] [page] - prints info about a player's (or the sender's) permissions.
         setrank <player> <group> - set a player to be in a group with per-group permissions.
@@ -46,9 +66,29 @@ final class PermissionsTabComplete implements TabCompleter {
             return partial(args[0], ROOT_SUBS);
         } else if (args.length == 2) {
             String sub = args[0];
-            if (sub.equals("check")) {
+            if (sub.equals("convert")) {
+                return partial(lastArg, LAYOUTS);
+            } else if (sub.equals("import")) {
+                return partial(lastArg, importFiles());
+            } else if (sub.equals("export")) {
+                return partial(lastArg, EXPORT_FORMATS);
+            } else if (sub.equals("trace")) {
+                return partial(lastArg, TRACE_SUBS);
+            } else if (sub.equals("profile")) {
+                return partial(lastArg, PROFILE_SUBS);
+            } else if (sub.equals("usage")) {
+                return partial(lastArg, USAGE_SUBS);
+            } else if (sub.equals("history")) {
+                List<String> targets = new ArrayList<String>(allGroups());
+                for (Player player : plugin.getServer().getOnlinePlayers()) {
+                    targets.add(player.getName());
+                }
+                return partial(lastArg, targets);
+            } else if (sub.equals("check")) {
                 return partial(lastArg, allNodes());
-            } else if (sub.equals("info")) {
+            } else if (sub.equals("explain")) {
+                return null;
+            } else if (sub.equals("info") || sub.equals("search")) {
                 return partial(lastArg, allNodes());
             } else if (sub.equals("dump")) {
                 return null;
@@ -61,9 +101,15 @@ final class PermissionsTabComplete implements TabCompleter {
             }
         } else {
             String sub = args[0];
-            // note that dump is excluded here because there's no real reason to tab-complete page numbers
+            // note that dump and history are excluded here because there's no real reason to tab-complete page numbers
             if (sub.equals("check") && args.length == 3) {
                 return null;
+            } else if (sub.equals("trace") && args.length == 3 && !args[1].equals("dump")) {
+                return partial(lastArg, ON_OFF);
+            } else if (sub.equals("explain") && args.length == 3) {
+                return partial(lastArg, allNodes());
+            } else if (sub.equals("explain") && args.length == 4) {
+                return partial(lastArg, allWorlds());
             } else if ((sub.equals("rank") || sub.equals("setrank")) && args.length == 3) {
                 return partial(lastArg, allGroups());
             } else if (sub.equals("group")) {
@@ -81,8 +127,8 @@ final class PermissionsTabComplete implements TabCompleter {
         String lastArg = args[args.length - 1];
         /*
         group list - list all groups.
-        group players <group> - list players in a group.
-        group setperm <group> <[world:]node> [true|false] - set a permission on a group.
+        group players <group> [page] - list players in a group.
+        group setperm <group> <[world:]node> [true|false] [duration] - set a permission on a group, optionally for a time like 30d.
         group unsetperm <group> <[world:]node> - unset a permission on a group.
          */
 
@@ -116,9 +162,9 @@ final class PermissionsTabComplete implements TabCompleter {
         /*
         player groups <player> - list groups a player is in.
         player setgroup <player> <group,...> - set a player to be in only the given groups.
-        player addgroup <player> <group> - add a player to a group.
+        player addgroup <player> <group> [duration] - add a player to a group, optionally for a time like 30d.
         player removegroup <player> <group> - remove a player from a group.
-        player setperm <player> <[world:]node> [true|false] - set a permission on a player.
+        player setperm <player> <[world:]node> [true|false] [duration] - set a permission on a player, optionally for a time like 12h.
         player unsetperm <player> <[world:]node> - unset a permission on a player.
          */
 
@@ -175,9 +221,39 @@ final class PermissionsTabComplete implements TabCompleter {
     }
 
     private Collection<String> allGroups() {
+        // completion may run off the global thread, where only the snapshot is safe to read
+        if (!plugin.getPlatformScheduler().isGlobalThread()) {
+            List<String> result = new ArrayList<String>();
+            for (PermissionInfo group : plugin.getSnapshot().getGroups()) {
+                result.add(group.getName());
+            }
+            return result;
+        }
         return plugin.getConfig().getConfigurationSection("groups").getKeys(false);
     }
 
+    private Collection<String> allWorlds() {
+        ArrayList<String> result = new ArrayList<String>();
+        for (World world : plugin.getServer().getWorlds()) {
+            result.add(world.getName());
+        }
+        return result;
+    }
+
+    private Collection<String> importFiles() {
+        ArrayList<String> result = new ArrayList<String>();
+        String[] names = plugin.getDataFolder().list();
+        if (names != null) {
+            for (String name : names) {
+                String lower = name.toLowerCase();
+                if (lower.endsWith(".csv") || lower.endsWith(".yml") || lower.endsWith(".yaml")) {
+                    result.add(name);
+                }
+            }
+        }
+        return result;
+    }
+
     private Collection<String> allNodes() {
         Set<Permission> newPermSet = plugin.getServer().getPluginManager().getPermissions();
         if (!permSet.equals(newPermSet)) {
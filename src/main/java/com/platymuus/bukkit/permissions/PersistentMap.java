@@ -0,0 +1,321 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * An immutable hash map which is changed by making a new one, sharing everything the change didn't touch.
+ * Entries live in a trie of up to 32-way nodes picked by successive five-bit pieces of the key's hash, so
+ * adding or removing an entry copies only the handful of nodes on its path, however large the map is.
+ * Keys and values must not be null.
+ */
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    // -- Reading
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return (root == null || key == null) ? null : (V) root.find(key, key.hashCode(), 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            public Iterator<Entry<K, V>> iterator() {
+                return new Walker();
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // -- Changing
+
+    /**
+     * Get a map with the given entry added or replaced.
+     */
+    public PersistentMap<K, V> plus(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        boolean[] added = new boolean[1];
+        Node result = (root == null) ? new BitmapNode(0, new Object[0]) : root;
+        result = result.plus(key, value, key.hashCode(), 0, added);
+        return (result == root) ? this : new PersistentMap<K, V>(result, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Get a map without the given key.
+     */
+    public PersistentMap<K, V> minus(Object key) {
+        if (!containsKey(key)) return this;
+        Node result = root.minus(key, key.hashCode(), 0);
+        return (result == null) ? PersistentMap.<K, V>empty() : new PersistentMap<K, V>(result, size - 1);
+    }
+
+    // -- Nodes
+
+    private interface Node {
+        // the value, or null if the key isn't here
+        Object find(Object key, int hash, int shift);
+
+        Node plus(Object key, Object value, int hash, int shift, boolean[] added);
+
+        // the node without the key, which must be present, or null if nothing is left
+        Node minus(Object key, int hash, int shift);
+
+        // the number of slots, each holding either an entry or a child node
+        int slots();
+
+        // the key in a slot, or null if it holds a child
+        Object keyAt(int slot);
+
+        Object valueAt(int slot);
+    }
+
+    private static Node pair(int shift, Object k1, Object v1, int h1, Object k2, Object v2, int h2) {
+        if (shift >= 32) {
+            // every bit of the hash is used up, so the keys can only be told apart by equals
+            return new CollisionNode(new Object[]{k1, v1, k2, v2});
+        }
+        int i1 = (h1 >>> shift) & 31, i2 = (h2 >>> shift) & 31;
+        if (i1 == i2) {
+            return new BitmapNode(1 << i1, new Object[]{null, pair(shift + 5, k1, v1, h1, k2, v2, h2)});
+        }
+        return (i1 < i2)
+                ? new BitmapNode((1 << i1) | (1 << i2), new Object[]{k1, v1, k2, v2})
+                : new BitmapNode((1 << i1) | (1 << i2), new Object[]{k2, v2, k1, v1});
+    }
+
+    // a slot for each set bit, holding a key and value, or null and a child node
+    private static final class BitmapNode implements Node {
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        public Object find(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(key, hash, shift + 5);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        public Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, i);
+                copy[i] = key;
+                copy[i + 1] = value;
+                System.arraycopy(array, i, copy, i + 2, array.length - i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+
+            Object k = array[i], v = array[i + 1];
+            Object replacement;
+            if (k == null) {
+                replacement = ((Node) v).plus(key, value, hash, shift + 5, added);
+                if (replacement == v) return this;
+            } else if (key.equals(k)) {
+                if (value == v) return this;
+                return with(i, key, value);
+            } else {
+                replacement = pair(shift + 5, k, v, k.hashCode(), key, value, hash);
+                added[0] = true;
+            }
+            return with(i, null, replacement);
+        }
+
+        public Node minus(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                Node child = ((Node) array[i + 1]).minus(key, hash, shift + 5);
+                if (child != null) {
+                    // a child down to one entry holds it no better than this node can
+                    if (child.slots() == 1 && child.keyAt(0) != null) {
+                        return with(i, child.keyAt(0), child.valueAt(0));
+                    }
+                    return with(i, null, child);
+                }
+            }
+
+            if (bitmap == bit) return null;
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        private Node with(int i, Object key, Object value) {
+            Object[] copy = array.clone();
+            copy[i] = key;
+            copy[i + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        public int slots() {
+            return array.length / 2;
+        }
+
+        public Object keyAt(int slot) {
+            return array[2 * slot];
+        }
+
+        public Object valueAt(int slot) {
+            return array[2 * slot + 1];
+        }
+    }
+
+    // keys with exactly the same hash, one after another
+    private static final class CollisionNode implements Node {
+        final Object[] array;
+
+        CollisionNode(Object[] array) {
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        public Object find(Object key, int hash, int shift) {
+            int i = indexOf(key);
+            return (i < 0) ? null : array[i + 1];
+        }
+
+        public Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(copy);
+            }
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(copy);
+        }
+
+        public Node minus(Object key, int hash, int shift) {
+            if (array.length == 2) return null;
+            int i = indexOf(key);
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(copy);
+        }
+
+        public int slots() {
+            return array.length / 2;
+        }
+
+        public Object keyAt(int slot) {
+            return array[2 * slot];
+        }
+
+        public Object valueAt(int slot) {
+            return array[2 * slot + 1];
+        }
+    }
+
+    // -- Iteration
+
+    // depth-first, keeping the path down to the current slot
+    private final class Walker implements Iterator<Entry<K, V>> {
+        // a trie is at most seven levels deep, plus one for collisions
+        private final Node[] nodes = new Node[8];
+        private final int[] slots = new int[8];
+        private int depth = -1;
+        private Entry<K, V> next;
+
+        Walker() {
+            if (root != null) {
+                nodes[0] = root;
+                slots[0] = 0;
+                depth = 0;
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                int slot = slots[depth];
+                if (slot >= node.slots()) {
+                    depth--;
+                    continue;
+                }
+                slots[depth] = slot + 1;
+                Object key = node.keyAt(slot);
+                if (key == null) {
+                    depth++;
+                    nodes[depth] = (Node) node.valueAt(slot);
+                    slots[depth] = 0;
+                } else {
+                    next = new SimpleImmutableEntry<K, V>((K) key, (V) node.valueAt(slot));
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.Server;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the plugin's tasks on the right threads. On an ordinary server, "global" work runs on the main
+ * thread and player work does too. On a region-threaded (Folia) server, global work - anything touching
+ * the configuration - runs on the global region thread, and each player's attachment is only touched from
+ * the thread which owns that player. Folia's schedulers aren't part of the API this is built against,
+ * so they are looked up reflectively.
+ */
+final class PlatformScheduler {
+
+    /**
+     * A scheduled task which can be cancelled.
+     */
+    interface Task {
+        void cancel();
+    }
+
+    private final Plugin plugin;
+    private final Server server;
+    private final boolean regionized;
+
+    // Folia's schedulers and the methods used on them, when regionized
+    private Object globalScheduler, asyncScheduler;
+    private Method globalRun, globalRunAtFixedRate, asyncRunNow, asyncRunAtFixedRate;
+    private Method entityGetScheduler, entityRun, taskCancel;
+    private Method isGlobalTickThread, isOwnedByCurrentRegion;
+
+    public PlatformScheduler(Plugin plugin) {
+        this.plugin = plugin;
+        this.server = plugin.getServer();
+        this.regionized = setUpRegions();
+    }
+
+    private boolean setUpRegions() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+
+        try {
+            globalScheduler = Server.class.getMethod("getGlobalRegionScheduler").invoke(server);
+            asyncScheduler = Server.class.getMethod("getAsyncScheduler").invoke(server);
+            Class<?> global = Class.forName("io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler");
+            Class<?> async = Class.forName("io.papermc.paper.threadedregions.scheduler.AsyncScheduler");
+            Class<?> entity = Class.forName("io.papermc.paper.threadedregions.scheduler.EntityScheduler");
+            Class<?> task = Class.forName("io.papermc.paper.threadedregions.scheduler.ScheduledTask");
+
+            globalRun = global.getMethod("run", Plugin.class, Consumer.class);
+            globalRunAtFixedRate = global.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class);
+            asyncRunNow = async.getMethod("runNow", Plugin.class, Consumer.class);
+            asyncRunAtFixedRate = async.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class, TimeUnit.class);
+            entityGetScheduler = Entity.class.getMethod("getScheduler");
+            entityRun = entity.getMethod("run", Plugin.class, Consumer.class, Runnable.class);
+            taskCancel = task.getMethod("cancel");
+            isGlobalTickThread = Server.class.getMethod("isGlobalTickThread");
+            isOwnedByCurrentRegion = Server.class.getMethod("isOwnedByCurrentRegion", Entity.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("This server looks region-threaded, but its schedulers could not be found", ex);
+        }
+        plugin.getLogger().info("Region-threaded server detected, scheduling per player");
+        return true;
+    }
+
+    public boolean isRegionized() {
+        return regionized;
+    }
+
+    // -- Threads
+
+    /**
+     * Check whether the current thread may change the configuration.
+     */
+    public boolean isGlobalThread() {
+        return regionized ? (Boolean) invoke(isGlobalTickThread, server) : server.isPrimaryThread();
+    }
+
+    /**
+     * Check whether the current thread may change the given player's attachment.
+     */
+    public boolean ownsPlayer(Player player) {
+        return regionized ? (Boolean) invoke(isOwnedByCurrentRegion, server, player) : server.isPrimaryThread();
+    }
+
+    // -- Scheduling
+
+    /**
+     * Run a task on the global thread, soon.
+     */
+    public void runGlobal(Runnable task) {
+        if (regionized) {
+            invoke(globalRun, globalScheduler, plugin, consumer(task));
+        } else {
+            server.getScheduler().runTask(plugin, task);
+        }
+    }
+
+    public Task runGlobalTimer(Runnable task, long delay, long period) {
+        if (regionized) {
+            // Folia won't take a delay of zero ticks
+            return wrap(invoke(globalRunAtFixedRate, globalScheduler, plugin, consumer(task), Math.max(1, delay), period));
+        }
+        return wrap(server.getScheduler().runTaskTimer(plugin, task, delay, period));
+    }
+
+    public void runAsync(Runnable task) {
+        if (regionized) {
+            invoke(asyncRunNow, asyncScheduler, plugin, consumer(task));
+        } else {
+            server.getScheduler().runTaskAsynchronously(plugin, task);
+        }
+    }
+
+    public Task runAsyncTimer(Runnable task, long delay, long period) {
+        if (regionized) {
+            return wrap(invoke(asyncRunAtFixedRate, asyncScheduler, plugin, consumer(task), Math.max(1, delay) * 50, period * 50, TimeUnit.MILLISECONDS));
+        }
+        return wrap(server.getScheduler().runTaskTimerAsynchronously(plugin, task, delay, period));
+    }
+
+    /**
+     * Run a task on the thread which owns a player: right now if that's this thread, otherwise soon.
+     * Nothing happens if the player leaves before then.
+     */
+    public void runFor(Player player, Runnable task) {
+        if (ownsPlayer(player)) {
+            task.run();
+        } else if (regionized) {
+            invoke(entityRun, invoke(entityGetScheduler, player), plugin, consumer(task), null);
+        } else {
+            server.getScheduler().runTask(plugin, task);
+        }
+    }
+
+    // -- Reflection
+
+    private static Consumer<Object> consumer(final Runnable task) {
+        return new Consumer<Object>() {
+            public void accept(Object scheduled) {
+                task.run();
+            }
+        };
+    }
+
+    private Task wrap(final Object task) {
+        return new Task() {
+            public void cancel() {
+                if (task instanceof BukkitTask) {
+                    ((BukkitTask) task).cancel();
+                } else if (task != null) {
+                    invoke(taskCancel, task);
+                }
+            }
+        };
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
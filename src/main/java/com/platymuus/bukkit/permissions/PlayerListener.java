@@ -21,19 +21,39 @@ final class PlayerListener implements Listener {
         this.plugin = plugin;
     }
 
-    // Keep track of player's world
+    // Keep track of player's world and gamemode
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onWorldChange(PlayerChangedWorldEvent event) {
-        plugin.calculateAttachment(event.getPlayer());
+        plugin.getProfiler().begin();
+        try {
+            plugin.updateContext(event.getPlayer(), plugin.contextOf(event.getPlayer()));
+        } finally {
+            plugin.getProfiler().end(TickProfiler.WORLD);
+        }
+    }
+
+    // The event comes before the change, so the new gamemode is taken from it
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onGameModeChange(PlayerGameModeChangeEvent event) {
+        PermissionContext context = plugin.contextOf(event.getPlayer()).with(PermissionContext.GAMEMODE, event.getNewGameMode().name());
+        plugin.updateContext(event.getPlayer(), context);
     }
 
     // Register players when needed
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerLogin(PlayerJoinEvent event) {
-        plugin.debug("Player " + event.getPlayer().getName() + " joined, registering...");
-        plugin.registerPlayer(event.getPlayer());
+        plugin.getTrace().log(Trace.JOIN, "Player %s joined, registering...", event.getPlayer().getName());
+        plugin.getProfiler().begin();
+        try {
+            plugin.getPruner().restore(event.getPlayer());
+            plugin.registerPlayer(event.getPlayer());
+            plugin.markSeen(event.getPlayer());
+        } finally {
+            plugin.getProfiler().end(TickProfiler.JOIN);
+        }
 
         if (plugin.configLoadError && event.getPlayer().hasPermission("permissions.reload")) {
             plugin.configLoadError = false;
@@ -45,14 +65,26 @@ final class PlayerListener implements Listener {
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     public void onPlayerKick(PlayerKickEvent event) {
-        plugin.debug("Player " + event.getPlayer().getName() + " was kicked, unregistering...");
-        plugin.unregisterPlayer(event.getPlayer());
+        plugin.getTrace().log(Trace.JOIN, "Player %s was kicked, unregistering...", event.getPlayer().getName());
+        plugin.getProfiler().begin();
+        try {
+            plugin.markSeen(event.getPlayer());
+            plugin.unregisterPlayer(event.getPlayer());
+        } finally {
+            plugin.getProfiler().end(TickProfiler.QUIT);
+        }
     }
 
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onPlayerQuit(PlayerQuitEvent event) {
-        plugin.debug("Player " + event.getPlayer().getName() + " quit, unregistering...");
-        plugin.unregisterPlayer(event.getPlayer());
+        plugin.getTrace().log(Trace.JOIN, "Player %s quit, unregistering...", event.getPlayer().getName());
+        plugin.getProfiler().begin();
+        try {
+            plugin.markSeen(event.getPlayer());
+            plugin.unregisterPlayer(event.getPlayer());
+        } finally {
+            plugin.getProfiler().end(TickProfiler.QUIT);
+        }
     }
 
     // Prevent doing things in the event of permissions.build: false
@@ -85,8 +117,8 @@ final class PlayerListener implements Listener {
     }
 
     private void bother(Player player) {
-        if (plugin.getConfig().getString("messages/build", "").length() > 0) {
-            String message = ChatColor.translateAlternateColorCodes('&', plugin.getConfig().getString("messages/build", ""));
+        String message = plugin.getBuildMessage();
+        if (message.length() > 0) {
             player.sendMessage(message);
         }
     }
@@ -0,0 +1,96 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * Records where each of a player's nodes came from: the layer (group, user or world) of every value
+ * written, and for child nodes, the parent that set them. Writes are kept in flat arrays, each linking
+ * back to the previous write of the same node, as copied out of the {@link LayerMerger} that made them.
+ */
+final class Provenance {
+
+    private final List<String> layers;
+    private final int[] writeLayer;
+    private final boolean[] writeValue;
+    private final int[] writePrevious;
+
+    // the last write of each node, by its position in the resolved nodes
+    private final NodeMap nodes;
+    private final int[] lastWrite;
+    private final Map<String, String> parents = new HashMap<String, String>();
+
+    Provenance(List<String> layers, int[] writeLayer, boolean[] writeValue, int[] writePrevious, NodeMap nodes, int[] lastWrite) {
+        this.layers = layers;
+        this.writeLayer = writeLayer;
+        this.writeValue = writeValue;
+        this.writePrevious = writePrevious;
+        this.nodes = nodes;
+        this.lastWrite = lastWrite;
+    }
+
+    /**
+     * Note that a node's final value came from a parent's children, or with a null parent, that it did not.
+     */
+    public void child(String node, String parent) {
+        if (parent == null) {
+            parents.remove(node);
+        } else {
+            parents.put(node, parent);
+        }
+    }
+
+    // -- Queries
+
+    /**
+     * Get the layer which set a node, or null if it was not set directly.
+     */
+    public String getSource(String node) {
+        int write = lastWriteOf(node);
+        return (write < 0) ? null : layers.get(writeLayer[write]);
+    }
+
+    /**
+     * Get the values a node had before being overridden, most recent first, as "layer = value".
+     */
+    public List<String> getOverridden(String node) {
+        List<String> result = new ArrayList<String>();
+        int write = lastWriteOf(node);
+        if (write < 0) {
+            return result;
+        }
+        for (int i = writePrevious[write]; i >= 0; i = writePrevious[i]) {
+            result.add(layers.get(writeLayer[i]) + " = " + writeValue[i]);
+        }
+        return result;
+    }
+
+    // nodes are looked up as Bukkit sees them, in lowercase, but may be written in any case
+    private int lastWriteOf(String node) {
+        int i = nodes.indexOf(node);
+        for (int j = nodes.size() - 1; i < 0 && j >= 0; --j) {
+            if (nodes.keyAt(j).equalsIgnoreCase(node)) {
+                i = j;
+            }
+        }
+        return (i < 0) ? -1 : lastWrite[i];
+    }
+
+    /**
+     * Get the permission whose children gave a node its final value, or null if it was not set that way.
+     */
+    public String getParent(String node) {
+        return parents.get(node.toLowerCase());
+    }
+
+    /**
+     * Describe in a few words where a node's value came from, for dumps.
+     */
+    public String describe(String node) {
+        String parent = getParent(node);
+        if (parent != null) {
+            return "child of " + parent;
+        }
+        return getSource(node);
+    }
+
+}
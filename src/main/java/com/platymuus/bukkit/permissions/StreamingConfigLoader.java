@@ -0,0 +1,254 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.ScalarNode;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Loads a YAML file straight into a configuration from the parser's event stream, rather than reading
+ * the whole file into a string, building a tree of maps from it and then copying that into sections.
+ * Errors carry the same line and column information YamlConfiguration.load would give.
+ */
+final class StreamingConfigLoader {
+
+    private static final String COMMENT_PREFIX = "# ";
+    private static final String MERGE_KEY = "<<";
+
+    private final Iterator<Event> events;
+    private final Resolver resolver = new Resolver();
+    private final ScalarConstructor constructor = new ScalarConstructor();
+    private final Map<String, Object> anchors = new HashMap<String, Object>();
+
+    private StreamingConfigLoader(Reader reader) {
+        this.events = new Yaml().parse(reader).iterator();
+    }
+
+    public static void load(File file, YamlConfiguration config) throws IOException, InvalidConfigurationException {
+        String header = readHeader(file);
+        if (header.length() > 0) {
+            config.options().header(header);
+        }
+
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            new StreamingConfigLoader(reader).loadInto(config);
+        } catch (YAMLException ex) {
+            throw new InvalidConfigurationException(ex);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // -- Events
+
+    private void loadInto(ConfigurationSection root) throws InvalidConfigurationException {
+        expect(StreamStartEvent.class);
+        Event event = next();
+        if (event instanceof StreamEndEvent) {
+            // empty file
+            return;
+        }
+        if (!(event instanceof DocumentStartEvent)) {
+            throw invalid("expected the start of a document", event.getStartMark());
+        }
+
+        event = next();
+        if (event instanceof MappingStartEvent) {
+            remember(((MappingStartEvent) event).getAnchor(), root);
+            readMapping(root);
+        } else if (!(event instanceof ScalarEvent && construct((ScalarEvent) event) == null)) {
+            throw invalid("Top level is not a Map.", event.getStartMark());
+        }
+
+        expect(DocumentEndEvent.class);
+        event = next();
+        if (!(event instanceof StreamEndEvent)) {
+            throw invalid("expected a single document in the stream", event.getStartMark());
+        }
+    }
+
+    private void readMapping(ConfigurationSection section) throws InvalidConfigurationException {
+        while (true) {
+            Event event = next();
+            if (event instanceof MappingEndEvent) {
+                return;
+            }
+            String key = readKey(event);
+
+            event = next();
+            if (MERGE_KEY.equals(key)) {
+                merge(section, readValue(event), event.getStartMark());
+            } else if (event instanceof MappingStartEvent) {
+                ConfigurationSection child = section.createSection(key);
+                remember(((MappingStartEvent) event).getAnchor(), child);
+                readMapping(child);
+            } else {
+                Object value = readValue(event);
+                if (value instanceof ConfigurationSection) {
+                    // aliased section, copied so that its path is right
+                    UserShards.copy((ConfigurationSection) value, section.createSection(key));
+                } else {
+                    section.set(key, value);
+                }
+            }
+        }
+    }
+
+    // a value in a sequence, or anything which isn't a freshly opened section
+    private Object readValue(Event event) throws InvalidConfigurationException {
+        if (event instanceof ScalarEvent) {
+            Object value = construct((ScalarEvent) event);
+            remember(((ScalarEvent) event).getAnchor(), value);
+            return value;
+        } else if (event instanceof AliasEvent) {
+            String anchor = ((AliasEvent) event).getAnchor();
+            if (!anchors.containsKey(anchor)) {
+                throw invalid("found undefined alias " + anchor, event.getStartMark());
+            }
+            return anchors.get(anchor);
+        } else if (event instanceof SequenceStartEvent) {
+            List<Object> list = new ArrayList<Object>();
+            remember(((SequenceStartEvent) event).getAnchor(), list);
+            while (!((event = next()) instanceof SequenceEndEvent)) {
+                list.add(readValue(event));
+            }
+            return list;
+        } else if (event instanceof MappingStartEvent) {
+            // maps inside lists stay as maps, just as YamlConfiguration leaves them
+            Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+            remember(((MappingStartEvent) event).getAnchor(), map);
+            while (!((event = next()) instanceof MappingEndEvent)) {
+                String key = readKey(event);
+                Object value = readValue(next());
+                map.put(key, value instanceof ConfigurationSection ? ((ConfigurationSection) value).getValues(true) : value);
+            }
+            return map;
+        }
+        throw invalid("unexpected " + event, event.getStartMark());
+    }
+
+    private String readKey(Event event) throws InvalidConfigurationException {
+        Object key;
+        if (event instanceof ScalarEvent && resolve((ScalarEvent) event).equals(Tag.MERGE)) {
+            return MERGE_KEY;
+        } else if (event instanceof ScalarEvent || event instanceof AliasEvent) {
+            key = readValue(event);
+        } else {
+            throw invalid("complex keys are not supported", event.getStartMark());
+        }
+        return String.valueOf(key);
+    }
+
+    // "<<: *anchor" copies in every key from the anchored section which this section doesn't already have
+    private void merge(ConfigurationSection section, Object value, Mark mark) throws InvalidConfigurationException {
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                merge(section, item, mark);
+            }
+        } else if (value instanceof ConfigurationSection) {
+            ConfigurationSection from = (ConfigurationSection) value;
+            for (String key : from.getKeys(false)) {
+                if (section.contains(key)) continue;
+                if (from.isConfigurationSection(key)) {
+                    UserShards.copy(from.getConfigurationSection(key), section.createSection(key));
+                } else {
+                    section.set(key, from.get(key));
+                }
+            }
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                if (!section.contains(key)) {
+                    section.set(key, entry.getValue());
+                }
+            }
+        } else {
+            throw invalid("expected a mapping or list of mappings for merging", mark);
+        }
+    }
+
+    private Object construct(ScalarEvent event) {
+        return constructor.construct(new ScalarNode(resolve(event), event.getValue(), event.getStartMark(), event.getEndMark(), event.getStyle()));
+    }
+
+    private Tag resolve(ScalarEvent event) {
+        if (event.getTag() == null || event.getTag().equals("!")) {
+            return resolver.resolve(NodeId.scalar, event.getValue(), event.getImplicit().canOmitTagInPlainScalar());
+        }
+        return new Tag(event.getTag());
+    }
+
+    private void remember(String anchor, Object value) {
+        if (anchor != null) {
+            anchors.put(anchor, value);
+        }
+    }
+
+    private Event next() {
+        return events.next();
+    }
+
+    private void expect(Class<? extends Event> type) throws InvalidConfigurationException {
+        Event event = next();
+        if (!type.isInstance(event)) {
+            throw invalid("unexpected " + event, event.getStartMark());
+        }
+    }
+
+    private static InvalidConfigurationException invalid(String message, Mark mark) {
+        return new InvalidConfigurationException(message + (mark != null ? mark.toString() : ""));
+    }
+
+    // -- Header
+
+    // the leading comment block, parsed the same way YamlConfiguration does
+    private static String readHeader(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder result = new StringBuilder();
+            boolean foundHeader = false;
+            String line;
+            for (int i = 0; (line = reader.readLine()) != null; ++i) {
+                if (line.startsWith(COMMENT_PREFIX)) {
+                    if (i > 0) {
+                        result.append("\n");
+                    }
+                    if (line.length() > COMMENT_PREFIX.length()) {
+                        result.append(line.substring(COMMENT_PREFIX.length()));
+                    }
+                    foundHeader = true;
+                } else if (foundHeader && line.length() == 0) {
+                    result.append("\n");
+                } else if (foundHeader) {
+                    // the header ends at the first line that isn't a comment
+                    break;
+                }
+            }
+            return result.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Builds single scalars using SnakeYAML's own rules, without keeping track of every node it has seen.
+     */
+    private static final class ScalarConstructor extends SafeConstructor {
+        Object construct(ScalarNode node) {
+            return getConstructor(node).construct(node);
+        }
+    }
+
+}
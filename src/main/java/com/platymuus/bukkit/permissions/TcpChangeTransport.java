@@ -0,0 +1,285 @@
+package com.platymuus.bukkit.permissions;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A ChangeTransport which listens on a TCP port and sends each message to a fixed list of peers. With a shared
+ * secret, each message is sent with the time and an HMAC of both, and messages which don't check out or are
+ * more than a minute old are refused. Without one, anyone who can connect can change permissions, so the
+ * listener will only bind to a loopback address.
+ */
+final class TcpChangeTransport implements ChangeTransport {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final long MAX_AGE = 60000;
+
+    private final Logger logger;
+    private final InetSocketAddress bind;
+    private final List<InetSocketAddress> peers;
+    // null if messages are sent as they are
+    private final SecretKeySpec key;
+
+    private final BlockingQueue<String> outgoing = new LinkedBlockingQueue<String>(10000);
+    private final List<Socket> incoming = Collections.synchronizedList(new ArrayList<Socket>());
+    private final Map<InetSocketAddress, Writer> connections = new HashMap<InetSocketAddress, Writer>();
+
+    private volatile boolean running = false;
+    private ServerSocket server;
+    private Thread acceptThread;
+    private Thread sendThread;
+    // only used by the send thread
+    private Mac sendMac;
+
+    /**
+     * @param secret The secret shared by every server, or null or empty for none.
+     */
+    public TcpChangeTransport(Logger logger, InetSocketAddress bind, List<InetSocketAddress> peers, String secret) {
+        this.logger = logger;
+        this.bind = bind;
+        this.peers = peers;
+        try {
+            this.key = (secret == null || secret.isEmpty()) ? null : new SecretKeySpec(secret.getBytes("UTF-8"), ALGORITHM);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void start(final Receiver receiver) throws IOException {
+        if (key == null && (bind.getAddress() == null || !bind.getAddress().isLoopbackAddress())) {
+            throw new IOException("Refusing to listen on " + bind + " without a sync secret, anyone who can reach it could change permissions");
+        }
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(bind);
+        running = true;
+
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = server.accept();
+                        incoming.add(socket);
+                        Thread reader = new Thread(new Runnable() {
+                            public void run() {
+                                read(socket, receiver);
+                            }
+                        }, "PermissionsBukkit sync reader " + socket.getRemoteSocketAddress());
+                        reader.setDaemon(true);
+                        reader.start();
+                    } catch (IOException ex) {
+                        if (running) {
+                            logger.log(Level.WARNING, "Sync listener failed to accept a connection", ex);
+                        }
+                    }
+                }
+            }
+        }, "PermissionsBukkit sync listener");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        sendThread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    try {
+                        send(outgoing.take());
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+            }
+        }, "PermissionsBukkit sync sender");
+        sendThread.setDaemon(true);
+        sendThread.start();
+    }
+
+    public void publish(String message) {
+        if (!outgoing.offer(message)) {
+            logger.warning("Sync queue is full, dropping a change notification");
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException ex) {
+            // closing anyway
+        }
+        if (sendThread != null) {
+            sendThread.interrupt();
+        }
+        synchronized (incoming) {
+            for (Socket socket : incoming) {
+                closeQuietly(socket);
+            }
+            incoming.clear();
+        }
+        synchronized (connections) {
+            for (Writer writer : connections.values()) {
+                closeQuietly(writer);
+            }
+            connections.clear();
+        }
+    }
+
+    private void read(Socket socket, Receiver receiver) {
+        try {
+            Mac mac = newMac();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String message = (mac == null) ? line : open(mac, line);
+                if (message == null) {
+                    // whoever sent it doesn't know the secret, so nothing else they send can be trusted either
+                    logger.warning("Refusing a change notification from " + socket.getRemoteSocketAddress() + " which failed authentication");
+                    break;
+                }
+                receiver.receive(message);
+            }
+        } catch (IOException ex) {
+            // peer went away, it will reconnect when it next has something to say
+        } finally {
+            incoming.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private void send(String message) {
+        if (key != null) {
+            message = seal(message);
+        }
+        synchronized (connections) {
+            for (InetSocketAddress peer : peers) {
+                // try each peer twice, in case a cached connection has gone stale
+                for (int attempt = 0; attempt < 2; ++attempt) {
+                    try {
+                        Writer writer = connections.get(peer);
+                        if (writer == null) {
+                            Socket socket = new Socket();
+                            socket.connect(peer, 2000);
+                            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                            connections.put(peer, writer);
+                        }
+                        writer.write(message);
+                        writer.write('\n');
+                        writer.flush();
+                        break;
+                    } catch (IOException ex) {
+                        closeQuietly(connections.remove(peer));
+                        if (attempt == 1) {
+                            logger.warning("Failed to send a change notification to " + peer + ": " + ex.getMessage());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // -- Authentication
+
+    // a new instance for each thread, as they can't be shared
+    private Mac newMac() throws IOException {
+        if (key == null) return null;
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Can't authenticate sync messages", ex);
+        }
+    }
+
+    // only called from the send thread
+    private String seal(String message) {
+        try {
+            if (sendMac == null) {
+                sendMac = newMac();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        String body = System.currentTimeMillis() + "\t" + message;
+        return hex(sign(sendMac, body)) + "\t" + body;
+    }
+
+    // the message inside a frame, or null if it isn't signed with the secret or is too old
+    private static String open(Mac mac, String frame) {
+        int tab = frame.indexOf('\t');
+        int second = (tab < 0) ? -1 : frame.indexOf('\t', tab + 1);
+        if (second < 0) return null;
+
+        String body = frame.substring(tab + 1);
+        byte[] expected = sign(mac, body);
+        if (!MessageDigest.isEqual(expected, unhex(frame.substring(0, tab)))) {
+            return null;
+        }
+        try {
+            long time = Long.parseLong(frame.substring(tab + 1, second));
+            if (Math.abs(System.currentTimeMillis() - time) > MAX_AGE) return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return frame.substring(second + 1);
+    }
+
+    private static byte[] sign(Mac mac, String body) {
+        try {
+            return mac.doFinal(body.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    // malformed text gives an empty array, which never matches
+    private static byte[] unhex(String text) {
+        if (text.length() % 2 != 0) return new byte[0];
+        byte[] result = new byte[text.length() / 2];
+        for (int i = 0; i < result.length; ++i) {
+            int high = Character.digit(text.charAt(i * 2), 16), low = Character.digit(text.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) return new byte[0];
+            result[i] = (byte) ((high << 4) | low);
+        }
+        return result;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.platymuus.bukkit.permissions;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the time and memory the plugin's event handlers and commands take on the main thread, rolled
+ * up per server tick, so that spikes like a reconnect storm after a restart can be seen on a real server.
+ * Only the outermost call is measured when handlers nest. Calls are only measured on the thread which
+ * started the profiler; on a region-threaded server, that is the global region thread.
+ */
+final class TickProfiler {
+
+    public static final int JOIN = 0;
+    public static final int QUIT = 1;
+    public static final int WORLD = 2;
+    public static final int COMMAND = 3;
+
+    private static final String[] NAMES = {"join", "quit", "world change", "command"};
+
+    private final PermissionsPlugin plugin;
+    private final com.sun.management.ThreadMXBean allocation;
+
+    private PlatformScheduler.Task task;
+    private volatile Thread thread;
+    private int depth;
+    private boolean measuring;
+    private long startNanos;
+    private long startBytes;
+
+    // the tick in progress
+    private long tickNanos;
+    private long tickBytes;
+
+    // totals since the profiler was started
+    private long startedAt;
+    private long ticks;
+    private long busyTicks;
+    private long totalNanos;
+    private long totalBytes;
+    private long maxTickNanos;
+    private long maxTickBytes;
+    private long maxPauseNanos;
+    private final long[] calls = new long[NAMES.length];
+    private final long[] callNanos = new long[NAMES.length];
+
+    public TickProfiler(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+
+        // per-thread allocation counts are a HotSpot extension
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            allocation = (com.sun.management.ThreadMXBean) threads;
+        } else {
+            allocation = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * Clear all figures and start measuring.
+     */
+    public void start() {
+        if (task != null) {
+            task.cancel();
+        }
+        if (allocation != null && !allocation.isThreadAllocatedMemoryEnabled()) {
+            allocation.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        startedAt = System.currentTimeMillis();
+        ticks = busyTicks = totalNanos = totalBytes = maxTickNanos = maxTickBytes = maxPauseNanos = 0;
+        tickNanos = tickBytes = 0;
+        for (int i = 0; i < NAMES.length; ++i) {
+            calls[i] = callNanos[i] = 0;
+        }
+
+        thread = Thread.currentThread();
+        task = plugin.getPlatformScheduler().runGlobalTimer(new Runnable() {
+            public void run() {
+                endTick();
+            }
+        }, 1, 1);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+            thread = null;
+            endTick();
+        }
+    }
+
+    // -- Measuring
+
+    public void begin() {
+        if (Thread.currentThread() != thread) return;
+        if (depth++ == 0 && task != null) {
+            measuring = true;
+            startBytes = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+    }
+
+    public void end(int kind) {
+        if (Thread.currentThread() != thread) return;
+        if (--depth > 0 || !measuring) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = allocatedBytes() - startBytes;
+        measuring = false;
+
+        tickNanos += nanos;
+        tickBytes += bytes;
+        calls[kind]++;
+        callNanos[kind] += nanos;
+        maxPauseNanos = Math.max(maxPauseNanos, nanos);
+    }
+
+    private void endTick() {
+        ticks++;
+        if (tickNanos > 0) {
+            busyTicks++;
+            totalNanos += tickNanos;
+            totalBytes += tickBytes;
+            maxTickNanos = Math.max(maxTickNanos, tickNanos);
+            maxTickBytes = Math.max(maxTickBytes, tickBytes);
+        }
+        tickNanos = tickBytes = 0;
+    }
+
+    private long allocatedBytes() {
+        return (allocation == null) ? 0 : allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // -- Reporting
+
+    /**
+     * Summarize the figures so far as a few lines of "label: value".
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("Ticks: " + ticks + " over " + (System.currentTimeMillis() - startedAt) / 1000 + "s, " + busyTicks + " with plugin work");
+        lines.add("Plugin time: " + millis(totalNanos) + " total, " + millis(busyTicks == 0 ? 0 : totalNanos / busyTicks) + " per busy tick, " + millis(maxTickNanos) + " worst tick");
+        lines.add("Longest pause: " + millis(maxPauseNanos));
+        if (allocation != null) {
+            lines.add("Allocated: " + kilobytes(totalBytes) + " total, " + kilobytes(maxTickBytes) + " worst tick");
+        } else {
+            lines.add("Allocated: not measurable on this JVM");
+        }
+        for (int i = 0; i < NAMES.length; ++i) {
+            if (calls[i] > 0) {
+                lines.add("  " + NAMES[i] + ": " + calls[i] + " calls, " + millis(callNanos[i] / calls[i]) + " each");
+            }
+        }
+        return lines;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    private static String kilobytes(long bytes) {
+        return (bytes / 1024) + "KB";
+    }
+
+}
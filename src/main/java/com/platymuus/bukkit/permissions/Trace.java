@@ -0,0 +1,183 @@
+package com.platymuus.bukkit.permissions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Debug tracing by category. Messages are format strings which are only formatted if they are logged
+ * or dumped, and recent events are kept in a fixed-size ring buffer which writers never lock.
+ */
+final class Trace {
+
+    public static final int JOIN = 1;
+    public static final int REFRESH = 2;
+    public static final int RESOLVE = 4;
+    public static final int IO = 8;
+    public static final int ALL = JOIN | REFRESH | RESOLVE | IO;
+
+    private static final String[] NAMES = {"join", "refresh", "resolve", "io"};
+
+    private final Logger logger;
+
+    // categories kept in the buffer, and categories also written to the log
+    private volatile int recordMask = ALL;
+    private volatile int logMask = 0;
+
+    private volatile AtomicReferenceArray<Event> buffer = new AtomicReferenceArray<Event>(1024);
+    private final AtomicLong sequence = new AtomicLong();
+
+    public Trace(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Set up from the configuration: which categories to record, how many events to keep, and whether to log everything.
+     */
+    public void configure(List<String> categories, int size, boolean debug) {
+        int mask = 0;
+        for (String name : categories) {
+            mask |= categoryOf(name);
+        }
+        recordMask = mask;
+        logMask = debug ? ALL : 0;
+
+        // round up to a power of two so that slots can be found with a mask
+        int capacity = Integer.highestOneBit(Math.max(16, size) - 1) << 1;
+        if (capacity != buffer.length()) {
+            buffer = new AtomicReferenceArray<Event>(capacity);
+        }
+    }
+
+    public void setRecording(int category, boolean on) {
+        recordMask = on ? (recordMask | category) : (recordMask & ~category);
+    }
+
+    public boolean isRecording(int category) {
+        return (recordMask & category) != 0;
+    }
+
+    public boolean isEnabled(int category) {
+        return ((recordMask | logMask) & category) != 0;
+    }
+
+    // -- Writing
+
+    public void log(int category, String message) {
+        if (isEnabled(category)) {
+            write(category, message, null);
+        }
+    }
+
+    public void log(int category, String format, Object arg) {
+        if (isEnabled(category)) {
+            write(category, format, new Object[]{arg});
+        }
+    }
+
+    public void log(int category, String format, Object arg1, Object arg2) {
+        if (isEnabled(category)) {
+            write(category, format, new Object[]{arg1, arg2});
+        }
+    }
+
+    public void log(int category, String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(category)) {
+            write(category, format, new Object[]{arg1, arg2, arg3});
+        }
+    }
+
+    private void write(int category, String format, Object[] args) {
+        boolean record = (recordMask & category) != 0;
+        Event event = new Event(record ? sequence.getAndIncrement() : -1, System.currentTimeMillis(), Thread.currentThread().getName(), category, format, args);
+        if (record) {
+            // claiming a sequence number claims the slot, so writers never need to lock
+            AtomicReferenceArray<Event> slots = buffer;
+            slots.set((int) (event.sequence & (slots.length() - 1)), event);
+        }
+        if ((logMask & category) != 0) {
+            logger.info("Debug: " + event.message());
+        }
+    }
+
+    // -- Reading
+
+    /**
+     * Write every event still in the buffer to a file, oldest first.
+     *
+     * @return The number of events written.
+     */
+    public int dump(File file) throws IOException {
+        AtomicReferenceArray<Event> slots = buffer;
+        long end = sequence.get();
+        long start = Math.max(0, end - slots.length());
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        int count = 0;
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try {
+            out.println("PermissionsBukkit trace, " + (end - start) + " most recent events");
+            for (long i = start; i < end; ++i) {
+                Event event = slots.get((int) (i & (slots.length() - 1)));
+                // slots may have been overwritten by newer events, or not written yet
+                if (event == null || event.sequence != i) continue;
+                out.println(time.format(new Date(event.time)) + " [" + event.thread + "] " + nameOf(event.category) + ": " + event.message());
+                ++count;
+            }
+        } finally {
+            out.close();
+        }
+        return count;
+    }
+
+    public static int categoryOf(String name) {
+        if (name.equalsIgnoreCase("all")) {
+            return ALL;
+        }
+        for (int i = 0; i < NAMES.length; ++i) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    public static String nameOf(int category) {
+        for (int i = 0; i < NAMES.length; ++i) {
+            if (category == 1 << i) {
+                return NAMES[i];
+            }
+        }
+        return "?";
+    }
+
+    private static final class Event {
+        final long sequence;
+        final long time;
+        final String thread;
+        final int category;
+        final String format;
+        final Object[] args;
+
+        Event(long sequence, long time, String thread, int category, String format, Object[] args) {
+            this.sequence = sequence;
+            this.time = time;
+            this.thread = thread;
+            this.category = category;
+            this.format = format;
+            this.args = args;
+        }
+
+        String message() {
+            return args == null ? format : String.format(format, args);
+        }
+    }
+
+}
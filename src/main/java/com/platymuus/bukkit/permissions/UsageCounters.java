@@ -0,0 +1,168 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running totals over every user and group, kept up to date as entries change so that
+ * collecting statistics never has to walk the configuration.
+ */
+final class UsageCounters {
+
+    private static final String WIZARD = "ConspiracyWizard";
+    private static final String BUILD = "permissions.build";
+
+    private int users;
+    private int groups;
+    private int permissions;
+    private int userPermissions;
+    private int worldEntries;
+    private int inheritance;
+    private int antiBuild;
+    private boolean antiBuildDefault;
+    private int wizards;
+
+    // how many nodes use each root, and how many entries have nodes for each world
+    private final Map<String, Integer> roots = new HashMap<String, Integer>();
+    private final Map<String, Integer> worlds = new HashMap<String, Integer>();
+
+    public synchronized void clear() {
+        users = groups = permissions = userPermissions = worldEntries = inheritance = antiBuild = wizards = 0;
+        antiBuildDefault = false;
+        roots.clear();
+        worlds.clear();
+    }
+
+    /**
+     * Account for a user entry being replaced. Either side may be null.
+     */
+    public synchronized void updateUser(String key, PermissionInfo old, PermissionInfo info) {
+        if (old != null) {
+            users--;
+            if (key.equals(WIZARD)) wizards--;
+            if (!key.equals(WIZARD) && hasNodes(old)) userPermissions--;
+            count(old, -1);
+        }
+        if (info != null) {
+            users++;
+            if (key.equals(WIZARD)) wizards++;
+            if (!key.equals(WIZARD) && hasNodes(info)) userPermissions++;
+            count(info, 1);
+        }
+    }
+
+    /**
+     * Account for a group entry being replaced. Either side may be null.
+     */
+    public synchronized void updateGroup(String name, PermissionInfo old, PermissionInfo info) {
+        if (old != null) {
+            groups--;
+            if (!old.getGroupNames().isEmpty()) inheritance--;
+            if (deniesBuild(old)) antiBuild--;
+            count(old, -1);
+        }
+        if (info != null) {
+            groups++;
+            if (!info.getGroupNames().isEmpty()) inheritance++;
+            if (deniesBuild(info)) antiBuild++;
+            count(info, 1);
+        }
+        if (name.equalsIgnoreCase("default")) {
+            antiBuildDefault = info != null && Boolean.FALSE.equals(info.getPermissions().get(BUILD));
+        }
+    }
+
+    // -- Figures
+
+    public synchronized int getUsers() {
+        return users;
+    }
+
+    public synchronized int getGroups() {
+        return groups;
+    }
+
+    public synchronized int getPermissions() {
+        return permissions;
+    }
+
+    public synchronized int getRoots() {
+        return roots.size();
+    }
+
+    public synchronized int getWorlds() {
+        return worlds.size();
+    }
+
+    public synchronized boolean hasUserPermissions() {
+        return userPermissions > 0;
+    }
+
+    public synchronized boolean hasWorldPermissions() {
+        return worldEntries > 0;
+    }
+
+    public synchronized boolean hasInheritance() {
+        return inheritance > 0;
+    }
+
+    public synchronized boolean hasAntiBuild() {
+        return antiBuild > 0;
+    }
+
+    public synchronized boolean hasAntiBuildDefault() {
+        return antiBuildDefault;
+    }
+
+    public synchronized boolean hasWizards() {
+        return wizards > 0;
+    }
+
+    // -- Counting
+
+    private void count(PermissionInfo info, int delta) {
+        countNodes(info.getPermissions(), delta);
+        if (!info.getWorlds().isEmpty()) {
+            worldEntries += delta;
+        }
+        for (String world : info.getWorlds()) {
+            adjust(worlds, world, delta);
+            countNodes(info.getWorldPermissions(world), delta);
+        }
+    }
+
+    private void countNodes(Map<String, Boolean> nodes, int delta) {
+        permissions += delta * nodes.size();
+        for (String node : nodes.keySet()) {
+            int i = node.indexOf('.');
+            adjust(roots, i >= 0 ? node.substring(0, i) : node, delta);
+        }
+    }
+
+    private static void adjust(Map<String, Integer> counts, String key, int delta) {
+        Integer current = counts.get(key);
+        int value = (current == null ? 0 : current) + delta;
+        if (value <= 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, value);
+        }
+    }
+
+    private static boolean hasNodes(PermissionInfo info) {
+        return !info.getPermissions().isEmpty() || !info.getWorlds().isEmpty();
+    }
+
+    private static boolean deniesBuild(PermissionInfo info) {
+        if (Boolean.FALSE.equals(info.getPermissions().get(BUILD))) {
+            return true;
+        }
+        for (String world : info.getWorlds()) {
+            if (Boolean.FALSE.equals(info.getWorldPermissions(world).get(BUILD))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
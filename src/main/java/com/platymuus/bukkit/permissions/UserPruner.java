@@ -0,0 +1,236 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Shrinks the users section. Entries which give exactly what the default group would are dropped,
+ * and entries for players not seen for a given number of days can be moved to one small file each
+ * in the archive folder, to be put back the next time that player joins.
+ */
+final class UserPruner {
+
+    private final PermissionsPlugin plugin;
+    private final File folder;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public UserPruner(PermissionsPlugin plugin) {
+        this.plugin = plugin;
+        this.folder = new File(plugin.getDataFolder(), "archive");
+    }
+
+    /**
+     * Prune in the background, sending the outcome to the given sender.
+     *
+     * @param archiveDays Archive users not seen for this many days, or 0 to archive nobody.
+     * @return False if a prune was already running.
+     */
+    public boolean start(final CommandSender sender, final int archiveDays) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        // work out the candidates from the snapshot, off the main thread
+        plugin.getPlatformScheduler().runAsync(new Runnable() {
+            public void run() {
+                final Map<String, PermissionInfo> redundant = new LinkedHashMap<String, PermissionInfo>();
+                final Map<String, PermissionInfo> stale = new LinkedHashMap<String, PermissionInfo>();
+                final PermissionsSnapshot planned = plugin.getSnapshot();
+                try {
+                    plan(planned, archiveDays, redundant, stale);
+                } catch (RuntimeException ex) {
+                    running.set(false);
+                    throw ex;
+                }
+
+                plugin.getPlatformScheduler().runGlobal(new Runnable() {
+                    public void run() {
+                        try {
+                            archive(sender, planned, redundant, stale);
+                        } catch (RuntimeException ex) {
+                            running.set(false);
+                            throw ex;
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    private void plan(PermissionsSnapshot snapshot, int archiveDays, Map<String, PermissionInfo> redundant, Map<String, PermissionInfo> stale) {
+        LastSeen lastSeen = plugin.getLastSeen();
+        long now = ExpiryTracker.now();
+        long cutoff = now - archiveDays * 86400L;
+
+        // only the entries being acted on are put back together
+        for (UUID uuid : snapshot.getUsers().keySet()) {
+            String key = uuid.toString();
+            if (snapshot.hasOnlyGroups(uuid) && isRedundant(snapshot, snapshot.getUserGroupNames(uuid))) {
+                redundant.put(key, snapshot.getUser(uuid));
+            } else if (archiveDays > 0 && lastSeen.getOrStart(key, now) < cutoff) {
+                stale.put(key, snapshot.getUser(uuid));
+            }
+        }
+        for (Map.Entry<String, PermissionInfo> entry : snapshot.getLegacyUsers().entrySet()) {
+            PermissionInfo info = entry.getValue();
+            boolean groupsOnly = info.getPermissions().isEmpty() && info.getWorlds().isEmpty() && info.getContextRules().isEmpty();
+            if (groupsOnly && isRedundant(snapshot, info.getGroupNames())) {
+                redundant.put(entry.getKey(), info);
+            } else if (archiveDays > 0 && lastSeen.getOrStart(entry.getKey(), now) < cutoff) {
+                stale.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // an entry setting nothing but these groups is redundant when the player would have exactly the same
+    // permissions without it
+    private static boolean isRedundant(PermissionsSnapshot snapshot, List<String> groups) {
+        if (groups.size() == 1 && groups.get(0).equalsIgnoreCase("default")) {
+            return true;
+        }
+        // no groups at all means no permissions, which is only the same as default if default gives none
+        PermissionInfo def = snapshot.getGroup("default");
+        return groups.isEmpty() && (def == null || (def.getPermissions().isEmpty() && def.getWorlds().isEmpty() && def.getContextRules().isEmpty() && def.getGroupNames().isEmpty()));
+    }
+
+    // on the main thread: copy out the stale entries which are unchanged since planning, then write them
+    private void archive(final CommandSender sender, final PermissionsSnapshot planned, final Map<String, PermissionInfo> redundant, final Map<String, PermissionInfo> stale) {
+        final Map<String, YamlConfiguration> copies = new LinkedHashMap<String, YamlConfiguration>();
+        for (Map.Entry<String, PermissionInfo> entry : stale.entrySet()) {
+            ConfigurationSection node = plugin.getNode("users/" + entry.getKey());
+            if (node == null || !unchanged(planned, entry.getKey()) || isOnline(entry.getKey())) continue;
+
+            YamlConfiguration copy = new YamlConfiguration();
+            copy.options().pathSeparator('/');
+            UserShards.copy(node, copy);
+            copies.put(entry.getKey(), copy);
+        }
+
+        plugin.getPlatformScheduler().runAsync(new Runnable() {
+            public void run() {
+                final Map<String, PermissionInfo> archived = new LinkedHashMap<String, PermissionInfo>();
+                folder.mkdirs();
+                for (Map.Entry<String, YamlConfiguration> entry : copies.entrySet()) {
+                    try {
+                        entry.getValue().save(fileOf(entry.getKey()));
+                        archived.put(entry.getKey(), stale.get(entry.getKey()));
+                    } catch (IOException ex) {
+                        plugin.getLogger().log(Level.WARNING, "Failed to archive user " + entry.getKey(), ex);
+                    }
+                }
+
+                plugin.getPlatformScheduler().runGlobal(new Runnable() {
+                    public void run() {
+                        try {
+                            remove(sender, planned, redundant, archived);
+                        } finally {
+                            running.set(false);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // on the main thread: drop every entry which still hasn't changed, as one batch
+    private void remove(CommandSender sender, PermissionsSnapshot planned, Map<String, PermissionInfo> redundant, Map<String, PermissionInfo> archived) {
+        PermissionsBatch batch = plugin.newBatch();
+        batch.setSource("prune");
+        int dropped = 0, moved = 0;
+        for (Map.Entry<String, PermissionInfo> entry : redundant.entrySet()) {
+            if (unchanged(planned, entry.getKey())) {
+                batch.removeUser(entry.getKey());
+                plugin.getLastSeen().forget(entry.getKey());
+                dropped++;
+            }
+        }
+        for (Map.Entry<String, PermissionInfo> entry : archived.entrySet()) {
+            if (unchanged(planned, entry.getKey()) && !isOnline(entry.getKey())) {
+                batch.removeUser(entry.getKey());
+                plugin.getLastSeen().forget(entry.getKey());
+                moved++;
+            } else {
+                // changed while it was being written, so the live entry wins
+                fileOf(entry.getKey()).delete();
+            }
+        }
+
+        try {
+            batch.commit();
+        } catch (IllegalArgumentException ex) {
+            sender.sendMessage(ChatColor.RED + "Failed to prune users: " + ex.getMessage());
+            return;
+        }
+        sender.sendMessage(ChatColor.GREEN + "Pruned " + ChatColor.WHITE + dropped + ChatColor.GREEN + " redundant users and archived " + ChatColor.WHITE + moved + ChatColor.GREEN + " inactive users.");
+    }
+
+    // snapshots are immutable and replaced on every change, so the same stored entry means nothing changed
+    private boolean unchanged(PermissionsSnapshot planned, String key) {
+        return plugin.getSnapshot().isSameUser(planned, key);
+    }
+
+    private boolean isOnline(String key) {
+        UUID uuid = PermissionsSnapshot.parseUUID(key);
+        return (uuid != null) ? plugin.getServer().getPlayer(uuid) != null : plugin.getServer().getPlayerExact(key) != null;
+    }
+
+    // -- Restoring
+
+    /**
+     * Put back a player's archived entry, if they have one. Called as the player joins, from any thread.
+     */
+    public void restore(final Player player) {
+        // restoring changes the configuration, so has to happen on the global thread
+        if (!plugin.getPlatformScheduler().isGlobalThread()) {
+            plugin.getPlatformScheduler().runGlobal(new Runnable() {
+                public void run() {
+                    restore(player);
+                }
+            });
+            return;
+        }
+
+        File file = fileOf(player.getUniqueId().toString());
+        String key = player.getUniqueId().toString();
+        if (!file.isFile()) {
+            // entries archived before being converted to UUIDs are filed by name
+            file = fileOf(player.getName());
+            key = player.getName();
+            if (!file.isFile()) return;
+        }
+
+        YamlConfiguration archived = new YamlConfiguration();
+        archived.options().pathSeparator('/');
+        try {
+            StreamingConfigLoader.load(file, archived);
+        } catch (Exception ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to restore archived user " + key, ex);
+            return;
+        }
+
+        PermissionsBatch batch = plugin.newBatch();
+        batch.setSource("archive");
+        batch.restoreUser(key, archived);
+        batch.commit();
+        if (!file.delete()) {
+            plugin.getLogger().warning("Failed to delete " + file + " after restoring it");
+        }
+        plugin.getTrace().log(Trace.JOIN, "Restored archived entry for %s", player.getName());
+    }
+
+    private File fileOf(String key) {
+        // names are at most 16 characters, so they can't collide with UUIDs
+        return new File(folder, (PermissionsSnapshot.parseUUID(key) != null ? key : key.toLowerCase()) + ".yml");
+    }
+
+}
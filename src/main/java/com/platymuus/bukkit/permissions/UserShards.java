@@ -0,0 +1,292 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Stores the users section of the configuration split across hash-bucketed shard files.
+ */
+final class UserShards {
+
+    private final File folder;
+    private final int count;
+
+    private final List<Set<String>> members;
+    private final Set<Integer> dirty = new HashSet<Integer>();
+    private final List<File> stale = new ArrayList<File>();
+
+    /**
+     * Where users are read from when their shards are written.
+     */
+    interface Source {
+        /**
+         * Get the key of every user.
+         */
+        Collection<String> getKeys();
+
+        /**
+         * Get a user's section, or null if there is no such user.
+         */
+        ConfigurationSection get(String key);
+    }
+
+    public UserShards(File folder, int count) {
+        this.folder = folder;
+        this.count = Math.max(1, count);
+
+        members = new ArrayList<Set<String>>(this.count);
+        for (int i = 0; i < this.count; ++i) {
+            members.add(new HashSet<String>());
+        }
+    }
+
+    public int shardOf(String key) {
+        return (key.toLowerCase().hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * Load every shard file in parallel and merge its users into the given section.
+     *
+     * @param users The users section to fill.
+     * @return Whether the section already held users which now need to be moved into shards.
+     */
+    public boolean load(ConfigurationSection users) throws IOException, InvalidConfigurationException {
+        // anything already here came from config.yml itself
+        boolean imported = false;
+        for (String key : users.getKeys(false)) {
+            touch(key);
+            imported = true;
+        }
+
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return imported;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(files.length, Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<YamlConfiguration>> futures = new ArrayList<Future<YamlConfiguration>>(files.length);
+            for (final File file : files) {
+                if (!file.isFile() || !file.getName().endsWith(".yml")) {
+                    futures.add(null);
+                    continue;
+                }
+                futures.add(pool.submit(new Callable<YamlConfiguration>() {
+                    public YamlConfiguration call() throws Exception {
+                        YamlConfiguration shard = newConfig();
+                        StreamingConfigLoader.load(file, shard);
+                        return shard;
+                    }
+                }));
+            }
+
+            // merge on this thread, in file order, so the result is deterministic
+            for (int i = 0; i < files.length; ++i) {
+                if (futures.get(i) == null) continue;
+                File file = files[i];
+
+                YamlConfiguration shard;
+                try {
+                    shard = futures.get(i).get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while loading " + file);
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof InvalidConfigurationException) {
+                        throw new InvalidConfigurationException("In " + file + ": " + cause.getMessage(), cause);
+                    }
+                    throw new IOException("Failed to load " + file, cause);
+                }
+
+                int index = indexOf(file);
+                if (index < 0) {
+                    stale.add(file);
+                }
+                for (String key : shard.getKeys(false)) {
+                    if (!shard.isConfigurationSection(key)) continue;
+                    copy(shard.getConfigurationSection(key), users.createSection(key));
+                    int actual = shardOf(key);
+                    members.get(actual).add(key);
+                    if (actual != index) {
+                        // shard count changed since this file was written
+                        dirty.add(actual);
+                        if (index >= 0) dirty.add(index);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        return imported;
+    }
+
+    /**
+     * Write the shard holding the given user.
+     */
+    public void save(Source users, String key) throws IOException {
+        store(prepare(users, Collections.singleton(key)));
+    }
+
+    /**
+     * Copy the shards holding the given users, so that they can be written later from another thread.
+     */
+    public Map<File, YamlConfiguration> prepare(Source users, Collection<String> keys) {
+        Set<Integer> indices = new HashSet<Integer>();
+        for (String key : keys) {
+            int shard = shardOf(key);
+            members.get(shard).add(key);
+            indices.add(shard);
+        }
+
+        Map<File, YamlConfiguration> result = new HashMap<File, YamlConfiguration>();
+        for (int shard : indices) {
+            YamlConfiguration out = newConfig();
+            Iterator<String> it = members.get(shard).iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                ConfigurationSection user = users.get(key);
+                if (user != null) {
+                    copy(user, out.createSection(key));
+                } else {
+                    it.remove();
+                }
+            }
+            result.put(new File(folder, shard + ".yml"), out);
+            dirty.remove(shard);
+        }
+        return result;
+    }
+
+    /**
+     * Write shards produced by {@link #prepare}, deleting any which are now empty.
+     */
+    public void store(Map<File, YamlConfiguration> prepared) throws IOException {
+        for (Map.Entry<File, YamlConfiguration> entry : prepared.entrySet()) {
+            File file = entry.getKey();
+            if (entry.getValue().getKeys(false).isEmpty()) {
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Failed to delete empty shard " + file);
+                }
+            } else {
+                if (!folder.isDirectory() && !folder.mkdirs()) {
+                    throw new IOException("Failed to create " + folder);
+                }
+                entry.getValue().save(file);
+            }
+        }
+    }
+
+    /**
+     * Write any shards which were found out of date during loading.
+     */
+    public void flush(Source users) throws IOException {
+        for (Integer shard : new ArrayList<Integer>(dirty)) {
+            write(users, shard);
+        }
+        deleteStale();
+    }
+
+    /**
+     * Rewrite every shard from scratch.
+     */
+    public void saveAll(Source users) throws IOException {
+        for (String key : users.getKeys()) {
+            touch(key);
+        }
+        for (int i = 0; i < count; ++i) {
+            write(users, i);
+        }
+
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".yml") && indexOf(file) < 0) {
+                    stale.add(file);
+                }
+            }
+        }
+        deleteStale();
+    }
+
+    /**
+     * Remove all shard files, such as after converting back to a single file.
+     */
+    public void deleteAll() throws IOException {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".yml")) {
+                    stale.add(file);
+                }
+            }
+        }
+        deleteStale();
+    }
+
+    // -- internals
+
+    private void touch(String key) {
+        int shard = shardOf(key);
+        members.get(shard).add(key);
+        dirty.add(shard);
+    }
+
+    private void write(Source users, int shard) throws IOException {
+        Set<String> keys = members.get(shard);
+        if (keys.isEmpty()) {
+            // nobody to look up the shard by, so write it out directly
+            File file = new File(folder, shard + ".yml");
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to delete empty shard " + file);
+            }
+            dirty.remove(shard);
+        } else {
+            store(prepare(users, Collections.singleton(keys.iterator().next())));
+        }
+    }
+
+    private void deleteStale() throws IOException {
+        for (File file : stale) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to delete stale shard " + file);
+            }
+        }
+        stale.clear();
+    }
+
+    private int indexOf(File file) {
+        String name = file.getName();
+        try {
+            int index = Integer.parseInt(name.substring(0, name.length() - ".yml".length()));
+            return (index >= 0 && index < count) ? index : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static YamlConfiguration newConfig() {
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().pathSeparator('/');
+        return config;
+    }
+
+    // sections are copied rather than re-parented so their paths stay correct
+    static void copy(ConfigurationSection from, ConfigurationSection to) {
+        for (String key : from.getKeys(false)) {
+            if (from.isConfigurationSection(key)) {
+                copy(from.getConfigurationSection(key), to.createSection(key));
+            } else {
+                to.set(key, from.get(key));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,636 @@
+package com.platymuus.bukkit.permissions;
+
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * Every user entry keyed by UUID, held in an open-addressed hash table on the UUID's two halves rather than
+ * as UUID objects and whole PermissionInfo instances. An entry is stored as its name plus ids for its groups
+ * and nodes, drawn from a dictionary shared by every table made from the same one. The PermissionInfo an
+ * entry was made from, or was last put back together into, is held softly, so the same instance is handed out
+ * for as long as memory allows. The few entries with world or context nodes are kept whole. A second table
+ * finds entries by name. Slots are split into pages and a change copies only the pages it writes to, so a new
+ * table shares the rest with the old one. Tables are immutable and may be read from any thread. The plugin
+ * drops each user's section from the loaded configuration once their entry here can write it out again, so for
+ * most users this is the only copy held.
+ */
+final class UserTable extends AbstractMap<UUID, PermissionInfo> {
+
+    // slots per page
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int[] NONE = new int[0];
+
+    public static final UserTable EMPTY = new UserTable(null, new Page[]{new Page()}, new NamePage[]{new NamePage()}, 0, 0);
+
+    // null until the first entry is added
+    private final Names names;
+    private final Page[] pages;
+    private final NamePage[] namePages;
+    private final int size;
+    private final int named;
+
+    private UserTable(Names names, Page[] pages, NamePage[] namePages, int size, int named) {
+        this.names = names;
+        this.pages = pages;
+        this.namePages = namePages;
+        this.size = size;
+        this.named = named;
+    }
+
+    // -- Storage
+
+    private static final class Page {
+        final long[] most = new long[PAGE_SIZE];
+        final long[] least = new long[PAGE_SIZE];
+        // null where the slot is free
+        final Record[] records = new Record[PAGE_SIZE];
+
+        Page copy() {
+            Page result = new Page();
+            System.arraycopy(most, 0, result.most, 0, PAGE_SIZE);
+            System.arraycopy(least, 0, result.least, 0, PAGE_SIZE);
+            System.arraycopy(records, 0, result.records, 0, PAGE_SIZE);
+            return result;
+        }
+    }
+
+    private static final class Record {
+        final String name;
+        final int[] groups;
+        // each node's id shifted left once, with its value in the low bit
+        final int[] nodes;
+        // the entry as it was given, if it has world or context nodes
+        final PermissionInfo whole;
+        // otherwise, the entry as it was given or last put back together, while memory allows
+        volatile SoftReference<PermissionInfo> expanded;
+
+        Record(String name, int[] groups, int[] nodes, PermissionInfo whole) {
+            this.name = name;
+            this.groups = groups;
+            this.nodes = nodes;
+            this.whole = whole;
+        }
+
+        String getName() {
+            return (whole != null) ? whole.getName() : name;
+        }
+    }
+
+    // the name table: each named entry's UUID, at a slot picked by its name's hash
+    private static final class NamePage {
+        final int[] hash = new int[PAGE_SIZE];
+        final long[] most = new long[PAGE_SIZE];
+        final long[] least = new long[PAGE_SIZE];
+        final boolean[] used = new boolean[PAGE_SIZE];
+
+        NamePage copy() {
+            NamePage result = new NamePage();
+            System.arraycopy(hash, 0, result.hash, 0, PAGE_SIZE);
+            System.arraycopy(most, 0, result.most, 0, PAGE_SIZE);
+            System.arraycopy(least, 0, result.least, 0, PAGE_SIZE);
+            System.arraycopy(used, 0, result.used, 0, PAGE_SIZE);
+            return result;
+        }
+    }
+
+    // group names and nodes by id, only ever added to, so ids stay good for as long as any table uses them
+    private static final class Names {
+        final PermissionsPlugin plugin;
+        private final Map<String, Integer> ids = new HashMap<String, Integer>();
+        private volatile String[] strings = new String[64];
+        private int count;
+
+        Names(PermissionsPlugin plugin) {
+            this.plugin = plugin;
+        }
+
+        synchronized int idOf(String text) {
+            Integer id = ids.get(text);
+            if (id != null) return id;
+            String[] array = (count == strings.length) ? Arrays.copyOf(strings, count * 2) : strings;
+            array[count] = text;
+            ids.put(text, count);
+            strings = array;
+            return count++;
+        }
+
+        String get(int id) {
+            return strings[id];
+        }
+    }
+
+    private int capacity() {
+        return pages.length << PAGE_BITS;
+    }
+
+    private static int home(long most, long least, int mask) {
+        long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private static int nameHome(int hash, int mask) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    // the slot holding the key, or -1
+    private static int find(Page[] pages, long most, long least) {
+        int mask = (pages.length << PAGE_BITS) - 1;
+        for (int slot = home(most, least, mask); ; slot = (slot + 1) & mask) {
+            Page page = pages[slot >>> PAGE_BITS];
+            int i = slot & PAGE_MASK;
+            if (page.records[i] == null) return -1;
+            if (page.most[i] == most && page.least[i] == least) return slot;
+        }
+    }
+
+    private Record recordOf(Object key) {
+        if (!(key instanceof UUID)) return null;
+        UUID uuid = (UUID) key;
+        int slot = find(pages, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return (slot < 0) ? null : pages[slot >>> PAGE_BITS].records[slot & PAGE_MASK];
+    }
+
+    private PermissionInfo expand(Record record) {
+        if (record.whole != null) return record.whole;
+        SoftReference<PermissionInfo> cached = record.expanded;
+        PermissionInfo result = (cached != null) ? cached.get() : null;
+        if (result == null) {
+            result = build(record);
+            record.expanded = new SoftReference<PermissionInfo>(result);
+        }
+        return result;
+    }
+
+    private PermissionInfo build(Record record) {
+        List<String> groups = Collections.emptyList();
+        if (record.groups.length > 0) {
+            groups = new ArrayList<String>(record.groups.length);
+            for (int id : record.groups) {
+                groups.add(names.get(id));
+            }
+            groups = Collections.unmodifiableList(groups);
+        }
+        Map<String, Boolean> perms = Collections.emptyMap();
+        if (record.nodes.length > 0) {
+            perms = new LinkedHashMap<String, Boolean>();
+            for (int node : record.nodes) {
+                perms.put(names.get(node >>> 1), (node & 1) != 0);
+            }
+            perms = Collections.unmodifiableMap(perms);
+        }
+        return new PermissionInfo(names.plugin, record.name, groups, perms, Collections.<String, Map<String, Boolean>>emptyMap(), Collections.<ContextRule>emptyList());
+    }
+
+    // -- Reading
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a user's entry, the same instance each time unless memory ran short in between.
+     */
+    @Override
+    public PermissionInfo get(Object key) {
+        Record record = recordOf(key);
+        return (record == null) ? null : expand(record);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return recordOf(key) != null;
+    }
+
+    /**
+     * Get the names of a user's groups, without building the rest of their entry.
+     *
+     * @return The names, or null if the user has no entry.
+     */
+    public List<String> getGroupNames(UUID uuid) {
+        Record record = recordOf(uuid);
+        return (record == null) ? null : groupNamesOf(record);
+    }
+
+    private List<String> groupNamesOf(Record record) {
+        if (record.whole != null) return record.whole.getGroupNames();
+        List<String> result = new ArrayList<String>(record.groups.length);
+        for (int id : record.groups) {
+            result.add(names.get(id));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Get a user's last known name, without building the rest of their entry.
+     *
+     * @return The name, or null if the user has no entry or it has no name.
+     */
+    public String getName(UUID uuid) {
+        Record record = recordOf(uuid);
+        return (record == null) ? null : record.getName();
+    }
+
+    /**
+     * Check whether a user's entry sets nothing but groups, without building it.
+     */
+    public boolean hasOnlyGroups(UUID uuid) {
+        Record record = recordOf(uuid);
+        return record != null && record.whole == null && record.nodes.length == 0;
+    }
+
+    /**
+     * Get what a user's permissions depend on apart from context, without building their entry: their groups
+     * if the entry sets nothing else, so that users who resolve alike share it, or otherwise the user alone.
+     */
+    public String getSignature(UUID uuid) {
+        Record record = recordOf(uuid);
+        if (record == null) {
+            return "groups:[default]";
+        } else if (record.whole == null && record.nodes.length == 0) {
+            return "groups:" + groupNamesOf(record);
+        }
+        return "user:" + uuid;
+    }
+
+    /**
+     * Find a user by their last known name, which must match exactly.
+     *
+     * @return The UUID, or null if nobody has that name.
+     */
+    public UUID findName(String name) {
+        int hash = name.hashCode();
+        int mask = (namePages.length << PAGE_BITS) - 1;
+        for (int slot = nameHome(hash, mask); ; slot = (slot + 1) & mask) {
+            NamePage page = namePages[slot >>> PAGE_BITS];
+            int i = slot & PAGE_MASK;
+            if (!page.used[i]) return null;
+            if (page.hash[i] != hash) continue;
+            int found = find(pages, page.most[i], page.least[i]);
+            if (found >= 0 && name.equals(pages[found >>> PAGE_BITS].records[found & PAGE_MASK].getName())) {
+                return new UUID(page.most[i], page.least[i]);
+            }
+        }
+    }
+
+    /**
+     * Collect every node any entry sets, in any world or context, without building the entries.
+     */
+    public Set<String> getNodeNames() {
+        Set<String> result = new HashSet<String>();
+        for (Page page : pages) {
+            for (Record record : page.records) {
+                if (record == null) continue;
+                PermissionInfo info = record.whole;
+                if (info == null) {
+                    for (int node : record.nodes) {
+                        result.add(names.get(node >>> 1));
+                    }
+                    continue;
+                }
+                result.addAll(info.getPermissions().keySet());
+                for (String world : info.getWorlds()) {
+                    result.addAll(info.getWorldPermissions(world).keySet());
+                }
+                for (ContextRule rule : info.getContextRules()) {
+                    result.addAll(rule.getPermissions().keySet());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collect every world any entry sets nodes in, without building the entries.
+     */
+    public Set<String> getWorlds() {
+        Set<String> result = new HashSet<String>();
+        for (Page page : pages) {
+            for (Record record : page.records) {
+                // only entries kept whole have world nodes
+                if (record != null && record.whole != null) {
+                    result.addAll(record.whole.getWorlds());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a user's entry is the very same in this table and another, as it is when neither the
+     * entry nor anything it was made from has been replaced in between.
+     */
+    public boolean isSame(UserTable other, UUID uuid) {
+        return recordOf(uuid) == other.recordOf(uuid);
+    }
+
+    @Override
+    public Set<UUID> keySet() {
+        return new AbstractSet<UUID>() {
+            public Iterator<UUID> iterator() {
+                return new Scan<UUID>() {
+                    UUID make(long most, long least, Record record) {
+                        return new UUID(most, least);
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<UUID, PermissionInfo>> entrySet() {
+        return new AbstractSet<Entry<UUID, PermissionInfo>>() {
+            public Iterator<Entry<UUID, PermissionInfo>> iterator() {
+                return new Scan<Entry<UUID, PermissionInfo>>() {
+                    Entry<UUID, PermissionInfo> make(long most, long least, Record record) {
+                        return new SimpleImmutableEntry<UUID, PermissionInfo>(new UUID(most, least), expand(record));
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // visits the occupied slots in order
+    private abstract class Scan<T> implements Iterator<T> {
+        private int slot = -1;
+
+        Scan() {
+            advance();
+        }
+
+        abstract T make(long most, long least, Record record);
+
+        private void advance() {
+            int capacity = capacity();
+            do {
+                slot++;
+            } while (slot < capacity && pages[slot >>> PAGE_BITS].records[slot & PAGE_MASK] == null);
+        }
+
+        public boolean hasNext() {
+            return slot < capacity();
+        }
+
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Page page = pages[slot >>> PAGE_BITS];
+            int i = slot & PAGE_MASK;
+            T result = make(page.most[i], page.least[i], page.records[i]);
+            advance();
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // -- Changing
+
+    /**
+     * Get a table with the given entry added or replaced.
+     */
+    public UserTable plus(UUID uuid, PermissionInfo info) {
+        Editor editor = edit();
+        editor.put(uuid, info);
+        return editor.done();
+    }
+
+    /**
+     * Get a table without the given user.
+     */
+    public UserTable minus(UUID uuid) {
+        if (!containsKey(uuid)) return this;
+        Editor editor = edit();
+        editor.remove(uuid);
+        return editor.done();
+    }
+
+    /**
+     * Start making changes to a copy of this table, for when there are many to make at once.
+     */
+    public Editor edit() {
+        return new Editor(this);
+    }
+
+    /**
+     * Changes a copy of a table, copying each page the first time it is written to. Not thread safe, and
+     * not to be used again once {@link #done} has been called.
+     */
+    static final class Editor {
+        private Names names;
+        private Page[] pages;
+        private boolean[] owned;
+        private int size;
+        private NamePage[] namePages;
+        private boolean[] namesOwned;
+        private int named;
+
+        private Editor(UserTable table) {
+            this.names = table.names;
+            this.pages = table.pages.clone();
+            this.owned = new boolean[pages.length];
+            this.size = table.size;
+            this.namePages = table.namePages.clone();
+            this.namesOwned = new boolean[namePages.length];
+            this.named = table.named;
+        }
+
+        public void put(UUID uuid, PermissionInfo info) {
+            long most = uuid.getMostSignificantBits(), least = uuid.getLeastSignificantBits();
+            Record record = compact(info);
+            int slot = find(pages, most, least);
+            if (slot >= 0) {
+                unname(pages[slot >>> PAGE_BITS].records[slot & PAGE_MASK].getName(), most, least);
+            } else {
+                // keep the table at most half full, so runs stay short
+                if ((size + 1) * 2 > pages.length << PAGE_BITS) {
+                    grow();
+                }
+                slot = freeSlot(most, least);
+                size++;
+            }
+            write(slot, most, least, record);
+            name(record.getName(), most, least);
+        }
+
+        public void remove(UUID uuid) {
+            int hole = find(pages, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (hole < 0) return;
+            unname(pages[hole >>> PAGE_BITS].records[hole & PAGE_MASK].getName(), uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+
+            // pull later entries in the same run back over the hole, so lookups still reach them
+            int mask = (pages.length << PAGE_BITS) - 1;
+            for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+                Page page = pages[slot >>> PAGE_BITS];
+                int i = slot & PAGE_MASK;
+                Record record = page.records[i];
+                if (record == null) break;
+                int home = home(page.most[i], page.least[i], mask);
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    write(hole, page.most[i], page.least[i], record);
+                    hole = slot;
+                }
+            }
+            write(hole, 0, 0, null);
+            size--;
+        }
+
+        public UserTable done() {
+            return new UserTable(names, pages, namePages, size, named);
+        }
+
+        private Record compact(PermissionInfo info) {
+            if (!info.getWorlds().isEmpty() || !info.getContextRules().isEmpty()) {
+                return new Record(null, NONE, NONE, info);
+            }
+            if (names == null) {
+                names = new Names(info.getPlugin());
+            }
+
+            List<String> groupNames = info.getGroupNames();
+            int[] groups = groupNames.isEmpty() ? NONE : new int[groupNames.size()];
+            for (int i = 0; i < groups.length; ++i) {
+                groups[i] = names.idOf(groupNames.get(i));
+            }
+            int[] nodes = info.getPermissions().isEmpty() ? NONE : new int[info.getPermissions().size()];
+            int i = 0;
+            for (Map.Entry<String, Boolean> entry : info.getPermissions().entrySet()) {
+                nodes[i++] = (names.idOf(entry.getKey()) << 1) | (entry.getValue() ? 1 : 0);
+            }
+            Record record = new Record(info.getName(), groups, nodes, null);
+            record.expanded = new SoftReference<PermissionInfo>(info);
+            return record;
+        }
+
+        private int freeSlot(long most, long least) {
+            int mask = (pages.length << PAGE_BITS) - 1;
+            int slot = home(most, least, mask);
+            while (pages[slot >>> PAGE_BITS].records[slot & PAGE_MASK] != null) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void write(int slot, long most, long least, Record record) {
+            int index = slot >>> PAGE_BITS;
+            if (!owned[index]) {
+                pages[index] = pages[index].copy();
+                owned[index] = true;
+            }
+            Page page = pages[index];
+            int i = slot & PAGE_MASK;
+            page.most[i] = most;
+            page.least[i] = least;
+            page.records[i] = record;
+        }
+
+        // move everything into a table twice the size, all of it new
+        private void grow() {
+            Page[] old = pages;
+            pages = new Page[old.length * 2];
+            for (int i = 0; i < pages.length; ++i) {
+                pages[i] = new Page();
+            }
+            owned = new boolean[pages.length];
+            Arrays.fill(owned, true);
+            for (Page page : old) {
+                for (int i = 0; i < PAGE_SIZE; ++i) {
+                    if (page.records[i] != null) {
+                        write(freeSlot(page.most[i], page.least[i]), page.most[i], page.least[i], page.records[i]);
+                    }
+                }
+            }
+        }
+
+        // -- Name table
+
+        private void name(String name, long most, long least) {
+            if (name == null) return;
+            if ((named + 1) * 2 > namePages.length << PAGE_BITS) {
+                growNames();
+            }
+            int hash = name.hashCode();
+            writeName(freeNameSlot(hash), hash, most, least, true);
+            named++;
+        }
+
+        private void unname(String name, long most, long least) {
+            if (name == null) return;
+            int hash = name.hashCode();
+            int mask = (namePages.length << PAGE_BITS) - 1;
+            int hole = nameHome(hash, mask);
+            for (; ; hole = (hole + 1) & mask) {
+                NamePage page = namePages[hole >>> PAGE_BITS];
+                int i = hole & PAGE_MASK;
+                if (!page.used[i]) return;
+                if (page.hash[i] == hash && page.most[i] == most && page.least[i] == least) break;
+            }
+
+            // the same backward shift as remove, so lookups still reach later entries in the run
+            for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+                NamePage page = namePages[slot >>> PAGE_BITS];
+                int i = slot & PAGE_MASK;
+                if (!page.used[i]) break;
+                int home = nameHome(page.hash[i], mask);
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    writeName(hole, page.hash[i], page.most[i], page.least[i], true);
+                    hole = slot;
+                }
+            }
+            writeName(hole, 0, 0, 0, false);
+            named--;
+        }
+
+        private int freeNameSlot(int hash) {
+            int mask = (namePages.length << PAGE_BITS) - 1;
+            int slot = nameHome(hash, mask);
+            while (namePages[slot >>> PAGE_BITS].used[slot & PAGE_MASK]) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void writeName(int slot, int hash, long most, long least, boolean used) {
+            int index = slot >>> PAGE_BITS;
+            if (!namesOwned[index]) {
+                namePages[index] = namePages[index].copy();
+                namesOwned[index] = true;
+            }
+            NamePage page = namePages[index];
+            int i = slot & PAGE_MASK;
+            page.hash[i] = hash;
+            page.most[i] = most;
+            page.least[i] = least;
+            page.used[i] = used;
+        }
+
+        private void growNames() {
+            NamePage[] old = namePages;
+            namePages = new NamePage[old.length * 2];
+            for (int i = 0; i < namePages.length; ++i) {
+                namePages[i] = new NamePage();
+            }
+            namesOwned = new boolean[namePages.length];
+            Arrays.fill(namesOwned, true);
+            for (NamePage page : old) {
+                for (int i = 0; i < PAGE_SIZE; ++i) {
+                    if (page.used[i]) {
+                        writeName(freeNameSlot(page.hash[i]), page.hash[i], page.most[i], page.least[i], true);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.platymuus.bukkit.permissions;
+
+import java.util.*;
+
+/**
+ * A set of UUIDs held as their two halves in an open-addressed hash table, rather than as UUID objects in
+ * hash map entries. Not thread safe.
+ */
+final class UuidSet extends AbstractSet<UUID> {
+
+    private long[] most = new long[16];
+    private long[] least = new long[16];
+    private boolean[] used = new boolean[16];
+    private int size;
+
+    private static int home(long most, long least, int mask) {
+        long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    // the slot holding the key, or -1
+    private int find(long most, long least) {
+        int mask = used.length - 1;
+        for (int slot = home(most, least, mask); ; slot = (slot + 1) & mask) {
+            if (!used[slot]) return -1;
+            if (this.most[slot] == most && this.least[slot] == least) return slot;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof UUID)) return false;
+        UUID uuid = (UUID) o;
+        return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >= 0;
+    }
+
+    @Override
+    public boolean add(UUID uuid) {
+        long most = uuid.getMostSignificantBits(), least = uuid.getLeastSignificantBits();
+        if (find(most, least) >= 0) return false;
+        // keep the table at most half full, so runs stay short
+        if ((size + 1) * 2 > used.length) {
+            resize(used.length * 2);
+        }
+        insert(most, least);
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof UUID)) return false;
+        UUID uuid = (UUID) o;
+        int hole = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (hole < 0) return false;
+
+        // pull later entries in the same run back over the hole, so lookups still reach them
+        int mask = used.length - 1;
+        for (int slot = (hole + 1) & mask; used[slot]; slot = (slot + 1) & mask) {
+            int home = home(most[slot], least[slot], mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                most[hole] = most[slot];
+                least[hole] = least[slot];
+                used[hole] = true;
+                hole = slot;
+            }
+        }
+        used[hole] = false;
+        size--;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        most = new long[16];
+        least = new long[16];
+        used = new boolean[16];
+        size = 0;
+    }
+
+    @Override
+    public Iterator<UUID> iterator() {
+        return new Iterator<UUID>() {
+            private int slot = next(0);
+
+            private int next(int from) {
+                while (from < used.length && !used[from]) from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return slot < used.length;
+            }
+
+            public UUID next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                UUID result = new UUID(most[slot], least[slot]);
+                slot = next(slot + 1);
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void insert(long most, long least) {
+        int mask = used.length - 1;
+        int slot = home(most, least, mask);
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        this.most[slot] = most;
+        this.least[slot] = least;
+        used[slot] = true;
+    }
+
+    private void resize(int capacity) {
+        long[] oldMost = most, oldLeast = least;
+        boolean[] oldUsed = used;
+        most = new long[capacity];
+        least = new long[capacity];
+        used = new boolean[capacity];
+        for (int i = 0; i < oldUsed.length; ++i) {
+            if (oldUsed[i]) {
+                insert(oldMost[i], oldLeast[i]);
+            }
+        }
+    }
+
+}
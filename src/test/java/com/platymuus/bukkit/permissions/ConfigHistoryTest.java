@@ -0,0 +1,111 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the writes history hands back for undoing changes, and when it can hand back an old snapshot whole.
+ */
+public class ConfigHistoryTest {
+
+    private static final PermissionsSnapshot START = PermissionsSnapshot.EMPTY.withVersion(10);
+
+    @Test
+    public void undoesNewestFirst() {
+        ConfigHistory history = new ConfigHistory();
+        history.reset(START);
+        history.push(10, START.withVersion(11), "alice", Arrays.asList(
+                change("groups/admin/permissions", "a", true, null, null),
+                change("groups/admin/permissions", "b", false, true, null)));
+        history.push(11, START.withVersion(12), "bob", Arrays.asList(
+                change("groups/admin/permissions", "a", false, true, null)));
+
+        assertEquals(Arrays.asList("groups/admin/permissions a=true", "groups/admin/permissions b=true", "groups/admin/permissions a=null"), describe(history.undoSince(10)));
+        assertEquals(Arrays.asList("groups/admin/permissions a=true"), describe(history.undoSince(11)));
+        assertEquals(Collections.emptyList(), history.undoSince(12));
+        assertNull("before history starts", history.undoSince(9));
+    }
+
+    @Test
+    public void undoRemovesSectionsTheChangeMade() {
+        ConfigHistory history = new ConfigHistory();
+        history.reset(START);
+        history.push(10, START.withVersion(11), null, Arrays.asList(
+                change("users/abc/permissions", "node", true, null, "users/abc"),
+                change("groups", "admin", true, null, "groups")));
+
+        // the top-level section stays, only the value goes
+        assertEquals(Arrays.asList("groups admin=null", "users abc=null"), describe(history.undoSince(10)));
+    }
+
+    @Test
+    public void undoPutsBackRemovedSections() {
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().pathSeparator('/');
+        List<String> groups = new ArrayList<String>(Arrays.asList("admin"));
+        config.set("users/abc/groups", groups);
+        config.set("users/abc/permissions/a.b", true);
+        ConfigurationSection removed = config.getConfigurationSection("users/abc");
+
+        ConfigHistory history = new ConfigHistory();
+        history.reset(START);
+        history.push(10, START.withVersion(11), null, Arrays.asList(change("users", "abc", null, removed, null)));
+        // the section is live, so later changes to it mustn't leak into what is put back
+        groups.add("mod");
+        config.set("users/abc/permissions/a.b", false);
+
+        List<PermissionsBatch.Change> undo = history.undoSince(10);
+        assertEquals(Arrays.asList("users abc=null", "users/abc groups=[admin]", "users/abc/permissions a.b=true"), describe(undo));
+        assertNotSame("lists are copied", groups, undo.get(1).value);
+    }
+
+    @Test
+    public void oldestVersionsAreDropped() {
+        ConfigHistory history = new ConfigHistory();
+        history.configure(2);
+        history.reset(START);
+        for (int i = 0; i < 3; ++i) {
+            history.push(10 + i, START.withVersion(11 + i), null, Arrays.asList(change("groups/admin", "k", i, null, null)));
+        }
+
+        assertEquals(2, history.getVersions().size());
+        assertEquals(11, history.getBaseVersion());
+        assertNull(history.undoSince(10));
+        assertEquals(2, history.undoSince(11).size());
+    }
+
+    @Test
+    public void exactSnapshotOnlyWhenNothingElseChanged() {
+        PermissionsSnapshot eleven = START.withVersion(11);
+        ConfigHistory history = new ConfigHistory();
+        history.reset(START);
+        history.push(10, eleven, null, Arrays.asList(change("groups/admin", "k", 1, null, null)));
+        history.push(11, START.withVersion(12), null, Arrays.asList(change("groups/admin", "k", 2, 1, null)));
+
+        assertSame(START, history.exactSnapshot(10, 12));
+        assertSame(eleven, history.exactSnapshot(11, 12));
+        assertNull("a change came in unrecorded", history.exactSnapshot(11, 13));
+
+        // version 14 was made on top of 13, which history never saw
+        history.push(13, START.withVersion(14), null, Arrays.asList(change("groups/admin", "k", 3, 2, null)));
+        assertNull(history.exactSnapshot(11, 14));
+    }
+
+    private static PermissionsBatch.Change change(String section, String key, Object value, Object old, String created) {
+        return new PermissionsBatch.Change(section, key, value, old, created);
+    }
+
+    private static List<String> describe(List<PermissionsBatch.Change> changes) {
+        List<String> result = new ArrayList<String>();
+        for (PermissionsBatch.Change change : changes) {
+            result.add(change.section + " " + change.key + "=" + change.value);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.platymuus.bukkit.permissions;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that items come out of the wheel at exactly their time, however many levels they cascade through.
+ */
+public class ExpiryWheelTest {
+
+    // not on a turn of any level, so cascades happen part way through the first turn
+    private static final long START = 1500000000L + 12345;
+
+    @Test
+    public void itemsComeOutAtTheirTime() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<String>(START);
+        wheel.add("b", START + 3);
+        wheel.add("a", START + 1);
+        assertEquals(2, wheel.size());
+
+        assertEquals(Collections.emptyList(), wheel.advance(START));
+        assertEquals(Arrays.asList("a"), wheel.advance(START + 2));
+        assertEquals(Arrays.asList("b"), wheel.advance(START + 3));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void overdueItemsComeOutNext() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<String>(START);
+        wheel.add("late", START - 100);
+        wheel.add("now", START);
+        assertEquals(Arrays.asList("late", "now"), wheel.advance(START));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cascadesThroughEveryLevel() {
+        // one item landing in each level, one beyond the top, and a few on level boundaries
+        long[] deltas = {1, 63, 64, 65, 100, 4095, 4096, 5000, 262143, 262144, 300000, 16777215, 16777216, 20000000};
+        ExpiryWheel<Long> wheel = new ExpiryWheel<Long>(START);
+        for (long delta : deltas) {
+            wheel.add(START + delta, START + delta);
+        }
+
+        long now = START;
+        for (long delta : deltas) {
+            long time = START + delta;
+            assertEquals("nothing before " + delta, Collections.emptyList(), wheel.advance(time - 1));
+            assertEquals("at " + delta, Collections.singletonList(time), wheel.advance(time));
+            now = time;
+        }
+        assertEquals(0, wheel.size());
+        assertEquals(Collections.emptyList(), wheel.advance(now + 100000));
+    }
+
+    @Test
+    public void advancingFarComesOutInOrder() {
+        Random random = new Random(1);
+        ExpiryWheel<Long> wheel = new ExpiryWheel<Long>(START);
+        List<Long> times = new ArrayList<Long>();
+        for (int i = 0; i < 1000; ++i) {
+            long time = START + 1 + random.nextInt(2000000);
+            times.add(time);
+            wheel.add(time, time);
+        }
+        Collections.sort(times);
+
+        // in a few big steps, so several levels cascade within one advance
+        List<Long> result = new ArrayList<Long>();
+        for (long now = START; now < START + 2000000; now += 700000) {
+            result.addAll(wheel.advance(now + 700000));
+        }
+        assertEquals(times, result);
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<String>(START);
+        wheel.add("a", START + 10);
+        wheel.add("b", START - 1);
+        wheel.clear(START + 5);
+        assertEquals(0, wheel.size());
+        assertEquals(Collections.emptyList(), wheel.advance(START + 20));
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.platymuus.bukkit.permissions;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that records come back from the journal as they went in, across rotation and torn writes.
+ */
+public class MutationJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void valuesRoundTrip() {
+        List<Object> values = Arrays.<Object>asList(null, true, false, 5, 5000000000L, 1.5, "",
+                "tab\tnewline\nreturn\rslash\\", Arrays.asList("a", "b\tc"), new ArrayList<String>());
+        for (Object value : values) {
+            Recorder recorder = new Recorder();
+            assertTrue("parse " + value, MutationJournal.parse(MutationJournal.formatSet("users/x\ty", "k\\ey", value), recorder));
+            assertEquals(Collections.singletonList("set users/x\ty k\\ey " + value), recorder.records);
+        }
+    }
+
+    @Test
+    public void numbersKeepTheirType() {
+        Recorder recorder = new Recorder();
+        MutationJournal.parse(MutationJournal.formatSet("a", "b", 7), recorder);
+        MutationJournal.parse(MutationJournal.formatSet("a", "b", 7000000000L), recorder);
+        MutationJournal.parse(MutationJournal.formatSet("a", "b", 2.5f), recorder);
+        assertEquals(Arrays.<Object>asList(7, 7000000000L, 2.5), recorder.values);
+    }
+
+    @Test
+    public void unencodableValuesAreRejected() throws IOException {
+        for (Object value : Arrays.<Object>asList(new HashMap<String, Object>(), Arrays.<Object>asList("a", 1), new Object())) {
+            try {
+                MutationJournal.formatSet("a", "b", value);
+                fail("formatted " + value);
+            } catch (IllegalArgumentException expected) {
+                // fine
+            }
+        }
+
+        MutationJournal journal = new MutationJournal(folder.getRoot());
+        journal.open();
+        try {
+            journal.appendSet("a", "b", Arrays.<Object>asList("a", 1));
+            fail("journalled a list holding a number");
+        } catch (IOException expected) {
+            // fine
+        }
+        journal.close();
+        assertEquals("nothing written", 0, journal.getFile().length());
+    }
+
+    @Test
+    public void replaysInOrder() throws IOException {
+        MutationJournal journal = new MutationJournal(folder.getRoot());
+        journal.open();
+        journal.appendSet("users/abc", "groups", Arrays.asList("admin"));
+        journal.appendMove("users/name", "users/abc");
+        journal.appendSet("groups/admin/permissions", "node", null);
+        journal.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(3, new MutationJournal(folder.getRoot()).replay(recorder));
+        assertEquals(Arrays.asList("set users/abc groups [admin]", "move users/name users/abc", "set groups/admin/permissions node null"), recorder.records);
+    }
+
+    @Test
+    public void skipsTornRecords() throws IOException {
+        write(new File(folder.getRoot(), "journal.log"), MutationJournal.formatSet("a", "b", true) + "\nS\ta\tb\n" + MutationJournal.formatSet("a", "c", 1) + "\nS\ta\tb\tx\nS\ta\tb\ti");
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, new MutationJournal(folder.getRoot()).replay(recorder));
+        assertEquals(Arrays.asList("set a b true", "set a c 1"), recorder.records);
+    }
+
+    @Test
+    public void sizeCountsBytes() throws IOException {
+        MutationJournal journal = new MutationJournal(folder.getRoot());
+        journal.open();
+        journal.appendSet("users/abc", "name", "Zo\u00eb \u6f22 \ud83d\ude00");
+        journal.appendSet("users/abc", "groups", Arrays.asList("caf\u00e9"));
+        journal.sync();
+        assertEquals(journal.getFile().length(), journal.size());
+        journal.close();
+    }
+
+    @Test
+    public void rotatedRecordsStayUntilCompactionFinishes() throws IOException {
+        MutationJournal journal = new MutationJournal(folder.getRoot());
+        journal.open();
+        journal.appendSet("a", "first", 1);
+        journal.rotate();
+        journal.appendSet("a", "second", 2);
+        journal.sync();
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, journal.replay(recorder));
+        assertEquals(Arrays.asList("set a first 1", "set a second 2"), recorder.records);
+
+        journal.finishCompaction();
+        recorder = new Recorder();
+        assertEquals(1, journal.replay(recorder));
+        assertEquals(Arrays.asList("set a second 2"), recorder.records);
+        journal.close();
+    }
+
+    @Test
+    public void rotateAppendsToLeftoverFile() throws IOException {
+        // an earlier compaction failed, and the crash that followed tore its last record
+        write(new File(folder.getRoot(), "journal.old.log"), MutationJournal.formatSet("a", "old", 1) + "\nS\ta\ttorn");
+
+        MutationJournal journal = new MutationJournal(folder.getRoot());
+        journal.open();
+        journal.appendSet("a", "new", 2);
+        journal.rotate();
+        assertFalse("current journal emptied", journal.getFile().length() > 0);
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, journal.replay(recorder));
+        assertEquals(Arrays.asList("set a old 1", "set a new 2"), recorder.records);
+        journal.close();
+    }
+
+    @Test
+    public void tracksWhatWasTouched() throws IOException {
+        MutationJournal journal = new MutationJournal(folder.getRoot());
+        journal.open();
+        journal.appendSet("users/abc/permissions", "node", true);
+        assertEquals(Collections.singleton("abc"), journal.takeTouchedUsers());
+        assertFalse(journal.takeTouchedBase());
+
+        journal.appendSet("users", "def", null);
+        journal.appendSet("groups/admin", "inheritance", Arrays.asList("mod"));
+        assertEquals(Collections.singleton("def"), journal.takeTouchedUsers());
+        assertTrue(journal.takeTouchedBase());
+        assertTrue("taking clears", journal.takeTouchedUsers().isEmpty());
+
+        journal.restoreTouched(Collections.singleton("abc"), true);
+        assertEquals(Collections.singleton("abc"), journal.takeTouchedUsers());
+        assertTrue(journal.takeTouchedBase());
+        journal.close();
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static final class Recorder implements MutationJournal.Target {
+        final List<String> records = new ArrayList<String>();
+        final List<Object> values = new ArrayList<Object>();
+
+        public void replaySet(String section, String key, Object value) {
+            records.add("set " + section + " " + key + " " + value);
+            values.add(value);
+        }
+
+        public void replayMove(String from, String to) {
+            records.add("move " + from + " " + to);
+        }
+    }
+
+}
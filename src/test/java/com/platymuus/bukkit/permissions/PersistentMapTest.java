@@ -0,0 +1,102 @@
+package com.platymuus.bukkit.permissions;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the map against a HashMap through random changes, including keys whose hashes collide, and that
+ * each change leaves the map it was made from as it was.
+ */
+public class PersistentMapTest {
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(1);
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        Map<Key, Integer> expected = new HashMap<Key, Integer>();
+        for (int i = 0; i < 20000; ++i) {
+            // few enough hashes that many keys share one, and whole levels of the trie are shared
+            Key key = new Key(random.nextInt(3000), random.nextInt(512) << 5);
+            if (random.nextInt(3) == 0) {
+                map = map.minus(key);
+                expected.remove(key);
+            } else {
+                map = map.plus(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected, map);
+        assertEquals(expected.size(), new HashSet<Map.Entry<Key, Integer>>(map.entrySet()).size());
+    }
+
+    @Test
+    public void changesLeaveTheOldMapAlone() {
+        PersistentMap<Key, Integer> before = PersistentMap.empty();
+        for (int i = 0; i < 100; ++i) {
+            before = before.plus(new Key(i, i % 4), i);
+        }
+        Map<Key, Integer> copy = new HashMap<Key, Integer>(before);
+
+        PersistentMap<Key, Integer> after = before;
+        for (int i = 0; i < 100; i += 2) {
+            after = after.minus(new Key(i, i % 4)).plus(new Key(i + 1000, i % 4), i);
+        }
+        after = after.plus(new Key(1, 1), -1);
+
+        assertEquals(copy, before);
+        assertEquals(100, after.size());
+        assertEquals(Integer.valueOf(-1), after.get(new Key(1, 1)));
+        assertNull(after.get(new Key(0, 0)));
+    }
+
+    @Test
+    public void removingWhatIsntThereChangesNothing() {
+        PersistentMap<Key, Integer> map = PersistentMap.<Key, Integer>empty().plus(new Key(1, 7), 1);
+        assertSame(map, map.minus(new Key(2, 7)));
+        assertSame(map, map.minus(new Key(3, 8)));
+        assertSame(map, map.minus("not a key"));
+        assertNull(map.get(null));
+        assertFalse(map.containsKey(new Key(2, 7)));
+    }
+
+    @Test
+    public void emptyMapIsEmpty() {
+        PersistentMap<String, String> map = PersistentMap.empty();
+        assertEquals(0, map.size());
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+        assertEquals(0, map.plus("a", "b").minus("a").size());
+    }
+
+    // a key with a chosen hash, so that collisions can be made on purpose
+    private static final class Key {
+        final int id;
+        final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id && ((Key) o).hash == hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return id + "#" + hash;
+        }
+    }
+
+}
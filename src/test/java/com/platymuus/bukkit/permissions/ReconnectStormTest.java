@@ -0,0 +1,190 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerKickEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays the reconnect storm which follows a restart against a stub server: every player joins within a
+ * few ticks while admins run commands, then some are kicked, some quit and rejoin, and the rest change world.
+ * How long the plugin took depends on the machine, so only what it was called for is checked against the
+ * profiler's report, along with everyone ending up with the right permissions.
+ */
+public class ReconnectStormTest {
+
+    private static final int PLAYERS = 600;
+    // the first half of the players have never joined before, and the rest are among these
+    private static final int CONFIGURED = 5000;
+    private static final int EVENTS_PER_TICK = 50;
+
+    private static final Pattern TICKS_LINE = Pattern.compile("Ticks: \\d+ over \\d+s, (\\d+) with plugin work");
+    private static final Pattern CALLS_LINE = Pattern.compile("  ([a-z ]+): (\\d+) calls, .* each");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reconnectStorm() throws Exception {
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < PLAYERS / 2 + CONFIGURED; ++i) {
+            uuids.add(UUID.nameUUIDFromBytes(("player" + i).getBytes("UTF-8")));
+        }
+        File dataFolder = folder.newFolder("PermissionsBukkit");
+        writeConfig(new File(dataFolder, "config.yml"), uuids);
+        writeMetricsOptOut(folder.getRoot());
+
+        StubServer server = new StubServer();
+        try {
+            World world = server.addWorld("world");
+            World nether = server.addWorld("world_nether");
+            PermissionsPlugin plugin = server.enable(dataFolder);
+            PlayerListener listener = new PlayerListener(plugin);
+            server.settle(20);
+            plugin.getProfiler().start();
+
+            // everyone comes back at once, while admins promote a few of them and change a group
+            List<Player> players = new ArrayList<Player>();
+            List<Integer> promoted = new ArrayList<Integer>();
+            for (int i = 0; i < PLAYERS; ++i) {
+                Player player = server.addPlayer("player" + i, uuids.get(i), world);
+                listener.onPlayerLogin(new PlayerJoinEvent(player, "joined"));
+                players.add(player);
+
+                if (i % EVENTS_PER_TICK == EVENTS_PER_TICK - 1) {
+                    server.tick();
+                    int index = PLAYERS / 2 + 1 + 2 * promoted.size();
+                    assertTrue(server.dispatch("permissions player addgroup " + uuids.get(index) + " mod"));
+                    promoted.add(index);
+                    assertTrue(server.dispatch("permissions group players member"));
+                    if (promoted.size() == 3) {
+                        assertTrue(server.dispatch("permissions group setperm member member.storm true"));
+                    }
+                }
+            }
+
+            // then a tenth are kicked, a tenth quit and rejoin, and everyone else heads for the nether
+            for (int i = 0; i < PLAYERS; ++i) {
+                Player player = players.get(i);
+                if (i % 10 == 0) {
+                    listener.onPlayerKick(new PlayerKickEvent(player, "kicked", "left the game"));
+                    server.removePlayer(player);
+                } else if (i % 10 == 1) {
+                    listener.onPlayerQuit(new PlayerQuitEvent(player, "left the game"));
+                    server.removePlayer(player);
+                    player = server.addPlayer("player" + i, uuids.get(i), world);
+                    listener.onPlayerLogin(new PlayerJoinEvent(player, "joined"));
+                    players.set(i, player);
+                } else {
+                    World from = server.teleport(player, nether);
+                    listener.onWorldChange(new PlayerChangedWorldEvent(player, from));
+                }
+
+                if (i % EVENTS_PER_TICK == EVENTS_PER_TICK - 1) {
+                    server.tick();
+                }
+            }
+            server.settle(200);
+            plugin.getProfiler().stop();
+
+            // every player joined and 60 rejoined; 60 were kicked and 60 quit; 12 rounds of two commands and a setperm
+            Map<String, Long> calls = new HashMap<String, Long>();
+            long busyTicks = -1;
+            for (String line : plugin.getProfiler().report()) {
+                Matcher matcher = CALLS_LINE.matcher(line);
+                if (matcher.matches()) {
+                    calls.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+                }
+                matcher = TICKS_LINE.matcher(line);
+                if (matcher.matches()) {
+                    busyTicks = Long.parseLong(matcher.group(1));
+                }
+            }
+            assertEquals(Long.valueOf(PLAYERS + PLAYERS / 10), calls.get("join"));
+            assertEquals(Long.valueOf(PLAYERS / 5), calls.get("quit"));
+            assertEquals(Long.valueOf(PLAYERS - PLAYERS / 5), calls.get("world change"));
+            assertEquals(Long.valueOf(2 * PLAYERS / EVENTS_PER_TICK + 1), calls.get("command"));
+            assertTrue("some ticks should have had plugin work, not " + busyTicks, busyTicks > 0);
+
+            for (int i = 0; i < PLAYERS; ++i) {
+                Player player = players.get(i);
+                String who = "player" + i;
+                if (i % 10 == 0) {
+                    assertFalse(who + " was kicked, so should have nothing", player.hasPermission("default.chat"));
+                    continue;
+                }
+                assertTrue(who + " should have the default group's node", player.hasPermission("default.chat"));
+
+                boolean member = i >= PLAYERS / 2;
+                assertEquals(who + " member node", member, player.hasPermission("member.build"));
+                assertEquals(who + " node added to members mid-storm", member, player.hasPermission("member.storm"));
+                assertEquals(who + " member node in the nether", member && i % 10 != 1, player.hasPermission("member.nether"));
+                assertEquals(who + " promotion", promoted.contains(i), player.hasPermission("mod.kick"));
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static void writeConfig(File file, List<UUID> uuids) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("users:\n");
+            for (int i = PLAYERS / 2; i < uuids.size(); ++i) {
+                writer.write("    " + uuids.get(i) + ":\n");
+                writer.write("        name: player" + i + "\n");
+                writer.write("        groups:\n");
+                writer.write("        - member\n");
+                if (i % 7 == 0) {
+                    writer.write("        permissions:\n");
+                    writer.write("            player.own" + (i % 50) + ": true\n");
+                }
+            }
+            writer.write("groups:\n");
+            writer.write("    default:\n");
+            writer.write("        permissions:\n");
+            writer.write("            default.chat: true\n");
+            writer.write("    member:\n");
+            writer.write("        permissions:\n");
+            writer.write("            member.build: true\n");
+            writer.write("        worlds:\n");
+            writer.write("            world_nether:\n");
+            writer.write("                member.nether: true\n");
+            writer.write("        inheritance:\n");
+            writer.write("        - default\n");
+            writer.write("    mod:\n");
+            writer.write("        permissions:\n");
+            writer.write("            mod.kick: true\n");
+            writer.write("        inheritance:\n");
+            writer.write("        - member\n");
+            writer.write("debug: false\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    // keep the metrics client from trying to reach the network
+    private static void writeMetricsOptOut(File pluginsFolder) throws IOException {
+        File metrics = new File(pluginsFolder, "PluginMetrics");
+        metrics.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(metrics, "config.yml")), "UTF-8");
+        try {
+            writer.write("opt-out: true\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+}
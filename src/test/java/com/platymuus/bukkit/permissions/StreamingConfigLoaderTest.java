@@ -0,0 +1,125 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that streaming a file into a configuration gives what YamlConfiguration.load would, anchors and
+ * merge keys included, and fails the same way on bad input.
+ */
+public class StreamingConfigLoaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesYamlConfiguration() throws Exception {
+        File file = write("config.yml",
+                "# The header, which\n" +
+                "# runs to two lines\n" +
+                "\n" +
+                "users:\n" +
+                "    0b6a4c2e-7d7c-4d0e-9a1e-3f1d2b7c8a90:\n" +
+                "        name: Someone\n" +
+                "        groups: [admin, mod]\n" +
+                "groups:\n" +
+                "    base: &base\n" +
+                "        permissions:\n" +
+                "            a.b: true\n" +
+                "            c.d: false\n" +
+                "    admin:\n" +
+                "        <<: *base\n" +
+                "        permissions:\n" +
+                "            x: false\n" +
+                "        inheritance:\n" +
+                "        - base\n" +
+                "    mod:\n" +
+                "        <<: *base\n" +
+                "    copy: *base\n" +
+                "list-of-maps:\n" +
+                "- key: value\n" +
+                "  other: 1\n" +
+                "numbers: [1, 2.5, 3000000000]\n" +
+                "nothing: ~\n" +
+                "quoted: 'yes'\n" +
+                "flag: yes\n");
+
+        YamlConfiguration expected = newConfig();
+        expected.load(file);
+        YamlConfiguration actual = newConfig();
+        StreamingConfigLoader.load(file, actual);
+
+        assertEquals(flatten(expected), flatten(actual));
+        assertEquals(expected.options().header(), actual.options().header());
+        assertEquals("groups/copy/permissions", actual.getConfigurationSection("groups/copy/permissions").getCurrentPath());
+        assertEquals(Boolean.TRUE, actual.get("groups/mod/permissions/a.b"));
+        assertNull(actual.get("groups/admin/permissions/a.b"));
+    }
+
+    @Test
+    public void emptyFileLoadsNothing() throws Exception {
+        YamlConfiguration config = newConfig();
+        StreamingConfigLoader.load(write("empty.yml", ""), config);
+        assertTrue(config.getKeys(false).isEmpty());
+    }
+
+    @Test
+    public void reportsWhereTheFileIsBroken() throws Exception {
+        try {
+            StreamingConfigLoader.load(write("broken.yml", "groups:\n    admin: [a, b\nusers: {}\n"), newConfig());
+            fail("loaded an unclosed list");
+        } catch (InvalidConfigurationException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("line "));
+        }
+
+        try {
+            StreamingConfigLoader.load(write("list.yml", "- a\n- b\n"), newConfig());
+            fail("loaded a list as the top level");
+        } catch (InvalidConfigurationException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Top level is not a Map."));
+        }
+
+        try {
+            StreamingConfigLoader.load(write("alias.yml", "a: *missing\n"), newConfig());
+            fail("loaded an undefined alias");
+        } catch (InvalidConfigurationException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("missing"));
+        }
+    }
+
+    private File write(String name, String text) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static YamlConfiguration newConfig() {
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().pathSeparator('/');
+        return config;
+    }
+
+    // every value by its full path, with sections marked rather than compared by identity
+    private static Map<String, Object> flatten(ConfigurationSection section) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : section.getValues(true).entrySet()) {
+            result.put(entry.getKey(), entry.getValue() instanceof ConfigurationSection ? "<section>" : entry.getValue());
+        }
+        return result;
+    }
+
+}
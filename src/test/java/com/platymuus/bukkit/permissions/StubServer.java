@@ -0,0 +1,435 @@
+package com.platymuus.bukkit.permissions;
+
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.Permissible;
+import org.bukkit.permissions.PermissibleBase;
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Just enough of a server to enable the plugin and feed it events without starting Minecraft. The Bukkit
+ * interfaces are answered by proxies which handle the handful of methods the plugin uses and give empty
+ * answers to the rest. Synchronous tasks only run when {@link #tick} is called, on the thread which made the
+ * server, which counts as the main thread; asynchronous ones run on a small pool. Bukkit only takes one
+ * server per JVM, so only make one.
+ */
+final class StubServer {
+
+    private final Logger logger = Logger.getLogger("StubServer");
+    private final Thread mainThread = Thread.currentThread();
+    private final ExecutorService async = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "StubServer async");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Server server;
+    private final PluginManager pluginManager;
+    private final BukkitScheduler scheduler;
+    private final ConsoleCommandSender console;
+    private final List<World> worlds = new ArrayList<World>();
+    // read by the plugin's background tasks too
+    private final Map<UUID, Player> online = new ConcurrentHashMap<UUID, Player>();
+    private final Map<String, Permission> permissions = new ConcurrentHashMap<String, Permission>();
+    private final List<String> consoleMessages = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<Scheduled> tasks = new ArrayList<Scheduled>();
+    private int nextTaskId = 1;
+    private long currentTick;
+    private PermissionsPlugin plugin;
+    private PluginCommand command;
+
+    public StubServer() {
+        server = stub(Server.class, new Answers() {
+            Object answer(Object proxy, String name, Object[] args) {
+                if (name.equals("getLogger")) return logger;
+                if (name.equals("getName") || name.equals("getVersion") || name.equals("getBukkitVersion")) return "StubServer";
+                if (name.equals("getPluginManager")) return pluginManager;
+                if (name.equals("getScheduler")) return scheduler;
+                if (name.equals("getConsoleSender")) return console;
+                if (name.equals("isPrimaryThread")) return Thread.currentThread() == mainThread;
+                if (name.equals("getWorlds")) return new ArrayList<World>(worlds);
+                if (name.equals("getWorld")) return worldNamed((String) args[0]);
+                if (name.equals("getOnlinePlayers")) return getOnlinePlayers();
+                if (name.equals("getPlayer")) {
+                    return (args[0] instanceof UUID) ? online.get(args[0]) : playerNamed((String) args[0]);
+                }
+                if (name.equals("getPlayerExact")) return playerNamed((String) args[0]);
+                if (name.equals("matchPlayer")) {
+                    Player player = playerNamed((String) args[0]);
+                    return (player == null) ? new ArrayList<Player>() : new ArrayList<Player>(Collections.singletonList(player));
+                }
+                if (name.equals("getPluginCommand")) return command;
+                return NONE;
+            }
+        });
+
+        pluginManager = stub(PluginManager.class, new Answers() {
+            Object answer(Object proxy, String name, Object[] args) {
+                if (name.equals("getPermissions")) return new HashSet<Permission>(permissions.values());
+                if (name.equals("getPermission")) return permissions.get(((String) args[0]).toLowerCase());
+                if (name.equals("addPermission")) {
+                    permissions.put(((Permission) args[0]).getName().toLowerCase(), (Permission) args[0]);
+                    return null;
+                }
+                if (name.equals("getDefaultPermissions") || name.equals("getPermissionSubscriptions") || name.equals("getDefaultPermSubscriptions")) {
+                    return new HashSet<Object>();
+                }
+                if (name.equals("isPluginEnabled")) return true;
+                return NONE;
+            }
+        });
+
+        scheduler = stub(BukkitScheduler.class, new Answers() {
+            Object answer(Object proxy, String name, Object[] args) {
+                if (name.equals("runTask")) return schedule((Runnable) args[1], 0, -1, true);
+                if (name.equals("runTaskLater")) return schedule((Runnable) args[1], (Long) args[2], -1, true);
+                if (name.equals("runTaskTimer")) return schedule((Runnable) args[1], (Long) args[2], (Long) args[3], true);
+                if (name.equals("runTaskAsynchronously")) return schedule((Runnable) args[1], 0, -1, false);
+                if (name.equals("runTaskTimerAsynchronously")) return schedule((Runnable) args[1], (Long) args[2], (Long) args[3], false);
+                if (name.equals("isCurrentlyRunning") || name.equals("isQueued")) return false;
+                return NONE;
+            }
+        });
+
+        console = stub(ConsoleCommandSender.class, new Answers() {
+            Object answer(Object proxy, String name, Object[] args) {
+                if (name.equals("getName")) return "CONSOLE";
+                if (name.equals("getServer")) return server;
+                if (name.equals("isOp") || name.equals("hasPermission") || name.equals("isPermissionSet")) return true;
+                if (name.equals("sendMessage")) {
+                    if (args[0] instanceof String[]) {
+                        consoleMessages.addAll(Arrays.asList((String[]) args[0]));
+                    } else {
+                        consoleMessages.add((String) args[0]);
+                    }
+                    return null;
+                }
+                return NONE;
+            }
+        });
+
+        if (Bukkit.getServer() == null) {
+            Bukkit.setServer(server);
+        }
+    }
+
+    // -- The plugin
+
+    /**
+     * Load and enable the plugin with the given data folder, which should already hold its config.yml.
+     */
+    public PermissionsPlugin enable(File dataFolder) throws Exception {
+        InputStream in = getClass().getResourceAsStream("/plugin.yml");
+        PluginDescriptionFile description;
+        try {
+            description = new PluginDescriptionFile(in);
+        } finally {
+            in.close();
+        }
+
+        plugin = new PermissionsPlugin(new JavaPluginLoader(server), description, dataFolder, new File(dataFolder.getParentFile(), "PermissionsBukkit.jar"));
+        Constructor<PluginCommand> constructor = PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+        constructor.setAccessible(true);
+        command = constructor.newInstance("permissions", plugin);
+        setEnabled(true);
+        return plugin;
+    }
+
+    // as the plugin manager would, so that the plugin counts as enabled
+    private void setEnabled(boolean enabled) throws Exception {
+        Method method = JavaPlugin.class.getDeclaredMethod("setEnabled", boolean.class);
+        method.setAccessible(true);
+        method.invoke(plugin, enabled);
+    }
+
+    /**
+     * Run a command as the console, as though it were typed in.
+     */
+    public boolean dispatch(String line) {
+        String[] split = line.split(" ");
+        return command.execute(console, split[0], Arrays.copyOfRange(split, 1, split.length));
+    }
+
+    public List<String> getConsoleMessages() {
+        return consoleMessages;
+    }
+
+    // -- Players and worlds
+
+    public World addWorld(final String name) {
+        final UUID uid = UUID.nameUUIDFromBytes(("world:" + name).getBytes());
+        World world = stub(World.class, new Answers() {
+            Object answer(Object proxy, String method, Object[] args) {
+                if (method.equals("getName")) return name;
+                if (method.equals("getUID")) return uid;
+                return NONE;
+            }
+        });
+        worlds.add(world);
+        return world;
+    }
+
+    /**
+     * Make a player who is online from now on, standing in the given world. Their permissions are worked out
+     * by Bukkit's own PermissibleBase, just as on a real server.
+     */
+    public Player addPlayer(final String name, final UUID uuid, World world) {
+        final World[] location = {world};
+        Player player = stub(Player.class, new Answers() {
+            Object answer(Object proxy, String method, Object[] args) {
+                if (method.equals("getName") || method.equals("getDisplayName") || method.equals("getPlayerListName")) return name;
+                if (method.equals("getUniqueId")) return uuid;
+                if (method.equals("getWorld")) return location[0];
+                if (method.equals("getGameMode")) return GameMode.SURVIVAL;
+                if (method.equals("getServer")) return server;
+                if (method.equals("isOnline")) return online.containsKey(uuid);
+                if (method.equals("isOp")) return false;
+                if (method.equals("sendMessage")) return null;
+                return NONE;
+            }
+        });
+        Player result = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class},
+                new PlayerState(player, new PermissibleBase(player), location));
+        online.put(uuid, result);
+        return result;
+    }
+
+    public void removePlayer(Player player) {
+        online.remove(player.getUniqueId());
+    }
+
+    /**
+     * Move a player to another world, returning the one they were in.
+     */
+    public World teleport(Player player, World to) {
+        World from = player.getWorld();
+        ((PlayerState) Proxy.getInvocationHandler(player)).location[0] = to;
+        return from;
+    }
+
+    public List<Player> getOnlinePlayers() {
+        return new ArrayList<Player>(online.values());
+    }
+
+    private Player playerNamed(String name) {
+        for (Player player : online.values()) {
+            if (player.getName().equalsIgnoreCase(name)) {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    private World worldNamed(String name) {
+        for (World world : worlds) {
+            if (world.getName().equals(name)) {
+                return world;
+            }
+        }
+        return null;
+    }
+
+    // the permissible methods go to the player's PermissibleBase, and the rest to the stub
+    private static final class PlayerState implements InvocationHandler {
+        final Player stub;
+        final PermissibleBase base;
+        final World[] location;
+
+        PlayerState(Player stub, PermissibleBase base, World[] location) {
+            this.stub = stub;
+            this.base = base;
+            this.location = location;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args, stub.getName());
+            }
+            try {
+                return method.invoke(method.getDeclaringClass() == Permissible.class ? base : stub, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    // -- Ticks
+
+    private final class Scheduled {
+        final int id = nextTaskId++;
+        final Runnable task;
+        final long period;
+        final boolean sync;
+        long due;
+        volatile boolean cancelled;
+
+        Scheduled(Runnable task, long due, long period, boolean sync) {
+            this.task = task;
+            this.due = due;
+            this.period = period;
+            this.sync = sync;
+        }
+    }
+
+    private synchronized BukkitTask schedule(Runnable task, long delay, long period, boolean sync) {
+        final Scheduled scheduled = new Scheduled(task, currentTick + Math.max(1, delay), period, sync);
+        tasks.add(scheduled);
+        return stub(BukkitTask.class, new Answers() {
+            Object answer(Object proxy, String name, Object[] args) {
+                if (name.equals("getTaskId")) return scheduled.id;
+                if (name.equals("isSync")) return scheduled.sync;
+                if (name.equals("getOwner")) return plugin;
+                if (name.equals("cancel")) {
+                    scheduled.cancelled = true;
+                    return null;
+                }
+                return NONE;
+            }
+        });
+    }
+
+    /**
+     * Advance one tick, running whatever is due. Must be called from the thread which made the server.
+     */
+    public void tick() {
+        List<Scheduled> due = new ArrayList<Scheduled>();
+        synchronized (this) {
+            currentTick++;
+            for (Iterator<Scheduled> it = tasks.iterator(); it.hasNext(); ) {
+                Scheduled task = it.next();
+                if (task.cancelled) {
+                    it.remove();
+                } else if (task.due <= currentTick) {
+                    due.add(task);
+                    if (task.period > 0) {
+                        task.due += task.period;
+                    } else {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        for (Scheduled task : due) {
+            if (task.cancelled) continue;
+            if (task.sync) {
+                task.task.run();
+            } else {
+                async.execute(task.task);
+            }
+        }
+    }
+
+    /**
+     * Tick until background work is done and no one-off task is left, such as the replies to commands and
+     * the refreshes which follow changes.
+     */
+    public void settle(int maxTicks) throws InterruptedException {
+        for (int i = 0; i < maxTicks; ++i) {
+            awaitQueued(async);
+            awaitQueued(plugin.getAsyncExecutor());
+            if (!hasOneOffTasks()) return;
+            tick();
+        }
+    }
+
+    // wait until everything queued on an executor before now has at least started
+    private static void awaitQueued(Executor executor) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await(10, TimeUnit.SECONDS);
+    }
+
+    private synchronized boolean hasOneOffTasks() {
+        for (Scheduled task : tasks) {
+            if (!task.cancelled && task.period <= 0) return true;
+        }
+        return false;
+    }
+
+    public void shutdown() throws Exception {
+        if (plugin != null) {
+            setEnabled(false);
+        }
+        async.shutdown();
+        async.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    // -- Proxies
+
+    // returned by an answer to mean "nothing in particular", replaced by an empty value of the right type
+    private static final Object NONE = new Object();
+
+    private abstract static class Answers {
+        abstract Object answer(Object proxy, String name, Object[] args) throws Throwable;
+    }
+
+    private static <T> T stub(final Class<T> type, final Answers answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return objectMethod(proxy, method, args, type.getSimpleName());
+                }
+                Object result = answers.answer(proxy, method.getName(), (args == null) ? new Object[0] : args);
+                return (result == NONE) ? emptyValue(method.getReturnType()) : result;
+            }
+        }));
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args, String description) {
+        if (method.getName().equals("equals")) return proxy == args[0];
+        if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+        return "Stub " + description;
+    }
+
+    private static Object emptyValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0.0f;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == char.class) return '\0';
+        if (type == List.class || type == Collection.class) return new ArrayList<Object>();
+        if (type == Set.class) return new HashSet<Object>();
+        if (type == Map.class) return new HashMap<Object, Object>();
+        return null;
+    }
+
+}
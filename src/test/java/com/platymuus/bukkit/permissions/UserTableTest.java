@@ -0,0 +1,139 @@
+package com.platymuus.bukkit.permissions;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks lookups and the name index after entries are removed from the middle of a run, and that tables
+ * share nothing they shouldn't.
+ */
+public class UserTableTest {
+
+    @Test
+    public void removingFromARunKeepsTheRestReachable() {
+        // the halves of each of these cancel out, so every one of them wants the same slot
+        List<UUID> run = new ArrayList<UUID>();
+        UserTable table = UserTable.EMPTY;
+        for (int i = 1; i <= 12; ++i) {
+            UUID uuid = new UUID(i, i);
+            run.add(uuid);
+            table = table.plus(uuid, user("player" + i, "group" + i));
+        }
+
+        for (int remove : new int[]{5, 0, 11, 6}) {
+            table = table.minus(run.get(remove));
+            run.set(remove, null);
+            for (int i = 0; i < run.size(); ++i) {
+                UUID uuid = run.get(i);
+                String name = "player" + (i + 1);
+                if (uuid == null) {
+                    assertFalse(name + " removed", table.containsKey(new UUID(i + 1, i + 1)));
+                    assertNull(name + " not found by name", table.findName(name));
+                } else {
+                    assertEquals(name + " still there", Arrays.asList("group" + (i + 1)), table.getGroupNames(uuid));
+                    assertEquals(name + " found by name", uuid, table.findName(name));
+                }
+            }
+        }
+        assertEquals(8, table.size());
+        assertEquals(8, new HashSet<UUID>(table.keySet()).size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(1);
+        List<UUID> uuids = new ArrayList<UUID>();
+        for (int i = 0; i < 1500; ++i) {
+            uuids.add(new UUID(random.nextLong(), random.nextInt(8)));
+        }
+
+        UserTable table = UserTable.EMPTY;
+        Map<UUID, String> names = new HashMap<UUID, String>();
+        for (int i = 0; i < 20000; ++i) {
+            UUID uuid = uuids.get(random.nextInt(uuids.size()));
+            if (random.nextInt(3) == 0) {
+                table = table.minus(uuid);
+                names.remove(uuid);
+            } else {
+                String name = "player" + random.nextInt(5000);
+                table = table.plus(uuid, user(name, "default"));
+                names.put(uuid, name);
+            }
+        }
+
+        assertEquals(names.size(), table.size());
+        assertEquals(names.keySet(), new HashSet<UUID>(table.keySet()));
+        for (Map.Entry<UUID, String> entry : names.entrySet()) {
+            assertEquals(entry.getValue(), table.getName(entry.getKey()));
+            assertEquals(entry.getValue(), names.get(table.findName(entry.getValue())));
+        }
+        assertNull(table.findName("nobody"));
+    }
+
+    @Test
+    public void changesLeaveTheOldTableAlone() {
+        UUID first = new UUID(1, 2), second = new UUID(3, 4);
+        UserTable before = UserTable.EMPTY.plus(first, user("first", "a")).plus(second, user("second", "b"));
+        UserTable after = before.minus(first).plus(second, user("renamed", "c"));
+
+        assertEquals(2, before.size());
+        assertEquals("first", before.getName(first));
+        assertEquals("second", before.getName(second));
+        assertEquals(second, before.findName("second"));
+        assertNull(before.findName("renamed"));
+
+        assertEquals(1, after.size());
+        assertFalse(after.containsKey(first));
+        assertEquals(Arrays.asList("c"), after.getGroupNames(second));
+        assertEquals(second, after.findName("renamed"));
+        assertNull(after.findName("second"));
+        assertFalse(before.isSame(after, second));
+    }
+
+    @Test
+    public void entriesComeBackAsTheSameInstance() {
+        UUID plain = new UUID(1, 2), worlds = new UUID(3, 4);
+        PermissionInfo plainInfo = new PermissionInfo(null, "plain", Collections.singletonList("default"), Collections.<String, Boolean>emptyMap(),
+                Collections.<String, Map<String, Boolean>>emptyMap(), Collections.<ContextRule>emptyList());
+        Map<String, Boolean> nodes = Collections.singletonMap("world.node", true);
+        PermissionInfo worldInfo = new PermissionInfo(null, "worlds", Collections.<String>emptyList(), nodes,
+                Collections.singletonMap("nether", nodes), Collections.<ContextRule>emptyList());
+        UserTable table = UserTable.EMPTY.plus(plain, plainInfo).plus(worlds, worldInfo);
+
+        assertSame(plainInfo, table.get(plain));
+        assertSame(worldInfo, table.get(worlds));
+        assertEquals(Collections.singleton("nether"), table.getWorlds());
+        assertTrue(table.hasOnlyGroups(plain));
+        assertFalse(table.hasOnlyGroups(worlds));
+        assertEquals("groups:[default]", table.getSignature(plain));
+        assertEquals("user:" + worlds, table.getSignature(worlds));
+    }
+
+    @Test
+    public void manyEntriesSpanSeveralPages() {
+        UserTable.Editor editor = UserTable.EMPTY.edit();
+        for (int i = 0; i < 5000; ++i) {
+            editor.put(new UUID(i, -i), user("player" + i, "group" + (i % 10)));
+        }
+        for (int i = 0; i < 5000; i += 3) {
+            editor.remove(new UUID(i, -i));
+        }
+        UserTable table = editor.done();
+
+        assertEquals(5000 - 1667, table.size());
+        for (int i = 0; i < 5000; ++i) {
+            UUID uuid = new UUID(i, -i);
+            assertEquals("player" + i, (i % 3 == 0) ? null : uuid, table.findName("player" + i));
+            assertEquals("player" + i, i % 3 != 0, table.containsKey(uuid));
+        }
+    }
+
+    private static PermissionInfo user(String name, String group) {
+        return new PermissionInfo(null, name, Collections.singletonList(group), Collections.singletonMap("node." + group, true),
+                Collections.<String, Map<String, Boolean>>emptyMap(), Collections.<ContextRule>emptyList());
+    }
+
+}